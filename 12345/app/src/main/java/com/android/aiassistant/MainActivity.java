@@ -4,6 +4,7 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
 import android.widget.Button;
@@ -16,12 +17,27 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import com.android.aiassistant.service.AIInferenceService;
+import com.android.aiassistant.service.ConversationSession;
+import com.android.aiassistant.service.HistoryCompactor;
+import com.android.aiassistant.service.InferenceBackend;
+import com.android.aiassistant.service.InferenceScheduler;
+import com.android.aiassistant.service.LlamaServerBackend;
+import com.android.aiassistant.service.MapReduceSummarizer;
+import com.android.aiassistant.service.ModelPrewarmer;
+import com.android.aiassistant.service.OllamaBackend;
+import com.android.aiassistant.service.PerformanceTuner;
 import com.android.aiassistant.service.RootShellService;
 import com.android.aiassistant.service.FileWatcherService;
 import com.android.aiassistant.utils.FileUtils;
 import com.android.aiassistant.utils.RootUtils;
 import com.android.aiassistant.utils.AIModelManager;
+import com.android.aiassistant.utils.ModelCatalog;
+import com.android.aiassistant.utils.ModelDownloader;
+import com.android.aiassistant.utils.PromptCacheManager;
+import com.android.aiassistant.utils.ResponseCache;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 主 Activity - AI 助手界面
@@ -31,6 +47,12 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_PERMISSIONS = 1001;
     private static final int REQUEST_MANAGE_STORAGE = 1002;
+    private static final long INFERENCE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    // 批量推理的并行序列数
+    private static final int BATCH_PARALLEL = 4;
+    private static final long DOWNLOAD_PROGRESS_INTERVAL_MS = 5000;
+    private static final String SYSTEM_PROMPT = "你是运行在 Android 设备上的 AI 助手，回答简洁准确。";
 
     private EditText inputEditText;
     private TextView outputTextView;
@@ -41,11 +63,19 @@ public class MainActivity extends AppCompatActivity {
     private Button clearButton;
 
     private AIModelManager modelManager;
+    private ModelDownloader modelDownloader;
     private AIInferenceService aiService;
+    private InferenceScheduler inferenceScheduler;
+    private ConversationSession conversation;
+    private HistoryCompactor historyCompactor;
+    private MapReduceSummarizer summarizer;
+    private MapReduceSummarizer.SummaryTask currentSummary;
     private RootShellService rootService;
+    private ModelPrewarmer modelPrewarmer;
     private FileWatcherService fileWatcherService;
 
     private String currentModelPath;
+    private InferenceScheduler.InferenceRequest currentRequest;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,8 +84,15 @@ public class MainActivity extends AppCompatActivity {
 
         // 初始化服务
         modelManager = new AIModelManager(this);
+        modelDownloader = new ModelDownloader(modelManager);
         aiService = new AIInferenceService(this);
+        inferenceScheduler = aiService.getScheduler();
+        conversation = new ConversationSession(aiService, SYSTEM_PROMPT);
+        historyCompactor = new HistoryCompactor(inferenceScheduler);
+        conversation.setCompactor(historyCompactor);
+        summarizer = new MapReduceSummarizer(this, aiService, modelManager);
         rootService = new RootShellService(this);
+        modelPrewarmer = new ModelPrewarmer(this, rootService);
         fileWatcherService = new FileWatcherService(this);
 
         // 初始化视图
@@ -142,6 +179,7 @@ public class MainActivity extends AppCompatActivity {
         if (hasRoot) {
             appendToOutput("[系统] ✓ Root 权限已获取\n\n");
             rootService.initialize();
+            modelPrewarmer.setLockEnabled(true);
         } else {
             appendToOutput("[系统] ✗ 未检测到 Root 权限\n");
             appendToOutput("[系统] 某些功能可能无法使用\n\n");
@@ -158,23 +196,56 @@ public class MainActivity extends AppCompatActivity {
 
     private void loadDefaultModel() {
         new Thread(() -> {
-            File modelDir = new File(getExternalFilesDir(null), "models");
-            File[] models = modelDir.listFiles((dir, name) -> name.endsWith(".gguf"));
+            // 先用上次保存的索引立即选择模型，不扫描目录
+            ModelCatalog catalog = modelManager.getCatalog();
+            AIModelManager.ModelInfo model = findExistingModel(catalog.getModels());
+            if (model == null) {
+                model = findExistingModel(catalog.refresh());
+            }
 
-            if (models != null && models.length > 0) {
-                currentModelPath = models[0].getAbsolutePath();
+            if (model != null) {
+                currentModelPath = model.path;
+                conversation.setModel(model);
+                String name = model.name;
                 runOnUiThread(() -> {
-                    appendToOutput("[模型] 已加载: " + models[0].getName() + "\n\n");
+                    appendToOutput("[模型] 已加载: " + name + "\n\n");
                 });
+                prewarmModel(new File(model.path));
             } else {
                 runOnUiThread(() -> {
                     appendToOutput("[模型] 未找到模型文件\n");
                     appendToOutput("[模型] 请点击\"模型管理\"下载模型\n\n");
                 });
             }
+
+            // 之后在后台增量扫描，提示新增或移除的模型
+            catalog.addListener(catalogListener);
+            catalog.refresh();
         }).start();
     }
 
+    private static AIModelManager.ModelInfo findExistingModel(List<AIModelManager.ModelInfo> models) {
+        for (AIModelManager.ModelInfo model : models) {
+            if (new File(model.path).exists()) {
+                return model;
+            }
+        }
+        return null;
+    }
+
+    private final ModelCatalog.CatalogListener catalogListener = (added, removed) -> {
+        runOnUiThread(() -> {
+            for (AIModelManager.ModelInfo model : added) {
+                appendToOutput("[模型] 发现模型: " + model.name + "\n");
+            }
+            for (AIModelManager.ModelInfo model : removed) {
+                if (!new File(model.path).exists()) {
+                    appendToOutput("[模型] 模型已移除: " + model.name + "\n");
+                }
+            }
+        });
+    };
+
     private void processInput(String input) {
         appendToOutput("[你] " + input + "\n");
 
@@ -184,26 +255,46 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        // 检查是否有模型
-        if (currentModelPath == null) {
+        // 检查是否有模型，外部服务自行管理模型
+        if (currentModelPath == null && aiService.isLocalBackend()) {
             appendToOutput("[AI] 请先加载模型\n\n");
             return;
         }
+        String modelPath = currentModelPath != null ? currentModelPath : aiService.getBackendName();
 
-        // AI 推理
+        // AI 推理，交给调度器排队，避免同时启动多个模型进程；对话历史作为可复用前缀
         appendToOutput("[AI] 正在思考...\n");
-        new Thread(() -> {
-            try {
-                String response = aiService.inference(currentModelPath, input);
-                runOnUiThread(() -> {
-                    appendToOutput("[AI] " + response + "\n\n");
-                });
-            } catch (Exception e) {
-                runOnUiThread(() -> {
-                    appendToOutput("[错误] " + e.getMessage() + "\n\n");
-                });
-            }
-        }).start();
+        try {
+            historyCompactor.setModelPath(modelPath);
+            AIInferenceService.InferenceCallback callback = new AIInferenceService.InferenceCallback() {
+                private final StringBuilder response = new StringBuilder();
+
+                @Override
+                public void onToken(String token) {
+                    response.append(token);
+                }
+
+                @Override
+                public void onComplete() {
+                    String reply = response.toString().trim();
+                    runOnUiThread(() -> {
+                        appendToOutput("[AI] " + reply + "\n\n");
+                    });
+                }
+
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[错误] " + error + "\n\n");
+                    });
+                }
+            };
+            // 在调度线程里构建提示、推理并记录这一轮，压缩统计取这次推理自己的指标
+            currentRequest = inferenceScheduler.submitTask(modelPath, InferenceScheduler.Priority.INTERACTIVE,
+                    INFERENCE_TIMEOUT_MS, run -> conversation.send(modelPath, input, callback, run), callback);
+        } catch (Exception e) {
+            appendToOutput("[错误] " + e.getMessage() + "\n\n");
+        }
     }
 
     private void processCommand(String command) {
@@ -221,6 +312,15 @@ public class MainActivity extends AppCompatActivity {
                 appendToOutput("  /mv [源] [目标] - 移动文件\n");
                 appendToOutput("  /mkdir [路径] - 创建目录\n");
                 appendToOutput("  /model [路径] - 加载模型\n");
+                appendToOutput("  /download [地址] [sha256] - 下载模型，可断点续传\n");
+                appendToOutput("  /stop - 停止当前推理\n");
+                appendToOutput("  /reset - 清空对话记录\n");
+                appendToOutput("  /tune - 校准当前模型的推理参数\n");
+                appendToOutput("  /stats - 查看推理性能统计\n");
+                appendToOutput("  /backend [local|server 地址|ollama 模型 [地址]] - 切换推理后端\n");
+                appendToOutput("  /batch [文件] [指令] - 对文件的每一行执行同一指令\n");
+                appendToOutput("  /summarize [文件] - 分块摘要大文件，中断后可继续\n");
+                appendToOutput("  /speculative [on|off] - 使用小模型起草的投机解码\n");
                 appendToOutput("  /root [命令] - 执行 root 命令\n\n");
                 break;
 
@@ -280,6 +380,63 @@ public class MainActivity extends AppCompatActivity {
                 }
                 break;
 
+            case "/download":
+                if (parts.length > 1) {
+                    downloadModel(parts[1], parts.length > 2 ? parts[2] : null);
+                } else {
+                    appendToOutput("[错误] 用法: /download [地址] [sha256]\n\n");
+                }
+                break;
+
+            case "/reset":
+                conversation.reset();
+                appendToOutput("[系统] 对话记录已清空\n\n");
+                break;
+
+            case "/summarize":
+                if (parts.length > 1) {
+                    summarizeFile(command.substring(command.indexOf(parts[1])));
+                } else {
+                    appendToOutput("[错误] 用法: /summarize [文件]\n\n");
+                }
+                break;
+
+            case "/stop":
+                if (currentSummary != null && !currentSummary.isCancelled()) {
+                    currentSummary.cancel();
+                    currentSummary = null;
+                } else if (currentRequest != null) {
+                    currentRequest.cancel();
+                    currentRequest = null;
+                } else {
+                    appendToOutput("[系统] 没有正在进行的推理\n\n");
+                }
+                break;
+
+            case "/tune":
+                tuneModel();
+                break;
+
+            case "/stats":
+                showStats();
+                break;
+
+            case "/batch":
+                if (parts.length > 2) {
+                    runBatch(parts[1], command.substring(command.indexOf(parts[2], 7 + parts[1].length())));
+                } else {
+                    appendToOutput("[错误] 用法: /batch [文件] [指令]\n\n");
+                }
+                break;
+
+            case "/backend":
+                switchBackend(parts);
+                break;
+
+            case "/speculative":
+                setSpeculative(parts);
+                break;
+
             case "/root":
                 if (parts.length > 1) {
                     executeRootCommand(command.substring(6));
@@ -412,12 +569,318 @@ public class MainActivity extends AppCompatActivity {
             }
 
             currentModelPath = path;
+            AIModelManager.ModelInfo info = modelManager.getCatalog().get(modelFile);
+            conversation.setModel(info);
             runOnUiThread(() -> {
-                appendToOutput("[模型] 已加载: " + modelFile.getName() + "\n\n");
+                appendToOutput("[模型] 已加载: " + modelFile.getName() + "\n");
+                if (info.metadataLoaded) {
+                    appendToOutput("[模型] " + info.architecture + " " + info.getParameterLabel() + " "
+                            + info.quantType + "，训练上下文 " + info.contextLengthTrain
+                            + "，词表 " + info.vocabSize + "\n");
+                }
+                appendToOutput("\n");
             });
+            prewarmModel(modelFile);
         }).start();
     }
 
+    /**
+     * 把模型文件预读进页缓存，减少首个 token 的等待
+     */
+    private void prewarmModel(File modelFile) {
+        modelPrewarmer.prewarm(modelFile, new ModelPrewarmer.PrewarmListener() {
+            private int lastQuarter;
+
+            @Override
+            public void onProgress(long warmedBytes, long totalBytes) {
+                int quarter = totalBytes > 0 ? (int) (warmedBytes * 4 / totalBytes) : 4;
+                if (quarter <= lastQuarter || quarter >= 4) {
+                    return;
+                }
+                lastQuarter = quarter;
+                runOnUiThread(() -> {
+                    appendToOutput("[预热] " + quarter * 25 + "%\n");
+                });
+            }
+
+            @Override
+            public void onComplete(ModelPrewarmer.PrewarmResult result) {
+                runOnUiThread(() -> {
+                    appendToOutput("[预热] 完成: " + result + "\n\n");
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> {
+                    appendToOutput("[错误] " + error + "\n\n");
+                });
+            }
+        });
+    }
+
+    private void downloadModel(String url, String sha256) {
+        String fileName = Uri.parse(url).getLastPathSegment();
+        if (fileName == null || !fileName.endsWith(".gguf")) {
+            appendToOutput("[错误] 地址必须指向 .gguf 文件\n\n");
+            return;
+        }
+
+        appendToOutput("[下载] " + (modelDownloader.hasPartialDownload(fileName) ? "继续下载 " : "开始下载 ")
+                + fileName + "\n");
+        ModelDownloader.DownloadListener listener = new ModelDownloader.DownloadListener() {
+            private long lastReportMs;
+
+            @Override
+            public void onProgress(long downloadedBytes, long totalBytes, double bytesPerSecond) {
+                long now = System.currentTimeMillis();
+                if (now - lastReportMs < DOWNLOAD_PROGRESS_INTERVAL_MS) {
+                    return;
+                }
+                lastReportMs = now;
+                String percent = totalBytes > 0 ? (downloadedBytes * 100 / totalBytes) + "%" : "";
+                runOnUiThread(() -> {
+                    appendToOutput("[下载] " + percent + " " + FileUtils.formatFileSize(downloadedBytes)
+                            + "，" + FileUtils.formatFileSize((long) bytesPerSecond) + "/s\n");
+                });
+            }
+
+            @Override
+            public void onComplete(File file, String sha256) {
+                runOnUiThread(() -> {
+                    appendToOutput("[下载] 完成: " + file.getName() + "\nSHA-256: " + sha256 + "\n\n");
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> {
+                    appendToOutput("[错误] 下载失败: " + error + "\n\n");
+                });
+            }
+        };
+
+        // 按目标文件排队，下载完成前不会有推理加载这个模型
+        String targetPath = new File(modelManager.getModelsDirectory(), fileName).getAbsolutePath();
+        try {
+            inferenceScheduler.submitTask(targetPath, InferenceScheduler.Priority.BACKGROUND, 0, run -> {
+                modelDownloader.download(url, fileName, sha256, listener).await();
+                return null;
+            }, null);
+        } catch (Exception e) {
+            appendToOutput("[错误] " + e.getMessage() + "\n\n");
+        }
+    }
+
+    private void tuneModel() {
+        if (currentModelPath == null) {
+            appendToOutput("[错误] 请先加载模型\n\n");
+            return;
+        }
+
+        appendToOutput("[调优] 开始校准，可能需要几分钟...\n");
+        String modelPath = currentModelPath;
+        try {
+            // 校准期间独占该模型，不与对话和批量推理同时运行
+            inferenceScheduler.submitTask(modelPath, InferenceScheduler.Priority.BACKGROUND, 0, run -> {
+                PerformanceTuner.TuningProfile profile = aiService.tune(modelPath, measured -> {
+                    runOnUiThread(() -> {
+                        appendToOutput("[调优] " + measured + "\n");
+                    });
+                });
+                runOnUiThread(() -> {
+                    appendToOutput("[调优] 已保存最佳参数: " + profile + "\n\n");
+                });
+                return null;
+            }, new AIInferenceService.InferenceCallback() {
+                @Override
+                public void onToken(String token) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[错误] " + error + "\n\n");
+                    });
+                }
+            });
+        } catch (Exception e) {
+            appendToOutput("[错误] " + e.getMessage() + "\n\n");
+        }
+    }
+
+    private void showStats() {
+        PromptCacheManager promptCache = aiService.getPromptCache();
+        ResponseCache responseCache = aiService.getResponseCache();
+        appendToOutput("[统计]\n" + aiService.getStats().format());
+        appendToOutput("提示缓存: 命中 " + promptCache.getHits() + "，未命中 " + promptCache.getMisses()
+                + "，淘汰 " + promptCache.getEvictions() + "\n");
+        appendToOutput("结果缓存: 内存命中 " + responseCache.getMemoryHits() + "，磁盘命中 "
+                + responseCache.getDiskHits() + "，未命中 " + responseCache.getMisses()
+                + "，合并 " + responseCache.getCoalesced() + "\n");
+        appendToOutput("历史压缩: " + historyCompactor.getStats().format());
+        appendToOutput("Root 会话: " + rootService.getPoolStats().format() + "\n");
+    }
+
+    private void runBatch(String path, String instruction) {
+        if (currentModelPath == null && aiService.isLocalBackend()) {
+            appendToOutput("[错误] 请先加载模型\n\n");
+            return;
+        }
+        String modelPath = currentModelPath != null ? currentModelPath : aiService.getBackendName();
+
+        new Thread(() -> {
+            List<String> prompts = new ArrayList<>();
+            try {
+                for (String line : FileUtils.readFile(path).split("\n")) {
+                    if (!line.trim().isEmpty()) {
+                        prompts.add(instruction + "\n" + line.trim());
+                    }
+                }
+            } catch (Exception e) {
+                runOnUiThread(() -> {
+                    appendToOutput("[错误] " + e.getMessage() + "\n\n");
+                });
+                return;
+            }
+
+            runOnUiThread(() -> {
+                appendToOutput("[批量] 共 " + prompts.size() + " 条，开始处理...\n");
+            });
+            aiService.batchInference(modelPath, prompts, BATCH_PARALLEL, new AIInferenceService.BatchCallback() {
+                @Override
+                public void onItemComplete(int index, String result) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[" + (index + 1) + "] " + result + "\n");
+                    });
+                }
+
+                @Override
+                public void onItemError(int index, String error) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[" + (index + 1) + "] [错误] " + error + "\n");
+                    });
+                }
+
+                @Override
+                public void onComplete(AIInferenceService.BatchResult result) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[批量] " + result + "\n\n");
+                    });
+                }
+
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> {
+                        appendToOutput("[错误] " + error + "\n\n");
+                    });
+                }
+            });
+        }).start();
+    }
+
+    private void summarizeFile(String path) {
+        if (currentModelPath == null && aiService.isLocalBackend()) {
+            appendToOutput("[错误] 请先加载模型\n\n");
+            return;
+        }
+        String modelPath = currentModelPath != null ? currentModelPath : aiService.getBackendName();
+
+        appendToOutput("[摘要] " + path + "\n");
+        currentSummary = summarizer.summarize(modelPath, new File(path), BATCH_PARALLEL,
+                new MapReduceSummarizer.SummaryListener() {
+                    @Override
+                    public void onProgress(String stage, int completed, int total) {
+                        runOnUiThread(() -> {
+                            appendToOutput("[摘要] " + stage + " " + completed + "/" + total + "\n");
+                        });
+                    }
+
+                    @Override
+                    public void onComplete(String summary) {
+                        runOnUiThread(() -> {
+                            appendToOutput("[摘要] 完成:\n" + summary + "\n\n");
+                        });
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        runOnUiThread(() -> {
+                            appendToOutput("[错误] " + error + "\n\n");
+                        });
+                    }
+                });
+    }
+
+    private void switchBackend(String[] parts) {
+        if (parts.length < 2) {
+            appendToOutput("[后端] 当前: " + aiService.getBackendName() + "\n\n");
+            return;
+        }
+
+        InferenceBackend backend;
+        switch (parts[1].toLowerCase()) {
+            case "local":
+                backend = null;
+                break;
+            case "server":
+                backend = new LlamaServerBackend(parts.length > 2 ? parts[2] : "http://127.0.0.1:8080");
+                break;
+            case "ollama":
+                if (parts.length < 3) {
+                    appendToOutput("[错误] 用法: /backend ollama [模型] [地址]\n\n");
+                    return;
+                }
+                backend = new OllamaBackend(parts.length > 3 ? parts[3] : null, parts[2]);
+                break;
+            default:
+                appendToOutput("[错误] 未知后端: " + parts[1] + "\n\n");
+                return;
+        }
+
+        new Thread(() -> {
+            if (backend != null && !backend.isAvailable()) {
+                runOnUiThread(() -> {
+                    appendToOutput("[错误] 无法连接 " + backend.getName() + "\n\n");
+                });
+                return;
+            }
+            aiService.setBackend(backend);
+            runOnUiThread(() -> {
+                appendToOutput("[后端] 已切换到 " + aiService.getBackendName() + "\n\n");
+            });
+        }).start();
+    }
+
+    private void setSpeculative(String[] parts) {
+        if (parts.length > 1) {
+            aiService.setSpeculativeEnabled("on".equalsIgnoreCase(parts[1]));
+        }
+        boolean enabled = aiService.isSpeculativeEnabled();
+        String modelPath = currentModelPath;
+        try {
+            // 只读取模型元数据，不加载模型，不占用模型的并发额度
+            inferenceScheduler.submitTask(null, InferenceScheduler.Priority.INTERACTIVE, 0, run -> {
+                AIModelManager.ModelInfo draft = modelPath != null ? aiService.findDraftModel(modelPath) : null;
+                runOnUiThread(() -> {
+                    appendToOutput("[投机解码] " + (enabled ? "已开启" : "已关闭") + "\n");
+                    if (draft != null) {
+                        appendToOutput("[投机解码] 草稿模型: " + draft.name + " (" + draft.getParameterLabel() + ")\n\n");
+                    } else {
+                        appendToOutput("[投机解码] 当前模型没有可配对的草稿模型，将使用正常解码\n\n");
+                    }
+                });
+                return null;
+            }, null);
+        } catch (Exception e) {
+            appendToOutput("[错误] " + e.getMessage() + "\n\n");
+        }
+    }
+
     private void executeRootCommand(String command) {
         new Thread(() -> {
             try {
@@ -453,9 +916,23 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (modelManager != null) {
+            modelManager.getCatalog().removeListener(catalogListener);
+        }
+        if (historyCompactor != null) {
+            historyCompactor.shutdown();
+        }
+        if (currentSummary != null) {
+            currentSummary.cancel();
+        }
         if (aiService != null) {
             aiService.cleanup();
         }
+        if (modelPrewarmer != null) {
+            // 解除锁定需要执行 root 命令，不阻塞界面线程
+            ModelPrewarmer prewarmer = modelPrewarmer;
+            new Thread(prewarmer::shutdown).start();
+        }
         if (rootService != null) {
             rootService.cleanup();
         }
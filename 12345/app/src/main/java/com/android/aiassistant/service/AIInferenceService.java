@@ -2,11 +2,18 @@ package com.android.aiassistant.service;
 
 import android.content.Context;
 import android.util.Log;
-import java.io.BufferedReader;
+import com.android.aiassistant.utils.AIModelManager;
+import com.android.aiassistant.utils.PromptCacheManager;
+import com.android.aiassistant.utils.ResponseCache;
 import java.io.File;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * AI 推理服务
@@ -16,9 +23,47 @@ public class AIInferenceService {
 
     private static final String TAG = "AIInferenceService";
 
+    // 模型模仿对方发言或输出对话模板标记时停止
+    private static final List<String> DEFAULT_STOP_SEQUENCES = Arrays.asList(
+            "\nUser:", "\n用户:", "\n用户：", "<|im_start|>", "<|im_end|>", "<|eot_id|>");
+
+    /**
+     * 只包含对话模板标记的停止序列，用于摘要等内部请求：它们的输入本身就含有 "用户:" 这样的对话记录，
+     * 按默认停止序列会在复述对话时被提前截断
+     */
+    public static final List<String> TEMPLATE_STOP_SEQUENCES = Collections.unmodifiableList(Arrays.asList(
+            "<|im_start|>", "<|im_end|>", "<|eot_id|>"));
+
     private Context context;
-    private Process inferenceProcess;
-    private boolean isRunning;
+    private AIModelManager modelManager;
+    private final Set<InferenceRun> activeRuns = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // 所有在后台执行的推理都经过调度器排队
+    private final InferenceScheduler scheduler;
+
+    // 常驻工作进程，模型只加载一次
+    private LlamaServerWorker serverWorker;
+    private LlamaServerBackend serverBackend;
+    private boolean persistentWorkerEnabled = true;
+
+    // 单次进程后端，常驻进程不可用时使用
+    private ProcessBackend processBackend;
+
+    // 指定的推理后端，为 null 时使用本地 llama.cpp
+    private volatile InferenceBackend backend;
+
+    private final InferenceStats stats = new InferenceStats();
+
+    // 停止序列，命中后立即终止生成
+    private volatile StopSequenceMatcher stopMatcher = new StopSequenceMatcher(DEFAULT_STOP_SEQUENCES);
+
+    // llama.cpp 提示缓存文件
+    private PromptCacheManager promptCache;
+    private boolean promptCacheEnabled = true;
+
+    // 确定性推理结果缓存
+    private ResponseCache responseCache;
+    private boolean responseCacheEnabled = true;
 
     // 推理参数
     private int contextLength = 2048;
@@ -26,138 +71,350 @@ public class AIInferenceService {
     private float temperature = 0.7f;
     private float topP = 0.9f;
     private int maxTokens = 512;
+    private int threads = PerformanceTuner.getPerformanceCoreCount();
+    private boolean useMmap = true;
+    private boolean useMlock = false;
+
+    // 按 (模型, 设备) 保存的调优参数
+    private PerformanceTuner performanceTuner;
+    private boolean autoTuneEnabled = true;
+    private String tunedModelPath;
+
+    // 启动前的内存准入检查
+    private final MemoryAdmission memoryAdmission = new MemoryAdmission();
+    private boolean memoryAdmissionEnabled = true;
+    // 最近一次准入的结果，常驻进程仍以它运行时直接沿用
+    private volatile Admission lastAdmission;
+
+    // 投机解码：自动为目标模型配对同架构同词表的小模型作为草稿
+    private boolean speculativeEnabled;
+    // llama.cpp 拒绝加载的 (目标模型, 草稿模型) 组合，不再尝试
+    private final Set<String> rejectedDrafts = ConcurrentHashMap.newKeySet();
 
     public AIInferenceService(Context context) {
         this.context = context;
+        this.serverWorker = new LlamaServerWorker(getLlamaServerPath());
+        this.serverBackend = new LlamaServerBackend(serverWorker);
+        this.modelManager = new AIModelManager(context);
+        this.promptCache = new PromptCacheManager(modelManager.getPromptCacheDirectory());
+        this.processBackend = new ProcessBackend(getLlamaCppPath(), promptCache);
+        this.responseCache = new ResponseCache(new File(context.getExternalFilesDir(null), "response_cache"));
+        this.performanceTuner = new PerformanceTuner(context, this);
+        this.scheduler = new InferenceScheduler(this);
+    }
+
+    /**
+     * 获取推理调度器，后台推理和其他占用模型的任务都应通过它提交
+     */
+    public InferenceScheduler getScheduler() {
+        return scheduler;
     }
 
     /**
      * 执行 AI 推理
      */
     public String inference(String modelPath, String prompt) throws Exception {
+        return inference(modelPath, prompt, PromptCacheManager.defaultPrefix(prompt));
+    }
+
+    /**
+     * 执行 AI 推理，cachePrefix 为提示缓存标识（可复用的提示前缀或对话会话的标识），为 null 时不使用提示缓存
+     */
+    public String inference(String modelPath, String prompt, String cachePrefix) throws Exception {
+        return runInference(modelPath, prompt, cachePrefix, null, new InferenceRun());
+    }
+
+    /**
+     * 流式推理，作为交互式请求交给调度器排队
+     */
+    public void streamInference(String modelPath, String prompt, InferenceCallback callback) {
+        try {
+            scheduler.submit(modelPath, prompt, InferenceScheduler.Priority.INTERACTIVE, 0, callback);
+        } catch (Exception e) {
+            callback.onError(e.getMessage());
+        }
+    }
+
+    /**
+     * 在当前线程执行一次推理并返回完整输出
+     * callback 非空时逐段回调生成的文本（不会调用 onComplete/onError），run 用于单独取消这一次推理
+     */
+    public String runInference(String modelPath, String prompt, String cachePrefix,
+                               InferenceCallback callback, InferenceRun run) throws Exception {
+        return runInference(modelPath, prompt, cachePrefix, null, callback, run);
+    }
+
+    /**
+     * 使用指定的停止序列执行一次推理，stopSequences 为 null 时使用 setStopSequences 设置的停止序列
+     */
+    public String runInference(String modelPath, String prompt, String cachePrefix, List<String> stopSequences,
+                               InferenceCallback callback, InferenceRun run) throws Exception {
         File modelFile = new File(modelPath);
+        InferenceBackend selected = backend;
+        StopSequenceMatcher matcher = matcherFor(stopSequences);
+        if (selected != null && !selected.isLocal()) {
+            // 外部服务自行管理模型，不检查本地文件和内存
+            return execute(selected, modelFile, prompt, null, snapshotOptions(), matcher, callback, run);
+        }
+
         if (!modelFile.exists()) {
             throw new Exception("模型文件不存在: " + modelPath);
         }
+        applyTuningProfile(modelFile);
+        LaunchOptions options = admit(modelFile, snapshotOptions());
+        return runLocal(selected, modelFile, prompt, cachePrefix, options, matcher, callback, run);
+    }
 
-        // 构建 llama.cpp 命令
-        List<String> command = new ArrayList<>();
-        command.add(getLlamaCppPath());
-        command.add("-m");
-        command.add(modelPath);
-        command.add("-p");
-        command.add(prompt);
-        command.add("-n");
-        command.add(String.valueOf(maxTokens));
-        command.add("--ctx-size");
-        command.add(String.valueOf(contextLength));
-        command.add("--temp");
-        command.add(String.valueOf(temperature));
-        command.add("--top-p");
-        command.add(String.valueOf(topP));
-        command.add("-b");
-        command.add(String.valueOf(batchSize));
+    /**
+     * 已通过内存检查的本地推理，确定性请求走结果缓存
+     */
+    private String runLocal(InferenceBackend selected, File modelFile, String prompt, String cachePrefix,
+                            LaunchOptions options, StopSequenceMatcher matcher, InferenceCallback callback,
+                            InferenceRun run) throws Exception {
+        if (!isResponseCacheable()) {
+            return execute(selected, modelFile, prompt, cachePrefix, options, matcher, callback, run);
+        }
 
-        // 执行命令
-        ProcessBuilder processBuilder = new ProcessBuilder(command);
-        processBuilder.redirectErrorStream(true);
+        // 确定性请求走结果缓存，并发的相同请求只执行一次推理；停止序列决定输出在哪里截断，也是键的一部分
+        long startNanos = System.nanoTime();
+        String key = ResponseCache.key(modelFile, prompt, options.contextLength, options.batchSize,
+                temperature, topP, maxTokens, matcher.getSequences());
+        boolean[] executed = new boolean[1];
+        String response = responseCache.getOrCompute(key, () -> {
+            executed[0] = true;
+            return execute(selected, modelFile, prompt, cachePrefix, options, matcher, callback, run);
+        });
+        if (!executed[0]) {
+            // 命中缓存或等到了相同请求的结果，单独记入统计，不混进推理的延迟分布
+            InferenceMetrics metrics = new InferenceMetrics();
+            metrics.cacheHit = true;
+            metrics.totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            metrics.firstTokenMs = metrics.totalMs;
+            stats.recordCacheHit(metrics);
+            run.setMetrics(metrics);
+            if (callback != null) {
+                callback.onToken(response, System.nanoTime());
+            }
+        }
+        return response;
+    }
 
-        inferenceProcess = processBuilder.start();
-        isRunning = true;
+    private String execute(InferenceBackend selected, File modelFile, String prompt, String cachePrefix,
+                           LaunchOptions options, StopSequenceMatcher matcher, InferenceCallback callback,
+                           InferenceRun run) throws Exception {
+        GenerationRequest request = new GenerationRequest();
+        // 外部服务的模型参数可能是名称而不是路径，原样传递
+        request.modelPath = selected != null && !selected.isLocal() ? modelFile.getPath() : modelFile.getAbsolutePath();
+        request.prompt = prompt;
+        request.cachePrefix = promptCacheEnabled ? cachePrefix : null;
+        request.options = options;
+        synchronized (this) {
+            request.maxTokens = maxTokens;
+            request.temperature = temperature;
+            request.topP = topP;
+        }
 
-        // 读取输出
-        StringBuilder output = new StringBuilder();
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(inferenceProcess.getInputStream()));
+        activeRuns.add(run);
+        InferenceMetrics metrics = new InferenceMetrics();
+        try {
+            long startNanos = System.nanoTime();
+            StringBuilder output = new StringBuilder();
+            InferenceCallback sink = collectingCallback(output, callback, startNanos, metrics);
+
+            // 生成单独用子任务，命中停止序列时只终止生成，不把整次推理当作取消
+            InferenceRun generation = run.newChild();
+            StopSequenceMatcher.Scanner scanner = matcher.isEmpty() ? null : matcher.newScanner();
+            int[] chunks = new int[1];
+            InferenceCallback generationSink = scanner != null
+                    ? stoppingCallback(sink, scanner, generation, chunks) : sink;
+
+            if (selected == null) {
+                selected = selectLocalBackend(request, metrics);
+            } else {
+                prepareWithDraftFallback(selected, request, metrics);
+            }
+            try {
+                selected.generate(request, generationSink, generation, metrics);
+            } catch (Exception e) {
+                // 停止序列触发的终止会让后端抛出取消异常，此时输出已经完整
+                if (scanner == null || !scanner.isStopped() || run.isCancelled()) {
+                    throw e;
+                }
+            } finally {
+                selected.release(request);
+            }
+            if (run.isCancelled()) {
+                throw new Exception("推理已取消");
+            }
+            if (scanner != null) {
+                finishStop(scanner, sink, metrics, request.maxTokens, chunks[0]);
+            }
 
-        String line;
-        while ((line = reader.readLine()) != null) {
-            output.append(line).append("\n");
+            finishMetrics(metrics, startNanos);
+            run.setMetrics(metrics);
+            return output.toString().trim();
+        } catch (Exception e) {
+            stats.recordFailure();
+            // 取消时进程被杀或连接被断开，统一报告为取消
+            if (run.isCancelled()) {
+                throw new Exception("推理已取消");
+            }
+            throw e;
+        } finally {
+            activeRuns.remove(run);
         }
+    }
 
-        // 等待进程结束
-        int exitCode = inferenceProcess.waitFor();
-        isRunning = false;
-
-        if (exitCode != 0) {
-            throw new Exception("推理失败，退出码: " + exitCode);
+    /**
+     * 批量推理，作为后台任务交给调度器排队，每个条目完成时立即回调
+     */
+    public void batchInference(String modelPath, List<String> prompts, int parallel, BatchCallback callback) {
+        try {
+            scheduler.submitBatch(modelPath, prompts, parallel, null, InferenceScheduler.Priority.BACKGROUND,
+                    callback);
+        } catch (Exception e) {
+            callback.onError(e.getMessage());
         }
+    }
 
-        return output.toString().trim();
+    /**
+     * 在当前线程执行批量推理，应在调度器的任务中调用（见 InferenceScheduler#submitBatch），
+     * 使批量推理受每个模型的并发上限约束
+     * 模型只加载一次，提示作为 llama-server 的并行序列同时生成（-np，连续批处理），
+     * 每个序列分到与单次推理相同的上下文长度；常驻进程不可用时依次执行。
+     * 以批量参数启动的常驻进程在整批结束前一直被占用，不会被其他请求换成别的参数
+     */
+    public BatchResult runBatch(String modelPath, List<String> prompts, int parallel,
+                                BatchCallback callback, InferenceRun run) throws Exception {
+        return runBatch(modelPath, prompts, parallel, null, callback, run);
     }
 
     /**
-     * 流式推理
+     * 使用指定的停止序列执行批量推理，stopSequences 为 null 时使用 setStopSequences 设置的停止序列
      */
-    public void streamInference(String modelPath, String prompt, InferenceCallback callback) {
-        new Thread(() -> {
-            try {
-                File modelFile = new File(modelPath);
-                if (!modelFile.exists()) {
-                    callback.onError("模型文件不存在: " + modelPath);
-                    return;
-                }
+    public BatchResult runBatch(String modelPath, List<String> prompts, int parallel, List<String> stopSequences,
+                                BatchCallback callback, InferenceRun run) throws Exception {
+        File modelFile = new File(modelPath);
+        StopSequenceMatcher matcher = matcherFor(stopSequences);
+        InferenceBackend selected = backend;
+        boolean local = selected == null || selected.isLocal();
+        int slots = Math.max(1, Math.min(parallel, prompts.size()));
+
+        LaunchOptions options;
+        GenerationRequest workerLease = null;
+        if (local) {
+            if (!modelFile.exists()) {
+                throw new Exception("模型文件不存在: " + modelPath);
+            }
+            applyTuningProfile(modelFile);
+            workerLease = new GenerationRequest();
+            workerLease.modelPath = modelFile.getAbsolutePath();
+            options = prepareBatch(selected, modelFile, snapshotOptions(), slots, workerLease);
+            slots = options.parallel;
+        } else {
+            // 外部服务自行决定并行方式，这里只控制同时提交的请求数
+            options = snapshotOptions();
+        }
 
-                List<String> command = new ArrayList<>();
-                command.add(getLlamaCppPath());
-                command.add("-m");
-                command.add(modelPath);
-                command.add("-p");
-                command.add(prompt);
-                command.add("-n");
-                command.add(String.valueOf(maxTokens));
-                command.add("--ctx-size");
-                command.add(String.valueOf(contextLength));
-                command.add("--temp");
-                command.add(String.valueOf(temperature));
-                command.add("--top-p");
-                command.add(String.valueOf(topP));
-                command.add("-b");
-                command.add(String.valueOf(batchSize));
-
-                ProcessBuilder processBuilder = new ProcessBuilder(command);
-                processBuilder.redirectErrorStream(true);
-
-                inferenceProcess = processBuilder.start();
-                isRunning = true;
-
-                BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(inferenceProcess.getInputStream()));
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (!isRunning) {
-                        break;
+        BatchResult result = new BatchResult(prompts.size(), slots);
+        ExecutorService executor = Executors.newFixedThreadPool(slots);
+        activeRuns.add(run);
+        long startMs = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < prompts.size(); i++) {
+                int index = i;
+                executor.execute(() -> {
+                    InferenceRun itemRun = run.newChild();
+                    try {
+                        if (itemRun.isCancelled()) {
+                            throw new Exception("推理已取消");
+                        }
+                        String text = local
+                                ? runLocal(selected, modelFile, prompts.get(index), null, options, matcher, null, itemRun)
+                                : execute(selected, modelFile, prompts.get(index), null, options, matcher, null,
+                                itemRun);
+                        result.setResult(index, text);
+                        callback.onItemComplete(index, text);
+                    } catch (Exception e) {
+                        result.setError(index, e.getMessage());
+                        callback.onItemError(index, e.getMessage());
                     }
-                    callback.onToken(line);
-                }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            run.cancel();
+            Thread.currentThread().interrupt();
+            throw new Exception("推理已取消");
+        } finally {
+            executor.shutdownNow();
+            activeRuns.remove(run);
+            if (workerLease != null && workerLease.options != null) {
+                serverBackend.release(workerLease);
+            }
+        }
 
-                int exitCode = inferenceProcess.waitFor();
-                isRunning = false;
+        result.elapsedMs = System.currentTimeMillis() - startMs;
+        Log.i(TAG, "批量推理完成: " + result);
+        return result;
+    }
 
-                if (exitCode != 0) {
-                    callback.onError("推理失败，退出码: " + exitCode);
-                } else {
-                    callback.onComplete();
-                }
+    /**
+     * 按并行序列数放大上下文并做内存检查，再以批量参数启动常驻进程；
+     * 内存不足时减少并行数，常驻进程不可用时退回逐条执行。
+     * 启动了常驻进程时 lease.options 被设置，批量结束后需释放
+     */
+    private LaunchOptions prepareBatch(InferenceBackend selected, File modelFile, LaunchOptions options, int slots,
+                                       GenerationRequest lease) throws Exception {
+        LaunchOptions batchOptions = options.copy();
+        batchOptions.parallel = slots;
+        batchOptions.contextLength = options.contextLength * slots;
+        batchOptions = admit(modelFile, batchOptions).copy();
+
+        int fit = Math.max(1, batchOptions.contextLength / options.contextLength);
+        batchOptions.parallel = Math.min(batchOptions.parallel, fit);
+        if (batchOptions.parallel == 1 || selected != null) {
+            return single(batchOptions, options);
+        }
 
+        if (persistentWorkerEnabled && serverBackend.isAvailable()) {
+            GenerationRequest request = new GenerationRequest();
+            request.modelPath = modelFile.getAbsolutePath();
+            request.options = batchOptions;
+            try {
+                prepareWithDraftFallback(serverBackend, request, new InferenceMetrics());
+                lease.options = request.options;
+                return request.options;
             } catch (Exception e) {
-                isRunning = false;
-                callback.onError(e.getMessage());
+                Log.w(TAG, "常驻进程不可用，批量推理改为逐条执行: " + e.getMessage());
             }
-        }).start();
+        }
+        return single(batchOptions, options);
+    }
+
+    private static LaunchOptions single(LaunchOptions batchOptions, LaunchOptions options) {
+        batchOptions.parallel = 1;
+        batchOptions.contextLength = Math.min(batchOptions.contextLength, options.contextLength);
+        return batchOptions;
     }
 
     /**
-     * 停止推理
+     * 停止所有正在进行的推理
      */
     public void stopInference() {
-        if (inferenceProcess != null && isRunning) {
-            isRunning = false;
-            inferenceProcess.destroy();
+        for (InferenceRun run : activeRuns) {
+            run.cancel();
         }
     }
 
+    /**
+     * 当前正在进行的推理数量
+     */
+    public int getActiveRunCount() {
+        return activeRuns.size();
+    }
+
     /**
      * 设置推理参数
      */
@@ -169,10 +426,498 @@ public class AIInferenceService {
         this.maxTokens = maxTokens;
     }
 
+    public synchronized int getContextLength() {
+        return contextLength;
+    }
+
+    public synchronized int getMaxTokens() {
+        return maxTokens;
+    }
+
+    /**
+     * 启用或关闭提示缓存
+     */
+    public void setPromptCacheEnabled(boolean enabled) {
+        this.promptCacheEnabled = enabled;
+    }
+
+    /**
+     * 设置推理线程数
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * 设置模型加载方式：mmap 映射和 mlock 锁定内存
+     */
+    public void setMemoryOptions(boolean useMmap, boolean useMlock) {
+        this.useMmap = useMmap;
+        this.useMlock = useMlock;
+    }
+
+    /**
+     * 启用或关闭自动应用调优参数
+     */
+    public void setAutoTuneEnabled(boolean enabled) {
+        this.autoTuneEnabled = enabled;
+        this.tunedModelPath = null;
+    }
+
+    /**
+     * 获取性能调优器
+     */
+    public PerformanceTuner getPerformanceTuner() {
+        return performanceTuner;
+    }
+
+    /**
+     * 对模型执行校准，完成后立即应用结果
+     */
+    public PerformanceTuner.TuningProfile tune(String modelPath, PerformanceTuner.TuningListener listener)
+            throws Exception {
+        PerformanceTuner.TuningProfile profile = performanceTuner.tune(modelPath, listener);
+        tunedModelPath = null;
+        return profile;
+    }
+
+    /**
+     * 切换模型时应用已保存的调优参数，之后显式调用 setParameters 等方法的设置优先
+     */
+    private synchronized void applyTuningProfile(File modelFile) {
+        if (!autoTuneEnabled || modelFile.getAbsolutePath().equals(tunedModelPath)) {
+            return;
+        }
+        tunedModelPath = modelFile.getAbsolutePath();
+
+        PerformanceTuner.TuningProfile profile = performanceTuner.loadProfile(modelFile);
+        if (profile == null) {
+            return;
+        }
+        Log.i(TAG, "应用调优参数: " + profile);
+        this.threads = profile.threads;
+        this.batchSize = profile.batchSize;
+        this.contextLength = profile.contextLength;
+        this.useMmap = profile.useMmap;
+        this.useMlock = profile.useMlock;
+    }
+
+    /**
+     * 等待进行中的生成结束后关闭常驻进程释放内存，下次推理时按需重新启动
+     */
+    public void releaseWorker() throws Exception {
+        serverWorker.stop();
+    }
+
+    /**
+     * 启用或关闭内存准入检查
+     */
+    public void setMemoryAdmissionEnabled(boolean enabled) {
+        this.memoryAdmissionEnabled = enabled;
+    }
+
+    /**
+     * 当前参数的快照，同一次推理内不受其他线程修改参数的影响
+     */
+    private synchronized LaunchOptions snapshotOptions() {
+        LaunchOptions options = new LaunchOptions();
+        options.contextLength = contextLength;
+        options.batchSize = batchSize;
+        options.threads = threads;
+        options.useMmap = useMmap;
+        options.useMlock = useMlock;
+        return options;
+    }
+
+    /**
+     * 检查可用内存能否容纳模型，不足时返回降级后的参数，无法运行时抛出异常
+     */
+    private LaunchOptions admit(File modelFile, LaunchOptions options) throws Exception {
+        String modelPath = modelFile.getAbsolutePath();
+        AIModelManager.ModelInfo model = modelManager.getCatalog().get(modelFile);
+        if (model == null) {
+            throw new Exception("模型文件不存在: " + modelPath);
+        }
+
+        // 超过训练上下文长度没有意义，只会浪费 KV 缓存
+        int maxContext = model.contextLengthTrain * Math.max(1, options.parallel);
+        if (model.contextLengthTrain > 0 && options.contextLength > maxContext) {
+            options = options.copy();
+            options.contextLength = maxContext;
+        }
+
+        if (!memoryAdmissionEnabled) {
+            return attachDraft(model, options, Long.MAX_VALUE);
+        }
+
+        // 常驻进程仍以上次准入的参数运行时内存已经占用，沿用这份参数（可能已降级），不会以未降级的参数重启
+        List<String> requested = options.toArgs();
+        Admission admitted = lastAdmission;
+        if (persistentWorkerEnabled && admitted != null && admitted.matches(modelPath, requested)) {
+            if (serverWorker.isRunning(modelPath, admitted.options.toArgs())) {
+                return admitted.options;
+            }
+            LaunchOptions withoutDraft = admitted.options.withoutDraft();
+            if (serverWorker.isRunning(modelPath, withoutDraft.toArgs())) {
+                return withoutDraft;
+            }
+        }
+
+        MemoryAdmission.Decision decision = memoryAdmission.evaluate(model, options);
+        if (decision.verdict != MemoryAdmission.Verdict.ADMIT && serverWorker.isRunning()) {
+            // 常驻进程切换参数时才会释放内存；空闲时先释放再重新检查，正在生成时不能打断它
+            if (serverWorker.stopIfIdle()) {
+                Log.i(TAG, "释放常驻进程后重新检查内存");
+                decision = memoryAdmission.evaluate(model, options);
+            } else if (decision.verdict == MemoryAdmission.Verdict.REJECT) {
+                throw new Exception("常驻进程正在为其他请求生成，暂时无法释放内存: " + decision.reason);
+            }
+        }
+
+        long headroom = decision.availableBytes - decision.requiredBytes;
+        LaunchOptions result;
+        switch (decision.verdict) {
+            case REJECT:
+                throw new Exception(decision.reason);
+            case DEGRADE:
+                Log.w(TAG, decision.reason);
+                result = attachDraft(model, decision.options, headroom);
+                break;
+            default:
+                result = attachDraft(model, options, headroom);
+                break;
+        }
+        lastAdmission = new Admission(modelPath, requested, result);
+        return result;
+    }
+
+    /**
+     * 一次准入检查：请求的参数和准入后实际使用的参数
+     */
+    private static class Admission {
+        final String modelPath;
+        final List<String> requested;
+        final LaunchOptions options;
+
+        Admission(String modelPath, List<String> requested, LaunchOptions options) {
+            this.modelPath = modelPath;
+            this.requested = requested;
+            this.options = options;
+        }
+
+        boolean matches(String modelPath, List<String> requested) {
+            return this.modelPath.equals(modelPath) && this.requested.equals(requested);
+        }
+    }
+
+    /**
+     * 启用投机解码时为目标模型配上草稿模型；没有合适的草稿模型或剩余内存放不下时按正常解码运行
+     */
+    private LaunchOptions attachDraft(AIModelManager.ModelInfo model, LaunchOptions options, long headroom) {
+        if (!speculativeEnabled || options.draftModelPath != null) {
+            return options;
+        }
+        AIModelManager.ModelInfo draft = modelManager.findDraftModel(model);
+        if (draft == null || rejectedDrafts.contains(model.path + "|" + draft.path)) {
+            return options;
+        }
+
+        // 草稿模型使用与目标模型相同的上下文长度
+        long draftBytes = MemoryAdmission.residentBytes(draft, options);
+        if (draftBytes > headroom) {
+            Log.i(TAG, "剩余内存放不下草稿模型 " + draft.name + "，使用正常解码");
+            return options;
+        }
+        LaunchOptions speculative = options.copy();
+        speculative.draftModelPath = draft.path;
+        return speculative;
+    }
+
+    /**
+     * 启用或关闭投机解码，没有可配对的草稿模型时自动使用正常解码
+     */
+    public void setSpeculativeEnabled(boolean enabled) {
+        this.speculativeEnabled = enabled;
+    }
+
+    public boolean isSpeculativeEnabled() {
+        return speculativeEnabled;
+    }
+
+    /**
+     * 模型可配对的草稿模型，没有时返回 null
+     */
+    public AIModelManager.ModelInfo findDraftModel(String modelPath) {
+        return modelManager.findDraftModel(modelManager.getCatalog().get(new File(modelPath)));
+    }
+
+    /**
+     * 启用或关闭结果缓存，只对 temperature 为 0 的确定性请求生效
+     */
+    public void setResponseCacheEnabled(boolean enabled) {
+        this.responseCacheEnabled = enabled;
+    }
+
+    /**
+     * 获取结果缓存，用于查询命中统计或清空
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    private boolean isResponseCacheable() {
+        return responseCacheEnabled && temperature <= 0f;
+    }
+
+    /**
+     * 获取提示缓存管理器，用于查询命中统计或调整容量
+     */
+    public PromptCacheManager getPromptCache() {
+        return promptCache;
+    }
+
+    /**
+     * 最近一次推理的首个令牌延迟（毫秒），尚无数据时返回 -1
+     */
+    public long getLastFirstTokenLatencyMs() {
+        InferenceMetrics metrics = stats.getLastMetrics();
+        return metrics != null ? metrics.firstTokenMs : -1;
+    }
+
+    /**
+     * 获取推理性能统计
+     */
+    public InferenceStats getStats() {
+        return stats;
+    }
+
+    private void finishMetrics(InferenceMetrics metrics, long startNanos) {
+        metrics.totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        stats.record(metrics);
+    }
+
+    /**
+     * 设置停止序列，为空时只在模型输出结束符或达到 maxTokens 时停止
+     */
+    public void setStopSequences(List<String> sequences) {
+        this.stopMatcher = new StopSequenceMatcher(sequences != null ? sequences : Collections.emptyList());
+    }
+
+    public List<String> getStopSequences() {
+        return stopMatcher.getSequences();
+    }
+
+    private StopSequenceMatcher matcherFor(List<String> stopSequences) {
+        return stopSequences != null ? new StopSequenceMatcher(stopSequences) : stopMatcher;
+    }
+
+    /**
+     * 逐段检查停止序列，只放行确定不属于停止序列的文本；命中时立即终止进程或断开请求
+     */
+    private static InferenceCallback stoppingCallback(InferenceCallback sink, StopSequenceMatcher.Scanner scanner,
+                                                      InferenceRun generation, int[] chunks) {
+        return new InferenceCallback() {
+            @Override
+            public void onToken(String token) {
+                onToken(token, System.nanoTime());
+            }
+
+            @Override
+            public void onToken(String token, long timestampNanos) {
+                if (scanner.isStopped()) {
+                    return;
+                }
+                chunks[0]++;
+                String safe = scanner.feed(token);
+                if (!safe.isEmpty()) {
+                    sink.onToken(safe, timestampNanos);
+                }
+                if (scanner.isStopped()) {
+                    generation.cancel();
+                }
+            }
+
+            @Override
+            public void onComplete() {
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        };
+    }
+
+    /**
+     * 正常结束时放行暂存的文本；提前结束时记录省下的令牌数（按回调次数近似已生成的令牌数）
+     */
+    private static void finishStop(StopSequenceMatcher.Scanner scanner, InferenceCallback sink,
+                                   InferenceMetrics metrics, int maxTokens, int chunks) {
+        if (!scanner.isStopped()) {
+            String rest = scanner.flush();
+            if (!rest.isEmpty()) {
+                sink.onToken(rest, System.nanoTime());
+            }
+            return;
+        }
+        int generated = metrics.evalTokens > 0 ? metrics.evalTokens : chunks;
+        metrics.tokensSaved = Math.max(0, maxTokens - generated);
+        metrics.stopSequence = scanner.getMatched();
+    }
+
+    /**
+     * 包装回调，累积输出并记录首个令牌到达时间
+     */
+    private InferenceCallback collectingCallback(StringBuilder output, InferenceCallback callback,
+                                                 long startNanos, InferenceMetrics metrics) {
+        return new InferenceCallback() {
+            @Override
+            public void onToken(String token) {
+                onToken(token, System.nanoTime());
+            }
+
+            @Override
+            public void onToken(String token, long timestampNanos) {
+                if (output.length() == 0) {
+                    metrics.firstTokenMs = TimeUnit.NANOSECONDS.toMillis(timestampNanos - startNanos);
+                }
+                output.append(token);
+                if (callback != null) {
+                    callback.onToken(token, timestampNanos);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        };
+    }
+
+    /**
+     * 启用或关闭常驻工作进程模式
+     */
+    public void setPersistentWorkerEnabled(boolean enabled) {
+        this.persistentWorkerEnabled = enabled;
+        if (!enabled) {
+            serverWorker.shutdown();
+            serverWorker = new LlamaServerWorker(getLlamaServerPath());
+            serverBackend = new LlamaServerBackend(serverWorker);
+        }
+    }
+
+    /**
+     * 设置常驻进程空闲多久后自动关闭
+     */
+    public void setWorkerIdleTimeout(long idleTimeoutMs) {
+        serverWorker.setIdleTimeout(idleTimeoutMs);
+    }
+
+    /**
+     * 使用指定的推理后端，例如已经在 Termux 中运行的 llama-server 或 Ollama；为 null 时恢复使用本地 llama.cpp
+     */
+    public void setBackend(InferenceBackend backend) {
+        InferenceBackend previous = this.backend;
+        this.backend = backend;
+        if (previous != null && previous != backend) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * 当前使用的推理后端名称
+     */
+    public String getBackendName() {
+        InferenceBackend selected = backend;
+        if (selected != null) {
+            return selected.getName();
+        }
+        return persistentWorkerEnabled && serverBackend.isAvailable()
+                ? serverBackend.getName() : processBackend.getName();
+    }
+
+    /**
+     * 当前后端是否需要本地模型文件
+     */
+    public boolean isLocalBackend() {
+        InferenceBackend selected = backend;
+        return selected == null || selected.isLocal();
+    }
+
+    /**
+     * 优先使用常驻进程，不可用时回退到单次进程模式
+     */
+    private InferenceBackend selectLocalBackend(GenerationRequest request, InferenceMetrics metrics) {
+        if (persistentWorkerEnabled && serverBackend.isAvailable()) {
+            try {
+                prepareWithDraftFallback(serverBackend, request, metrics);
+                return serverBackend;
+            } catch (Exception e) {
+                Log.w(TAG, "常驻进程不可用，回退到单次进程模式: " + e.getMessage());
+            }
+        }
+        return processBackend;
+    }
+
+    /**
+     * 带草稿模型启动失败时（如词表不兼容）记录这个组合，改用正常解码重试
+     */
+    private void prepareWithDraftFallback(InferenceBackend selected, GenerationRequest request,
+                                          InferenceMetrics metrics) throws Exception {
+        try {
+            prepare(selected, request, metrics);
+        } catch (Exception e) {
+            if (request.options.draftModelPath == null) {
+                throw e;
+            }
+            Log.w(TAG, "草稿模型加载失败，改用正常解码: " + e.getMessage());
+            rejectedDrafts.add(request.modelPath + "|" + request.options.draftModelPath);
+            request.options = request.options.withoutDraft();
+            prepare(selected, request, metrics);
+        }
+    }
+
+    private static void prepare(InferenceBackend selected, GenerationRequest request, InferenceMetrics metrics)
+            throws Exception {
+        long startMs = System.currentTimeMillis();
+        if (selected.prepare(request)) {
+            metrics.modelLoaded = true;
+            metrics.loadMs = System.currentTimeMillis() - startMs;
+        }
+    }
+
+    /**
+     * 获取 llama.cpp 服务端路径
+     */
+    private String getLlamaServerPath() {
+        File dir = new File(context.getExternalFilesDir(null), "llama.cpp");
+        for (String name : new String[]{"llama-server", "server"}) {
+            File server = new File(dir, name);
+            if (server.exists()) {
+                return server.getAbsolutePath();
+            }
+        }
+
+        if (new File("/data/local/tmp/llama-server").exists()) {
+            return "/data/local/tmp/llama-server";
+        }
+
+        return new File(dir, "llama-server").getAbsolutePath();
+    }
+
+    /**
+     * 模型信息，文件不存在时返回 null
+     */
+    AIModelManager.ModelInfo getModelInfo(File modelFile) {
+        return modelManager.getCatalog().get(modelFile);
+    }
+
     /**
      * 获取 llama.cpp 路径
      */
-    private String getLlamaCppPath() {
+    String getLlamaCppPath() {
         // 检查是否存在预编译的 llama.cpp
         File llamaCpp = new File(context.getExternalFilesDir(null), "llama.cpp/main");
         if (llamaCpp.exists()) {
@@ -199,7 +944,64 @@ public class AIInferenceService {
      * 清理资源
      */
     public void cleanup() {
+        scheduler.shutdown();
         stopInference();
+        serverWorker.shutdown();
+        InferenceBackend selected = backend;
+        if (selected != null) {
+            selected.shutdown();
+        }
+    }
+
+    /**
+     * 批量推理回调接口，条目回调可能来自多个线程
+     */
+    public interface BatchCallback {
+        void onItemComplete(int index, String result);
+        void onItemError(int index, String error);
+        void onComplete(BatchResult result);
+        void onError(String error);
+    }
+
+    /**
+     * 批量推理结果
+     */
+    public static class BatchResult {
+        public final String[] results;
+        public final String[] errors;
+        public final int parallel;
+        public int completed;
+        public int failed;
+        public long elapsedMs;
+
+        public BatchResult(int size, int parallel) {
+            this.results = new String[size];
+            this.errors = new String[size];
+            this.parallel = parallel;
+        }
+
+        synchronized void setResult(int index, String result) {
+            results[index] = result;
+            completed++;
+        }
+
+        synchronized void setError(int index, String error) {
+            errors[index] = error;
+            failed++;
+        }
+
+        /**
+         * 吞吐量（条/分钟）
+         */
+        public double getItemsPerMinute() {
+            return elapsedMs > 0 ? completed * 60000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("成功 %d，失败 %d，并行 %d，耗时 %.1f 秒，%.1f 条/分钟",
+                    completed, failed, parallel, elapsedMs / 1000.0, getItemsPerMinute());
+        }
     }
 
     /**
@@ -207,6 +1009,14 @@ public class AIInferenceService {
      */
     public interface InferenceCallback {
         void onToken(String token);
+
+        /**
+         * 带到达时间戳的令牌回调，timestampNanos 为 System.nanoTime()
+         */
+        default void onToken(String token, long timestampNanos) {
+            onToken(token);
+        }
+
         void onComplete();
         void onError(String error);
     }
@@ -0,0 +1,394 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import com.android.aiassistant.utils.AIModelManager;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多轮对话会话
+ * 保存对话记录，每轮把 系统提示 + 窗口内的历史 + 新消息 拼成提示。
+ * 提示缓存文件以系统提示为标识，各轮共用同一个文件：llama.cpp 复用文件中与新提示的最长公共前缀，
+ * 只求值上一轮的回复和新消息，再用本轮提示覆盖文件；llama-server 的 cache_prompt 同样在槽位内复用公共前缀。
+ * 历史超出上下文预算时整段滑动窗口（系统提示固定保留），一次腾出较多空间，
+ * 滑动或压缩之后公共前缀只到变化处为止，之后的多轮又能持续复用
+ */
+public class ConversationSession {
+
+    private static final String TAG = "ConversationSession";
+
+    // 超出预算后把历史缩减到预算的这个比例，避免每轮都滑动导致前缀变化
+    private static final double WINDOW_LOW_WATERMARK = 0.6;
+    // 原文历史超过预算的这个比例时可以压缩
+    private static final double COMPACT_TRIGGER = 0.5;
+    // 压缩时保留最近的消息原文
+    private static final int KEEP_RECENT_MESSAGES = 4;
+
+    private final AIInferenceService inferenceService;
+    private final String systemPrompt;
+    private final List<Turn> turns = new ArrayList<>();
+
+    private PromptFormat format = PromptFormat.PLAIN;
+    // 窗口内第一轮在 turns 中的下标，之前的轮次仍保留在记录中但不再发送给模型
+    private int windowStart;
+    // 较早轮次的摘要，覆盖 turns 中 digestEnd 之前的部分
+    private String digest;
+    private int digestEnd;
+    // reset 时递增，丢弃基于旧记录的压缩结果
+    private int generation;
+    private HistoryCompactor compactor;
+
+    public ConversationSession(AIInferenceService inferenceService, String systemPrompt) {
+        this.inferenceService = inferenceService;
+        this.systemPrompt = systemPrompt;
+    }
+
+    /**
+     * 按模型自带的对话模板选择提示格式
+     */
+    public synchronized void setModel(AIModelManager.ModelInfo model) {
+        PromptFormat newFormat = PromptFormat.detect(model);
+        if (newFormat != format) {
+            Log.i(TAG, "提示格式: " + newFormat);
+            format = newFormat;
+        }
+    }
+
+    /**
+     * 设置历史压缩器，每轮结束后由它决定是否在空闲时压缩较早的轮次
+     */
+    public synchronized void setCompactor(HistoryCompactor compactor) {
+        this.compactor = compactor;
+    }
+
+    /**
+     * 为新消息构建提示，不修改会话；推理成功后调用 commit 记录这一轮
+     */
+    public Prompt prepare(String message) {
+        HistoryCompactor activeCompactor;
+        synchronized (this) {
+            activeCompactor = compactor;
+        }
+        // 用户开始新的一轮时让出模型，压缩只在空闲时进行
+        if (activeCompactor != null) {
+            activeCompactor.onUserActivity();
+        }
+        return buildPrompt(message);
+    }
+
+    private synchronized Prompt buildPrompt(String message) {
+        int budget = getBudget();
+        String system = systemText();
+        int fixedTokens = estimateTokens(system) + estimateTokens(format.user(message))
+                + estimateTokens(format.assistantPrefix());
+
+        if (fixedTokens + historyTokens(historyStart()) > budget) {
+            slideWindow(budget - fixedTokens);
+        }
+
+        StringBuilder prefix = new StringBuilder(system);
+        for (int i = historyStart(); i < turns.size(); i++) {
+            Turn turn = turns.get(i);
+            prefix.append(turn.role == Role.USER ? format.user(turn.text) : format.assistant(turn.text));
+        }
+
+        Prompt prompt = new Prompt();
+        prompt.cachePrefix = cacheIdentity();
+        prompt.text = prefix + format.user(message) + format.assistantPrefix();
+        prompt.windowTurns = turns.size() - historyStart();
+        prompt.droppedTurns = windowStart;
+        prompt.compactedTurns = digestEnd;
+        prompt.estimatedTokens = estimateTokens(prompt.text);
+        return prompt;
+    }
+
+    /**
+     * 记录成功完成的一轮，metrics 为这一轮推理的指标，没有时为 null
+     */
+    public void commit(String message, String reply, InferenceMetrics metrics) {
+        HistoryCompactor activeCompactor;
+        synchronized (this) {
+            turns.add(new Turn(Role.USER, message));
+            turns.add(new Turn(Role.ASSISTANT, reply));
+            activeCompactor = compactor;
+        }
+        if (activeCompactor != null) {
+            activeCompactor.onTurnCommitted(this, metrics);
+        }
+    }
+
+    /**
+     * 原文历史是否已经大到值得压缩
+     */
+    synchronized boolean needsCompaction() {
+        int start = historyStart();
+        return turns.size() - start > KEEP_RECENT_MESSAGES
+                && historyTokens(start) > getBudget() * COMPACT_TRIGGER;
+    }
+
+    /**
+     * 取出待压缩的较早轮次（连同已有摘要）构造摘要请求，没有可压缩的内容时返回 null
+     */
+    synchronized CompactionJob beginCompaction() {
+        int start = historyStart();
+        int end = turns.size() - KEEP_RECENT_MESSAGES;
+        if (end <= start) {
+            return null;
+        }
+
+        StringBuilder transcript = new StringBuilder();
+        if (digest != null) {
+            transcript.append("之前的摘要：\n").append(digest).append("\n\n");
+        }
+        for (int i = start; i < end; i++) {
+            Turn turn = turns.get(i);
+            transcript.append(turn.role == Role.USER ? "用户: " : "助手: ").append(turn.text).append("\n");
+        }
+
+        CompactionJob job = new CompactionJob();
+        job.generation = generation;
+        job.from = digestEnd;
+        job.to = end;
+        job.replacedTokens = historyTokens(start) - historyTokens(end)
+                + (digest != null ? estimateTokens(digest) : 0);
+        job.prompt = format.user("把下面的对话压缩成简短摘要，保留关键事实、用户偏好、已做的决定和未解决的问题，"
+                + "不要添加对话中没有的内容。\n\n" + transcript) + format.assistantPrefix();
+        return job;
+    }
+
+    /**
+     * 用摘要替换已压缩的轮次；会话在压缩期间被清空或已被其他压缩更新时丢弃结果
+     */
+    synchronized boolean applyCompaction(CompactionJob job, String summary) {
+        if (job.generation != generation || job.from != digestEnd || summary.isEmpty()) {
+            return false;
+        }
+        digest = summary;
+        digestEnd = job.to;
+        windowStart = Math.max(windowStart, digestEnd);
+        Log.i(TAG, "已压缩 " + digestEnd + " 条消息为摘要");
+        return true;
+    }
+
+    /**
+     * 提示可用的令牌预算：上下文长度减去生成长度
+     */
+    int getBudget() {
+        return Math.max(0, inferenceService.getContextLength() - inferenceService.getMaxTokens());
+    }
+
+    /**
+     * 系统提示，有摘要时附在后面
+     */
+    private String systemText() {
+        if (digest == null) {
+            return systemPrompt != null ? format.system(systemPrompt) : "";
+        }
+        String summary = "之前对话的摘要：\n" + digest;
+        return format.system(systemPrompt != null ? systemPrompt + "\n\n" + summary : summary);
+    }
+
+    /**
+     * 提示缓存文件的标识，不随历史变化；系统提示和格式相同的各轮共用一个缓存文件
+     */
+    private String cacheIdentity() {
+        return "conversation|" + format + "|" + (systemPrompt != null ? systemPrompt : "");
+    }
+
+    /**
+     * 以原文发送的第一条消息
+     */
+    private int historyStart() {
+        return Math.max(windowStart, digestEnd);
+    }
+
+    /**
+     * 在当前线程发送一条消息并记录回复
+     */
+    public String send(String modelPath, String message, AIInferenceService.InferenceCallback callback,
+                       InferenceRun run) throws Exception {
+        Prompt prompt = prepare(message);
+        String reply = inferenceService.runInference(modelPath, prompt.text, prompt.cachePrefix, callback, run);
+        commit(message, reply, run.getMetrics());
+        return reply;
+    }
+
+    /**
+     * 清空对话记录，系统提示保留
+     */
+    public synchronized void reset() {
+        turns.clear();
+        windowStart = 0;
+        digest = null;
+        digestEnd = 0;
+        generation++;
+    }
+
+    /**
+     * 当前的历史摘要，尚未压缩时返回 null
+     */
+    public synchronized String getDigest() {
+        return digest;
+    }
+
+    /**
+     * 完整的对话记录，包括已滑出窗口的轮次
+     */
+    public synchronized List<Turn> getTurns() {
+        return new ArrayList<>(turns);
+    }
+
+    /**
+     * 已滑出窗口、不再发送给模型的轮次数
+     */
+    public synchronized int getDroppedTurnCount() {
+        return windowStart;
+    }
+
+    /**
+     * 按问答对滑动窗口，直到历史不超过可用预算的低水位
+     */
+    private void slideWindow(int available) {
+        int target = (int) (Math.max(0, available) * WINDOW_LOW_WATERMARK);
+        int start = historyStart();
+        while (start < turns.size() && historyTokens(start) > target) {
+            start += 2;
+        }
+        start = Math.min(start, turns.size());
+        if (start != windowStart) {
+            Log.i(TAG, "历史超出上下文预算，滑出 " + (start - windowStart) + " 条消息");
+            windowStart = start;
+        }
+    }
+
+    private int historyTokens(int from) {
+        int tokens = 0;
+        for (int i = from; i < turns.size(); i++) {
+            tokens += turns.get(i).tokens;
+        }
+        return tokens;
+    }
+
+    /**
+     * 粗略估算令牌数：中日韩字符约每字一个令牌，其他文本约每 4 个字符一个令牌
+     */
+    public static int estimateTokens(String text) {
+        return estimateTokens(text, 4);
+    }
+
+    /**
+     * 按指定的非中日韩字符每令牌字符数估算；日志、代码等切分较碎的文本应取更小的值
+     */
+    public static int estimateTokens(String text, double charsPerToken) {
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isIdeographic(c) || (c >= 0x3040 && c <= 0x30FF) || (c >= 0xAC00 && c <= 0xD7AF)) {
+                cjk++;
+            } else {
+                other++;
+            }
+        }
+        return cjk + (int) Math.ceil(other / charsPerToken);
+    }
+
+    /**
+     * 一轮消息
+     */
+    public class Turn {
+        public final Role role;
+        public final String text;
+        // 按当前格式估算的令牌数，含角色标记
+        final int tokens;
+
+        Turn(Role role, String text) {
+            this.role = role;
+            this.text = text;
+            this.tokens = estimateTokens(role == Role.USER ? format.user(text) : format.assistant(text));
+        }
+    }
+
+    public enum Role {
+        USER,
+        ASSISTANT
+    }
+
+    /**
+     * 一轮的提示
+     */
+    public static class Prompt {
+        public String text;
+        // 提示缓存标识，同一会话的各轮相同
+        public String cachePrefix;
+        public int windowTurns;
+        public int droppedTurns;
+        // 已被摘要替代的消息数
+        public int compactedTurns;
+        public int estimatedTokens;
+    }
+
+    /**
+     * 一次压缩：把 [from, to) 的消息连同已有摘要压缩为新摘要
+     */
+    static class CompactionJob {
+        int generation;
+        int from;
+        int to;
+        String prompt;
+        // 被替换的原文和旧摘要的估算令牌数
+        int replacedTokens;
+    }
+
+    /**
+     * 提示格式，对应常见的 GGUF 对话模板
+     */
+    public enum PromptFormat {
+        CHATML("<|im_start|>system\n", "<|im_start|>user\n", "<|im_start|>assistant\n", "<|im_end|>\n"),
+        LLAMA3("<|start_header_id|>system<|end_header_id|>\n\n", "<|start_header_id|>user<|end_header_id|>\n\n",
+                "<|start_header_id|>assistant<|end_header_id|>\n\n", "<|eot_id|>"),
+        PLAIN("", "用户: ", "助手: ", "\n");
+
+        private final String systemStart;
+        private final String userStart;
+        private final String assistantStart;
+        private final String end;
+
+        PromptFormat(String systemStart, String userStart, String assistantStart, String end) {
+            this.systemStart = systemStart;
+            this.userStart = userStart;
+            this.assistantStart = assistantStart;
+            this.end = end;
+        }
+
+        String system(String text) {
+            return systemStart + text + end;
+        }
+
+        String user(String text) {
+            return userStart + text + end;
+        }
+
+        String assistant(String text) {
+            return assistantStart + text + end;
+        }
+
+        String assistantPrefix() {
+            return assistantStart;
+        }
+
+        static PromptFormat detect(AIModelManager.ModelInfo model) {
+            String template = model != null ? model.chatTemplate : null;
+            if (template == null) {
+                return PLAIN;
+            }
+            if (template.contains("<|im_start|>")) {
+                return CHATML;
+            }
+            if (template.contains("<|start_header_id|>")) {
+                return LLAMA3;
+            }
+            return PLAIN;
+        }
+    }
+}
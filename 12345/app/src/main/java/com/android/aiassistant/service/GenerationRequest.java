@@ -0,0 +1,16 @@
+package com.android.aiassistant.service;
+
+/**
+ * 一次生成请求
+ * 交给推理后端执行的全部参数，由 AIInferenceService 按当前设置生成
+ */
+public class GenerationRequest {
+    public String modelPath;
+    public String prompt;
+    // 提示缓存标识（可复用的提示前缀或会话标识），为 null 时不使用提示缓存
+    public String cachePrefix;
+    public LaunchOptions options;
+    public int maxTokens;
+    public float temperature;
+    public float topP;
+}
@@ -0,0 +1,217 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对话历史压缩
+ * 对话空闲一段时间后，用当前模型把较早的轮次总结成简短摘要，之后的提示用摘要代替原文，
+ * 缩短每轮需要求值的提示。摘要请求以后台优先级排队，用户发出新消息时立即取消，不占用交互路径
+ */
+public class HistoryCompactor {
+
+    private static final String TAG = "HistoryCompactor";
+
+    private static final long DEFAULT_IDLE_DELAY_MS = 5000;
+    private static final long SUMMARY_TIMEOUT_MS = 3 * 60 * 1000;
+    private static final int STATS_WINDOW = 50;
+
+    private final InferenceScheduler scheduler;
+    private final ScheduledExecutorService executor;
+    private final CompactionStats stats = new CompactionStats();
+
+    private volatile String modelPath;
+    private boolean enabled = true;
+    private long idleDelayMs = DEFAULT_IDLE_DELAY_MS;
+    private ScheduledFuture<?> pendingTask;
+    private InferenceScheduler.InferenceRequest runningRequest;
+    // 每次取消时递增，已经开始的压缩在提交摘要请求前核对，避免取消之后才提交
+    private int generation;
+
+    public HistoryCompactor(InferenceScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 摘要使用的模型，与对话使用同一个，避免切换模型
+     */
+    public void setModelPath(String modelPath) {
+        this.modelPath = modelPath;
+    }
+
+    /**
+     * 启用或关闭自动压缩
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            cancelLocked();
+        }
+    }
+
+    /**
+     * 设置对话空闲多久后开始压缩
+     */
+    public synchronized void setIdleDelay(long idleDelayMs) {
+        this.idleDelayMs = idleDelayMs;
+    }
+
+    public CompactionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 每轮结束后调用：记录这一轮的提示大小和首令牌延迟，历史足够长时安排一次空闲压缩。
+     * metrics 为这一轮推理自己的指标，没有指标或命中结果缓存（没有实际推理）时不计入统计
+     */
+    void onTurnCommitted(ConversationSession session, InferenceMetrics metrics) {
+        if (metrics != null && !metrics.cacheHit) {
+            // 按会话当前是否有摘要区分压缩前后，会话重置后重新计入压缩前
+            stats.recordTurn(metrics, session.getDigest() != null);
+        }
+
+        synchronized (this) {
+            if (!enabled || modelPath == null || !session.needsCompaction()) {
+                return;
+            }
+            cancelLocked();
+            int scheduled = generation;
+            pendingTask = executor.schedule(() -> compact(session, scheduled), idleDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 用户开始新的一轮：取消尚未开始或正在进行的压缩，下一轮结束后重新安排
+     */
+    synchronized void onUserActivity() {
+        cancelLocked();
+    }
+
+    /**
+     * 关闭压缩线程
+     */
+    public synchronized void shutdown() {
+        cancelLocked();
+        executor.shutdownNow();
+    }
+
+    private void cancelLocked() {
+        generation++;
+        if (pendingTask != null) {
+            pendingTask.cancel(false);
+            pendingTask = null;
+        }
+        if (runningRequest != null) {
+            runningRequest.cancel();
+            runningRequest = null;
+        }
+    }
+
+    private void compact(ConversationSession session, int scheduled) {
+        ConversationSession.CompactionJob job = session.beginCompaction();
+        if (job == null) {
+            return;
+        }
+
+        InferenceScheduler.InferenceRequest request;
+        synchronized (this) {
+            // 构造摘要请求期间用户可能已经发出新消息
+            if (!enabled || generation != scheduled) {
+                return;
+            }
+            try {
+                // 待压缩的对话记录含有 "用户:"，只按模板标记停止，避免摘要复述对话时被截断
+                request = scheduler.submit(modelPath, job.prompt, null, AIInferenceService.TEMPLATE_STOP_SEQUENCES,
+                        InferenceScheduler.Priority.BACKGROUND, SUMMARY_TIMEOUT_MS, null);
+            } catch (Exception e) {
+                Log.w(TAG, "无法提交压缩请求: " + e.getMessage());
+                return;
+            }
+            runningRequest = request;
+        }
+
+        long startMs = System.currentTimeMillis();
+        String summary;
+        try {
+            summary = request.await(SUMMARY_TIMEOUT_MS).trim();
+        } catch (Exception e) {
+            // 被新消息取消或超时，下一轮结束后再试
+            Log.i(TAG, "压缩未完成: " + e.getMessage());
+            return;
+        } finally {
+            synchronized (this) {
+                if (runningRequest == request) {
+                    runningRequest = null;
+                }
+            }
+        }
+
+        if (session.applyCompaction(job, summary)) {
+            int digestTokens = ConversationSession.estimateTokens(summary);
+            stats.recordCompaction(job.replacedTokens, digestTokens, System.currentTimeMillis() - startMs);
+            Log.i(TAG, "压缩完成: " + job.replacedTokens + " -> " + digestTokens + " 令牌");
+        }
+    }
+
+    /**
+     * 压缩效果统计：摘要替换掉的令牌数，以及压缩前后每轮的提示令牌数和首令牌延迟，用于调整触发条件
+     */
+    public static class CompactionStats {
+        private final InferenceStats.RollingHistogram promptTokensBefore = new InferenceStats.RollingHistogram(STATS_WINDOW);
+        private final InferenceStats.RollingHistogram promptTokensAfter = new InferenceStats.RollingHistogram(STATS_WINDOW);
+        private final InferenceStats.RollingHistogram firstTokenMsBefore = new InferenceStats.RollingHistogram(STATS_WINDOW);
+        private final InferenceStats.RollingHistogram firstTokenMsAfter = new InferenceStats.RollingHistogram(STATS_WINDOW);
+
+        private int compactions;
+        private long replacedTokens;
+        private long digestTokens;
+        private long summaryMs;
+
+        synchronized void recordTurn(InferenceMetrics metrics, boolean compacted) {
+            if (compacted) {
+                promptTokensAfter.add(metrics.promptTokens);
+                firstTokenMsAfter.add(metrics.firstTokenMs);
+            } else {
+                promptTokensBefore.add(metrics.promptTokens);
+                firstTokenMsBefore.add(metrics.firstTokenMs);
+            }
+        }
+
+        synchronized void recordCompaction(int replaced, int digest, long elapsedMs) {
+            compactions++;
+            replacedTokens += replaced;
+            digestTokens += digest;
+            summaryMs += elapsedMs;
+        }
+
+        public synchronized int getCompactions() {
+            return compactions;
+        }
+
+        /**
+         * 摘要相对原文减少的令牌比例
+         */
+        public synchronized double getReduction() {
+            return replacedTokens > 0 ? 1.0 - (double) digestTokens / replacedTokens : 0;
+        }
+
+        public synchronized String format() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("压缩 %d 次，原文 %d 令牌 -> 摘要 %d 令牌 (减少 %.0f%%)，摘要耗时 %d ms\n",
+                    compactions, replacedTokens, digestTokens, getReduction() * 100, summaryMs));
+            result.append(String.format("提示令牌 p50: 压缩前 %.0f，压缩后 %.0f\n",
+                    promptTokensBefore.percentile(50), promptTokensAfter.percentile(50)));
+            result.append(String.format("首令牌 p50: 压缩前 %.0f ms，压缩后 %.0f ms\n",
+                    firstTokenMsBefore.percentile(50), firstTokenMsAfter.percentile(50)));
+            return result.toString();
+        }
+    }
+}
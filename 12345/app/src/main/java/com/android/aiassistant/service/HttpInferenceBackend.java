@@ -0,0 +1,80 @@
+package com.android.aiassistant.service;
+
+import com.google.gson.JsonObject;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 基于 HTTP 的推理后端
+ * 所有 HTTP 后端共用一个 OkHttpClient，同一服务端的连接在请求之间复用
+ */
+public abstract class HttpInferenceBackend implements InferenceBackend {
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // 流式生成可能持续很久，不设读取超时，由 InferenceRun 取消
+    static final OkHttpClient HTTP_CLIENT = new OkHttpClient.Builder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(0, TimeUnit.MILLISECONDS)
+            .build();
+
+    // 可用性探测需要快速返回
+    private static final OkHttpClient PROBE_CLIENT = HTTP_CLIENT.newBuilder()
+            .callTimeout(2, TimeUnit.SECONDS)
+            .build();
+
+    protected final String baseUrl;
+
+    protected HttpInferenceBackend(String baseUrl) {
+        this.baseUrl = baseUrl != null && baseUrl.endsWith("/")
+                ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        Request request = new Request.Builder()
+                .url(baseUrl + getHealthPath())
+                .get()
+                .build();
+        try (Response response = PROBE_CLIENT.newCall(request).execute()) {
+            return response.isSuccessful();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 可用性探测的路径
+     */
+    protected abstract String getHealthPath();
+
+    /**
+     * 提交 JSON 请求，返回成功的响应，调用方负责关闭
+     */
+    protected Response post(String path, JsonObject body, InferenceRun run) throws Exception {
+        Request request = new Request.Builder()
+                .url(baseUrl + path)
+                .post(RequestBody.create(body.toString(), JSON))
+                .build();
+        Call call = HTTP_CLIENT.newCall(request);
+        run.attach(call);
+        Response response = call.execute();
+        if (!response.isSuccessful()) {
+            int code = response.code();
+            String detail = response.body() != null ? response.body().string() : "";
+            response.close();
+            throw new Exception(getName() + " 返回错误: HTTP " + code
+                    + (detail.isEmpty() ? "" : " (" + detail.trim() + ")"));
+        }
+        return response;
+    }
+}
@@ -0,0 +1,50 @@
+package com.android.aiassistant.service;
+
+/**
+ * 推理后端
+ * 本地进程、llama-server 和 Ollama 等不同的执行方式，生成的文本统一逐段回调给 InferenceCallback
+ */
+public interface InferenceBackend {
+
+    /**
+     * 后端名称，用于日志和状态显示
+     */
+    String getName();
+
+    /**
+     * 后端当前是否可用
+     */
+    boolean isAvailable();
+
+    /**
+     * 是否在本机加载模型文件；外部服务自行管理模型，不做内存检查和参数调优
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /**
+     * 确保模型已就绪，本次调用加载了模型时返回 true；成功后必须调用一次 release
+     */
+    default boolean prepare(GenerationRequest request) throws Exception {
+        return false;
+    }
+
+    /**
+     * 生成结束，释放 prepare 为这次请求占用的模型进程
+     */
+    default void release(GenerationRequest request) {
+    }
+
+    /**
+     * 执行一次生成，阻塞到生成结束；run 被取消时应尽快中断并抛出异常
+     */
+    void generate(GenerationRequest request, AIInferenceService.InferenceCallback callback,
+                  InferenceRun run, InferenceMetrics metrics) throws Exception;
+
+    /**
+     * 释放后端持有的资源
+     */
+    default void shutdown() {
+    }
+}
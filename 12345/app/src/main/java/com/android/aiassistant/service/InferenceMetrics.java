@@ -0,0 +1,67 @@
+package com.android.aiassistant.service;
+
+/**
+ * 单次推理的性能指标，未知的字段为 -1
+ */
+public class InferenceMetrics {
+    public long loadMs = -1;
+    public int promptTokens = -1;
+    public double promptEvalMs = -1;
+    public int evalTokens = -1;
+    public double evalMs = -1;
+    public long firstTokenMs = -1;
+    public long totalMs = -1;
+    public boolean modelLoaded;
+    // 投机解码：草稿模型提出的令牌数和被目标模型接受的令牌数
+    public int draftTokens = -1;
+    public int draftAccepted = -1;
+    // 命中停止序列提前结束时，相对 maxTokens 省下的令牌数；未提前结束为 -1
+    public int tokensSaved = -1;
+    public String stopSequence;
+    // 结果由结果缓存直接返回，没有运行推理
+    public boolean cacheHit;
+
+    /**
+     * 提示求值每个令牌耗时
+     */
+    public double promptMsPerToken() {
+        return promptTokens > 0 && promptEvalMs >= 0 ? promptEvalMs / promptTokens : -1;
+    }
+
+    /**
+     * 生成速度
+     */
+    public double evalTokensPerSecond() {
+        return evalTokens > 0 && evalMs > 0 ? evalTokens * 1000.0 / evalMs : -1;
+    }
+
+    /**
+     * 提示求值速度
+     */
+    public double promptTokensPerSecond() {
+        return promptTokens > 0 && promptEvalMs > 0 ? promptTokens * 1000.0 / promptEvalMs : -1;
+    }
+
+    /**
+     * 草稿令牌接受率，未使用投机解码时返回 -1
+     */
+    public double draftAcceptRate() {
+        return draftTokens > 0 && draftAccepted >= 0 ? (double) draftAccepted / draftTokens : -1;
+    }
+
+    @Override
+    public String toString() {
+        if (cacheHit) {
+            return String.format("结果缓存命中, 总计 %d ms", totalMs);
+        }
+        String result = String.format("首令牌 %d ms, 加载 %d ms, 提示 %.1f ms/令牌, 生成 %.1f 令牌/秒, 总计 %d ms",
+                firstTokenMs, loadMs, promptMsPerToken(), evalTokensPerSecond(), totalMs);
+        if (draftTokens > 0) {
+            result += String.format(", 草稿接受 %d/%d (%.0f%%)", draftAccepted, draftTokens, draftAcceptRate() * 100);
+        }
+        if (tokensSaved >= 0) {
+            result += String.format(", 停止序列节省 %d 令牌", tokensSaved);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,75 @@
+package com.android.aiassistant.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.Call;
+
+/**
+ * 单次推理的运行句柄
+ * 持有这次推理对应的进程或 HTTP 请求，取消时只影响它自己
+ */
+public class InferenceRun {
+
+    private Process process;
+    private Call call;
+    private final List<InferenceRun> children = new ArrayList<>();
+    private volatile boolean cancelled;
+    private volatile InferenceMetrics metrics;
+
+    /**
+     * 取消这次推理
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (process != null) {
+            process.destroy();
+        }
+        if (call != null) {
+            call.cancel();
+        }
+        for (InferenceRun child : children) {
+            child.cancel();
+        }
+    }
+
+    /**
+     * 创建随本次推理一起取消的子任务，用于批量推理中的单个条目
+     */
+    public synchronized InferenceRun newChild() {
+        InferenceRun child = new InferenceRun();
+        children.add(child);
+        if (cancelled) {
+            child.cancel();
+        }
+        return child;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 这次推理的性能指标，推理成功结束后才有；命中响应缓存时没有实际推理，返回 null
+     */
+    public InferenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    void setMetrics(InferenceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    synchronized void attach(Process process) {
+        this.process = process;
+        if (cancelled) {
+            process.destroy();
+        }
+    }
+
+    synchronized void attach(Call call) {
+        this.call = call;
+        if (cancelled) {
+            call.cancel();
+        }
+    }
+}
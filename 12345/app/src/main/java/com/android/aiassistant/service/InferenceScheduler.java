@@ -0,0 +1,432 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import com.android.aiassistant.utils.PromptCacheManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 推理请求调度器
+ * 有界队列 + 优先级 + 每个模型的并发上限，避免同时启动多个大模型进程导致内存耗尽；
+ * 单次推理、批量推理、调优和下载等会占用模型或内存的任务都经过这里排队。
+ * 后台任务最多占用除一个以外的全部工作线程，保证交互式请求总有线程可用
+ */
+public class InferenceScheduler {
+
+    private static final String TAG = "InferenceScheduler";
+
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+
+    private final AIInferenceService inferenceService;
+    private final int maxQueueSize;
+    private final int workerCount;
+    private final Object lock = new Object();
+    private final TreeSet<InferenceRequest> pending = new TreeSet<>();
+    private final Map<String, Integer> runningPerModel = new HashMap<>();
+    private int runningBackground;
+    private final List<Thread> workers = new ArrayList<>();
+    private final ScheduledExecutorService timeoutExecutor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private int maxConcurrentPerModel = 1;
+    private boolean shutdown;
+
+    public InferenceScheduler(AIInferenceService inferenceService) {
+        this(inferenceService, DEFAULT_WORKERS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public InferenceScheduler(AIInferenceService inferenceService, int workerCount, int maxQueueSize) {
+        this.inferenceService = inferenceService;
+        this.maxQueueSize = maxQueueSize;
+        this.workerCount = workerCount;
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "inference-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::workerLoop, "inference-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * 设置同一模型允许同时运行的请求数
+     */
+    public void setMaxConcurrentPerModel(int maxConcurrentPerModel) {
+        synchronized (lock) {
+            this.maxConcurrentPerModel = Math.max(1, maxConcurrentPerModel);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 提交推理请求
+     *
+     * @param timeoutMs 从提交开始计时的超时时间，0 表示不限制
+     * @param callback  可为 null；非空时逐段回调生成的文本，结束时回调 onComplete 或 onError
+     */
+    public InferenceRequest submit(String modelPath, String prompt, Priority priority, long timeoutMs,
+                                   AIInferenceService.InferenceCallback callback) throws Exception {
+        return submit(modelPath, prompt, PromptCacheManager.defaultPrefix(prompt), priority, timeoutMs, callback);
+    }
+
+    /**
+     * 提交推理请求，cachePrefix 为提示缓存标识（如对话会话的标识），为 null 时不使用提示缓存
+     */
+    public InferenceRequest submit(String modelPath, String prompt, String cachePrefix, Priority priority,
+                                   long timeoutMs, AIInferenceService.InferenceCallback callback) throws Exception {
+        return submit(modelPath, prompt, cachePrefix, null, priority, timeoutMs, callback);
+    }
+
+    /**
+     * 提交使用指定停止序列的推理请求，stopSequences 为 null 时使用推理服务设置的停止序列
+     */
+    public InferenceRequest submit(String modelPath, String prompt, String cachePrefix, List<String> stopSequences,
+                                   Priority priority, long timeoutMs, AIInferenceService.InferenceCallback callback)
+            throws Exception {
+        return submitTask(modelPath, priority, timeoutMs, run -> inferenceService.runInference(modelPath, prompt,
+                cachePrefix, stopSequences, callback, run), callback);
+    }
+
+    /**
+     * 提交批量推理，整批作为一个请求占用该模型的并发额度，结束时回调 onComplete 或 onError；
+     * stopSequences 为 null 时使用推理服务设置的停止序列
+     */
+    public InferenceRequest submitBatch(String modelPath, List<String> prompts, int parallel,
+                                        List<String> stopSequences, Priority priority,
+                                        AIInferenceService.BatchCallback callback) throws Exception {
+        AIInferenceService.BatchResult[] result = new AIInferenceService.BatchResult[1];
+        return submitTask(modelPath, priority, 0, run -> {
+            result[0] = inferenceService.runBatch(modelPath, prompts, parallel, stopSequences, callback, run);
+            return result[0].toString();
+        }, new AIInferenceService.InferenceCallback() {
+            @Override
+            public void onToken(String token) {
+            }
+
+            @Override
+            public void onComplete() {
+                callback.onComplete(result[0]);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    /**
+     * 提交任意任务，与推理请求一起排队
+     *
+     * @param modelPath 任务使用的模型，占用该模型的并发额度；为 null 时任务不加载模型，不受模型并发限制
+     * @param callback  可为 null；只回调 onComplete 或 onError，不回调令牌
+     */
+    public InferenceRequest submitTask(String modelPath, Priority priority, long timeoutMs, Task task,
+                                       AIInferenceService.InferenceCallback callback) throws Exception {
+        InferenceRequest request = new InferenceRequest(sequence.incrementAndGet(), modelPath, task,
+                priority, callback);
+
+        synchronized (lock) {
+            if (shutdown) {
+                throw new Exception("调度器已关闭");
+            }
+            if (pending.size() >= maxQueueSize) {
+                throw new Exception("推理队列已满 (" + maxQueueSize + ")");
+            }
+            pending.add(request);
+            lock.notifyAll();
+        }
+
+        if (timeoutMs > 0) {
+            request.timeoutTask = timeoutExecutor.schedule(() -> expire(request), timeoutMs,
+                    TimeUnit.MILLISECONDS);
+        }
+        return request;
+    }
+
+    /**
+     * 当前排队中的请求数
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 关闭调度器，取消所有排队和运行中的请求
+     */
+    public void shutdown() {
+        List<InferenceRequest> dropped;
+        synchronized (lock) {
+            shutdown = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            lock.notifyAll();
+        }
+        for (InferenceRequest request : dropped) {
+            request.finish(Status.CANCELLED, null, "调度器已关闭");
+        }
+        inferenceService.stopInference();
+        timeoutExecutor.shutdownNow();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void workerLoop() {
+        while (true) {
+            InferenceRequest request;
+            synchronized (lock) {
+                while ((request = takeRunnable()) == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            try {
+                execute(request);
+            } finally {
+                synchronized (lock) {
+                    if (request.priority == Priority.BACKGROUND) {
+                        runningBackground--;
+                    }
+                    if (request.modelPath != null) {
+                        int running = runningPerModel.get(request.modelPath) - 1;
+                        if (running == 0) {
+                            runningPerModel.remove(request.modelPath);
+                        } else {
+                            runningPerModel.put(request.modelPath, running);
+                        }
+                    }
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 按优先级取出第一个所属模型还有空闲并发额度的请求，调用时需持有 lock；
+     * 后台任务不能占满所有工作线程
+     */
+    private InferenceRequest takeRunnable() {
+        boolean backgroundAllowed = workerCount <= 1 || runningBackground < workerCount - 1;
+        Iterator<InferenceRequest> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            InferenceRequest request = iterator.next();
+            if (request.priority == Priority.BACKGROUND && !backgroundAllowed) {
+                continue;
+            }
+            Integer running = request.modelPath != null ? runningPerModel.get(request.modelPath) : null;
+            if (running == null || running < maxConcurrentPerModel) {
+                iterator.remove();
+                if (request.modelPath != null) {
+                    runningPerModel.put(request.modelPath, running == null ? 1 : running + 1);
+                }
+                if (request.priority == Priority.BACKGROUND) {
+                    runningBackground++;
+                }
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void execute(InferenceRequest request) {
+        if (!request.markRunning()) {
+            return;
+        }
+
+        try {
+            String result = request.task.run(request.run);
+            request.finish(Status.COMPLETED, result, null);
+        } catch (Exception e) {
+            Log.w(TAG, "请求 #" + request.id + " 失败: " + e.getMessage());
+            request.finish(Status.FAILED, null, e.getMessage());
+        }
+    }
+
+    private void expire(InferenceRequest request) {
+        synchronized (lock) {
+            pending.remove(request);
+        }
+        request.finish(Status.TIMED_OUT, null, "推理超时");
+    }
+
+    /**
+     * 排队执行的任务，run 被取消时应尽快结束
+     */
+    public interface Task {
+        String run(InferenceRun run) throws Exception;
+    }
+
+    /**
+     * 请求优先级，交互式对话优先于后台任务
+     */
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    /**
+     * 请求状态
+     */
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED,
+        TIMED_OUT
+    }
+
+    /**
+     * 推理请求句柄
+     */
+    public class InferenceRequest implements Comparable<InferenceRequest> {
+
+        private final long id;
+        private final String modelPath;
+        private final Task task;
+        private final Priority priority;
+        private final AIInferenceService.InferenceCallback callback;
+        private final InferenceRun run = new InferenceRun();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final long submitTime = System.currentTimeMillis();
+        private ScheduledFuture<?> timeoutTask;
+
+        private Status status = Status.QUEUED;
+        private String result;
+        private String error;
+
+        private InferenceRequest(long id, String modelPath, Task task, Priority priority,
+                                 AIInferenceService.InferenceCallback callback) {
+            this.id = id;
+            this.modelPath = modelPath;
+            this.task = task;
+            this.priority = priority;
+            this.callback = callback;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public synchronized Status getStatus() {
+            return status;
+        }
+
+        public synchronized String getResult() {
+            return result;
+        }
+
+        public synchronized String getError() {
+            return error;
+        }
+
+        /**
+         * 从提交到现在的等待和运行时间
+         */
+        public long getElapsedMs() {
+            return System.currentTimeMillis() - submitTime;
+        }
+
+        /**
+         * 取消请求，排队中的直接出队，运行中的只终止它自己的推理
+         */
+        public void cancel() {
+            synchronized (lock) {
+                pending.remove(this);
+            }
+            finish(Status.CANCELLED, null, "推理已取消");
+        }
+
+        /**
+         * 等待请求结束并返回结果
+         */
+        public String await(long timeoutMs) throws Exception {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new Exception("等待推理结果超时");
+            }
+            synchronized (this) {
+                if (status != Status.COMPLETED) {
+                    throw new Exception(error);
+                }
+                return result;
+            }
+        }
+
+        private synchronized boolean markRunning() {
+            if (status != Status.QUEUED) {
+                return false;
+            }
+            status = Status.RUNNING;
+            return true;
+        }
+
+        /**
+         * 只有第一次结束生效，取消和超时会同时终止正在运行的推理
+         */
+        private void finish(Status finalStatus, String result, String error) {
+            synchronized (this) {
+                if (status != Status.QUEUED && status != Status.RUNNING) {
+                    return;
+                }
+                this.status = finalStatus;
+                this.result = result;
+                this.error = error;
+            }
+
+            if (finalStatus == Status.CANCELLED || finalStatus == Status.TIMED_OUT) {
+                run.cancel();
+            }
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            done.countDown();
+
+            if (callback != null) {
+                if (finalStatus == Status.COMPLETED) {
+                    callback.onComplete();
+                } else {
+                    callback.onError(error);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(InferenceRequest other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return Long.compare(id, other.id);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.android.aiassistant.service;
+
+import java.util.Arrays;
+
+/**
+ * 推理性能统计
+ * 为首令牌延迟、生成速度、总耗时和模型加载时间各保留最近若干次样本，按百分位查询；
+ * 结果缓存命中没有运行推理，单独计数，不计入推理的延迟分布
+ */
+public class InferenceStats {
+
+    private static final int WINDOW_SIZE = 200;
+
+    private final RollingHistogram firstTokenMs = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram evalTokensPerSecond = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram promptMsPerToken = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram totalMs = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram loadMs = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram draftAcceptPercent = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram tokensSaved = new RollingHistogram(WINDOW_SIZE);
+    private final RollingHistogram cacheHitMs = new RollingHistogram(WINDOW_SIZE);
+
+    private long requestCount;
+    private long failureCount;
+    private long cacheHitCount;
+    private long draftTokens;
+    private long draftAccepted;
+    private long stoppedCount;
+    private long totalTokensSaved;
+    private InferenceMetrics lastMetrics;
+
+    /**
+     * 记录一次成功的推理
+     */
+    public synchronized void record(InferenceMetrics metrics) {
+        requestCount++;
+        lastMetrics = metrics;
+        firstTokenMs.add(metrics.firstTokenMs);
+        evalTokensPerSecond.add(metrics.evalTokensPerSecond());
+        promptMsPerToken.add(metrics.promptMsPerToken());
+        totalMs.add(metrics.totalMs);
+        if (metrics.modelLoaded) {
+            loadMs.add(metrics.loadMs);
+        }
+        if (metrics.draftAcceptRate() >= 0) {
+            draftAcceptPercent.add(metrics.draftAcceptRate() * 100);
+            draftTokens += metrics.draftTokens;
+            draftAccepted += metrics.draftAccepted;
+        }
+        if (metrics.tokensSaved >= 0) {
+            tokensSaved.add(metrics.tokensSaved);
+            stoppedCount++;
+            totalTokensSaved += metrics.tokensSaved;
+        }
+    }
+
+    /**
+     * 记录一次由结果缓存直接返回的请求
+     */
+    public synchronized void recordCacheHit(InferenceMetrics metrics) {
+        requestCount++;
+        cacheHitCount++;
+        lastMetrics = metrics;
+        cacheHitMs.add(metrics.totalMs);
+    }
+
+    /**
+     * 记录一次失败的推理
+     */
+    public synchronized void recordFailure() {
+        requestCount++;
+        failureCount++;
+    }
+
+    public synchronized InferenceMetrics getLastMetrics() {
+        return lastMetrics;
+    }
+
+    public RollingHistogram getFirstTokenMs() {
+        return firstTokenMs;
+    }
+
+    public RollingHistogram getEvalTokensPerSecond() {
+        return evalTokensPerSecond;
+    }
+
+    public RollingHistogram getPromptMsPerToken() {
+        return promptMsPerToken;
+    }
+
+    public RollingHistogram getTotalMs() {
+        return totalMs;
+    }
+
+    public RollingHistogram getLoadMs() {
+        return loadMs;
+    }
+
+    public RollingHistogram getDraftAcceptPercent() {
+        return draftAcceptPercent;
+    }
+
+    public RollingHistogram getTokensSaved() {
+        return tokensSaved;
+    }
+
+    public RollingHistogram getCacheHitMs() {
+        return cacheHitMs;
+    }
+
+    public synchronized long getCacheHitCount() {
+        return cacheHitCount;
+    }
+
+    /**
+     * 命中停止序列提前结束的请求累计省下的令牌数
+     */
+    public synchronized long getTotalTokensSaved() {
+        return totalTokensSaved;
+    }
+
+    /**
+     * 所有投机解码请求累计的草稿接受率，没有数据时返回 -1
+     */
+    public synchronized double getDraftAcceptRate() {
+        return draftTokens > 0 ? (double) draftAccepted / draftTokens : -1;
+    }
+
+    /**
+     * 清空统计
+     */
+    public synchronized void reset() {
+        requestCount = 0;
+        failureCount = 0;
+        cacheHitCount = 0;
+        draftTokens = 0;
+        draftAccepted = 0;
+        stoppedCount = 0;
+        totalTokensSaved = 0;
+        lastMetrics = null;
+        firstTokenMs.clear();
+        evalTokensPerSecond.clear();
+        promptMsPerToken.clear();
+        totalMs.clear();
+        loadMs.clear();
+        draftAcceptPercent.clear();
+        tokensSaved.clear();
+        cacheHitMs.clear();
+    }
+
+    /**
+     * 格式化为可读文本
+     */
+    public synchronized String format() {
+        StringBuilder result = new StringBuilder();
+        result.append("请求: ").append(requestCount).append("，失败: ").append(failureCount)
+                .append("，缓存命中: ").append(cacheHitCount).append("\n");
+        result.append("                 p50      p90      p99    样本\n");
+        appendRow(result, "首令牌(ms)    ", firstTokenMs);
+        appendRow(result, "生成(令牌/秒) ", evalTokensPerSecond);
+        appendRow(result, "提示(ms/令牌) ", promptMsPerToken);
+        appendRow(result, "总耗时(ms)    ", totalMs);
+        appendRow(result, "模型加载(ms)  ", loadMs);
+        if (cacheHitCount > 0) {
+            appendRow(result, "缓存命中(ms)  ", cacheHitMs);
+        }
+        if (draftTokens > 0) {
+            appendRow(result, "草稿接受(%)   ", draftAcceptPercent);
+            result.append(String.format("草稿累计: 接受 %d/%d (%.1f%%)\n",
+                    draftAccepted, draftTokens, getDraftAcceptRate() * 100));
+        }
+        if (stoppedCount > 0) {
+            appendRow(result, "停止节省(令牌)", tokensSaved);
+            result.append(String.format("停止序列: 提前结束 %d 次，累计节省 %d 令牌\n",
+                    stoppedCount, totalTokensSaved));
+        }
+        if (lastMetrics != null) {
+            result.append("最近一次: ").append(lastMetrics).append("\n");
+        }
+        return result.toString();
+    }
+
+    private static void appendRow(StringBuilder result, String label, RollingHistogram histogram) {
+        result.append(String.format("%s %8.1f %8.1f %8.1f %6d\n", label,
+                histogram.percentile(50), histogram.percentile(90), histogram.percentile(99),
+                histogram.count()));
+    }
+
+    /**
+     * 固定窗口的滚动样本，负值表示未知，不计入
+     */
+    public static class RollingHistogram {
+        private final double[] samples;
+        private int next;
+        private int size;
+
+        public RollingHistogram(int capacity) {
+            this.samples = new double[capacity];
+        }
+
+        public synchronized void add(double value) {
+            if (value < 0) {
+                return;
+            }
+            samples[next] = value;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        }
+
+        /**
+         * 百分位数，没有样本时返回 0
+         */
+        public synchronized double percentile(double percent) {
+            if (size == 0) {
+                return 0;
+            }
+            double[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        public synchronized int count() {
+            return size;
+        }
+
+        public synchronized void clear() {
+            next = 0;
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.android.aiassistant.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * llama.cpp 启动参数
+ * 决定模型加载方式和内存占用的参数，每次推理取一份快照，准入检查降级时只修改快照
+ */
+public class LaunchOptions {
+    public int contextLength;
+    public int batchSize;
+    public int threads;
+    public boolean useMmap = true;
+    public boolean useMlock;
+    // llama-server 并行序列数，上下文按序列平分
+    public int parallel = 1;
+    // 投机解码的草稿模型，为 null 时正常解码；只有 llama-server 支持
+    public String draftModelPath;
+    // 每轮最多起草的令牌数
+    public int draftMax = 16;
+
+    public LaunchOptions copy() {
+        LaunchOptions copy = new LaunchOptions();
+        copy.contextLength = contextLength;
+        copy.batchSize = batchSize;
+        copy.threads = threads;
+        copy.useMmap = useMmap;
+        copy.useMlock = useMlock;
+        copy.parallel = parallel;
+        copy.draftModelPath = draftModelPath;
+        copy.draftMax = draftMax;
+        return copy;
+    }
+
+    /**
+     * 去掉草稿模型的副本，用于不支持投机解码的后端
+     */
+    public LaunchOptions withoutDraft() {
+        if (draftModelPath == null) {
+            return this;
+        }
+        LaunchOptions copy = copy();
+        copy.draftModelPath = null;
+        return copy;
+    }
+
+    /**
+     * 对应的 llama.cpp 命令行参数
+     */
+    public List<String> toArgs() {
+        List<String> args = new ArrayList<>();
+        args.add("--ctx-size");
+        args.add(String.valueOf(contextLength));
+        args.add("-b");
+        args.add(String.valueOf(batchSize));
+        if (threads > 0) {
+            args.add("-t");
+            args.add(String.valueOf(threads));
+        }
+        if (!useMmap) {
+            args.add("--no-mmap");
+        }
+        if (useMlock) {
+            args.add("--mlock");
+        }
+        if (parallel > 1) {
+            args.add("-np");
+            args.add(String.valueOf(parallel));
+            args.add("-cb");
+        }
+        if (draftModelPath != null) {
+            args.add("-md");
+            args.add(draftModelPath);
+            args.add("--draft-max");
+            args.add(String.valueOf(draftMax));
+        }
+        return args;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ctx=%d b=%d t=%d mmap=%b mlock=%b np=%d%s",
+                contextLength, batchSize, threads, useMmap, useMlock, parallel,
+                draftModelPath != null ? " draft=" + new File(draftModelPath).getName() : "");
+    }
+}
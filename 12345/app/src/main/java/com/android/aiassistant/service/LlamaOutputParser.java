@@ -0,0 +1,57 @@
+package com.android.aiassistant.service;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * llama.cpp 诊断日志解析器
+ * 把 stderr 日志行中的计时信息解析为 InferenceMetrics
+ */
+public class LlamaOutputParser {
+
+    private static final Pattern LOAD_PATTERN = Pattern.compile(
+            "\\bload time\\s*=\\s*([\\d.]+) ms");
+    private static final Pattern PROMPT_EVAL_PATTERN = Pattern.compile(
+            "prompt eval time\\s*=\\s*([\\d.]+) ms\\s*/\\s*(\\d+) tokens");
+    private static final Pattern EVAL_PATTERN = Pattern.compile(
+            "(?<!prompt )\\beval time\\s*=\\s*([\\d.]+) ms\\s*/\\s*(\\d+) (?:runs|tokens)");
+    private static final Pattern TOTAL_PATTERN = Pattern.compile(
+            "total time\\s*=\\s*([\\d.]+) ms");
+
+    private final InferenceMetrics metrics;
+
+    public LlamaOutputParser(InferenceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 解析一行日志中的计时信息；可在读取 stdout 的同时从其他线程调用
+     */
+    public synchronized void parseDiagnostic(String line) {
+        Matcher matcher = PROMPT_EVAL_PATTERN.matcher(line);
+        if (matcher.find()) {
+            metrics.promptEvalMs = Double.parseDouble(matcher.group(1));
+            metrics.promptTokens = Integer.parseInt(matcher.group(2));
+            return;
+        }
+
+        matcher = EVAL_PATTERN.matcher(line);
+        if (matcher.find()) {
+            metrics.evalMs = Double.parseDouble(matcher.group(1));
+            metrics.evalTokens = Integer.parseInt(matcher.group(2));
+            return;
+        }
+
+        matcher = LOAD_PATTERN.matcher(line);
+        if (matcher.find()) {
+            metrics.loadMs = Math.round(Double.parseDouble(matcher.group(1)));
+            metrics.modelLoaded = true;
+            return;
+        }
+
+        matcher = TOTAL_PATTERN.matcher(line);
+        if (matcher.find()) {
+            metrics.totalMs = Math.round(Double.parseDouble(matcher.group(1)));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.android.aiassistant.service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * llama-server 推理后端
+ * 通过 /completion 接口流式生成，按 SSE 事件逐段回调；
+ * 可以连接已经运行的外部服务（如 Termux 中启动的 llama-server），也可以使用应用自己管理的常驻进程
+ */
+public class LlamaServerBackend extends HttpInferenceBackend {
+
+    // 应用管理的常驻进程，连接外部服务时为 null
+    private final LlamaServerWorker worker;
+
+    /**
+     * 连接外部 llama-server，例如 http://127.0.0.1:8080
+     */
+    public LlamaServerBackend(String baseUrl) {
+        super(baseUrl);
+        this.worker = null;
+    }
+
+    /**
+     * 使用应用管理的常驻进程，按请求的模型和参数启动
+     */
+    public LlamaServerBackend(LlamaServerWorker worker) {
+        super(null);
+        this.worker = worker;
+    }
+
+    @Override
+    public String getName() {
+        return worker != null ? "llama-server" : "llama-server@" + baseUrl;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return worker != null ? worker.isAvailable() : super.isAvailable();
+    }
+
+    @Override
+    public boolean isLocal() {
+        return worker != null;
+    }
+
+    @Override
+    protected String getHealthPath() {
+        return "/health";
+    }
+
+    @Override
+    public boolean prepare(GenerationRequest request) throws Exception {
+        return worker != null && worker.ensureStarted(request.modelPath, request.options.toArgs());
+    }
+
+    @Override
+    public void release(GenerationRequest request) {
+        if (worker != null) {
+            worker.release();
+        }
+    }
+
+    @Override
+    public void generate(GenerationRequest request, AIInferenceService.InferenceCallback callback,
+                         InferenceRun run, InferenceMetrics metrics) throws Exception {
+        JsonObject params = buildParams(request);
+        if (worker != null) {
+            worker.completeStream(params, callback, run, metrics);
+            return;
+        }
+        try (Response response = post("/completion", params, run)) {
+            readStream(response.body().source(), callback, metrics);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (worker != null) {
+            worker.shutdown();
+        }
+    }
+
+    /**
+     * 单次请求的采样参数，无需重启服务即可生效
+     */
+    private static JsonObject buildParams(GenerationRequest request) {
+        JsonObject params = new JsonObject();
+        params.addProperty("prompt", request.prompt);
+        params.addProperty("n_predict", request.maxTokens);
+        params.addProperty("temperature", request.temperature);
+        params.addProperty("top_p", request.topP);
+        params.addProperty("cache_prompt", true);
+        params.addProperty("stream", true);
+        return params;
+    }
+
+    /**
+     * 逐个读取 SSE 事件并回调生成的文本，最后一个事件带有服务端计时。
+     * 生成中途出错时服务端发送 error 事件；OpenAI 兼容接口以 data: [DONE] 结束
+     */
+    static void readStream(BufferedSource source, AIInferenceService.InferenceCallback callback,
+                           InferenceMetrics metrics) throws Exception {
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.startsWith("error:")) {
+                throw new Exception("llama.cpp 服务返回错误: " + line.substring(6).trim());
+            }
+            if (!line.startsWith("data:")) {
+                continue;
+            }
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            JsonObject event = JsonParser.parseString(data).getAsJsonObject();
+            if (event.has("error")) {
+                throw new Exception("llama.cpp 服务返回错误: " + event.get("error"));
+            }
+            if (event.has("content")) {
+                String content = event.get("content").getAsString();
+                if (!content.isEmpty()) {
+                    callback.onToken(content, System.nanoTime());
+                }
+            }
+            if (event.has("stop") && event.get("stop").getAsBoolean()) {
+                if (event.has("timings")) {
+                    parseTimings(event.getAsJsonObject("timings"), metrics);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void parseTimings(JsonObject timings, InferenceMetrics metrics) {
+        if (timings.has("prompt_n") && timings.has("prompt_ms")) {
+            metrics.promptTokens = timings.get("prompt_n").getAsInt();
+            metrics.promptEvalMs = timings.get("prompt_ms").getAsDouble();
+        }
+        if (timings.has("predicted_n") && timings.has("predicted_ms")) {
+            metrics.evalTokens = timings.get("predicted_n").getAsInt();
+            metrics.evalMs = timings.get("predicted_ms").getAsDouble();
+        }
+        // 启用草稿模型时才有
+        if (timings.has("draft_n") && timings.has("draft_n_accepted")) {
+            metrics.draftTokens = timings.get("draft_n").getAsInt();
+            metrics.draftAccepted = timings.get("draft_n_accepted").getAsInt();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * 常驻 llama.cpp 工作进程
+ * 以 server 模式启动 llama.cpp，模型只加载一次并常驻内存，
+ * 之后的推理请求通过本地回环端口提交，不再重复加载模型。
+ * 每次生成在 ensureStarted 时占用进程、结束后 release；有生成在进行时不会以其他模型或参数重启，
+ * 切换前先等待进行中的生成结束。
+ * 加载模型可能需要几分钟，启动进程后在锁外等待健康检查，状态查询和停止不会被阻塞，
+ * 其他调用方等待启动结束
+ */
+public class LlamaServerWorker {
+
+    private static final String TAG = "LlamaServerWorker";
+
+    private static final String HOST = "127.0.0.1";
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // 模型加载可能需要较长时间
+    private static final long STARTUP_TIMEOUT_MS = 180_000;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 15_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final int MAX_HEALTH_FAILURES = 3;
+    private static final int MAX_RESTARTS = 3;
+    // 切换模型或参数前等待进行中的生成结束的最长时间
+    private static final long DRAIN_TIMEOUT_MS = 120_000;
+
+    private final String serverBinary;
+    private final OkHttpClient httpClient;
+    private final ScheduledExecutorService maintenanceExecutor;
+
+    private Process serverProcess;
+    private String loadedModelPath;
+    private List<String> loadedArgs;
+    private int port;
+    private boolean stopping;
+    // 进程已启动，正在锁外等待健康检查
+    private boolean starting;
+    private int healthFailures;
+    private int restartCount;
+    private volatile long lastUsedTime;
+    // 已通过 ensureStarted 占用、尚未 release 的生成数
+    private int activeCalls;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private ScheduledFuture<?> maintenanceTask;
+
+    public LlamaServerWorker(String serverBinary) {
+        this.serverBinary = serverBinary;
+        this.httpClient = new OkHttpClient.Builder()
+                .connectTimeout(5, TimeUnit.SECONDS)
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .build();
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "llama-worker-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 服务端可执行文件是否存在
+     */
+    public boolean isAvailable() {
+        return new File(serverBinary).canExecute();
+    }
+
+    /**
+     * 设置空闲关闭时间，0 表示从不因空闲关闭
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * 当前是否有常驻进程在运行
+     */
+    public synchronized boolean isRunning() {
+        return serverProcess != null && serverProcess.isAlive();
+    }
+
+    /**
+     * 当前是否有已加载模型的常驻进程
+     */
+    public synchronized boolean isRunning(String modelPath) {
+        return serverProcess != null && serverProcess.isAlive() && modelPath.equals(loadedModelPath);
+    }
+
+    /**
+     * 当前是否以指定模型和参数运行
+     */
+    public synchronized boolean isRunning(String modelPath, List<String> serverArgs) {
+        return isRunning(modelPath) && serverArgs.equals(loadedArgs);
+    }
+
+    /**
+     * 确保常驻进程已经以指定模型和参数启动，并通过健康检查，同时占用进程直到 release；
+     * 需要切换模型或参数时先等待其他生成结束，等待超时抛出异常。本次调用加载了模型时返回 true
+     */
+    public boolean ensureStarted(String modelPath, List<String> serverArgs) throws Exception {
+        Process process;
+        int serverPort;
+        synchronized (this) {
+            awaitIdle(() -> isRunning(modelPath, serverArgs));
+            activeCalls++;
+            if (isRunning(modelPath, serverArgs)) {
+                return false;
+            }
+            stopProcess();
+            process = startProcess(modelPath, serverArgs);
+            serverPort = port;
+        }
+        try {
+            awaitReady(process, serverPort);
+        } catch (Exception e) {
+            release();
+            throw e;
+        }
+        synchronized (this) {
+            restartCount = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 结束一次由 ensureStarted 占用的生成
+     */
+    public synchronized void release() {
+        if (activeCalls > 0) {
+            activeCalls--;
+        }
+        lastUsedTime = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * 流式补全，逐个 SSE 事件回调生成的文本；调用前需已通过 ensureStarted 占用进程
+     */
+    public void completeStream(JsonObject params, AIInferenceService.InferenceCallback callback,
+                               InferenceRun run, InferenceMetrics metrics) throws Exception {
+        params.addProperty("stream", true);
+        try (Response response = execute(params, run)) {
+            LlamaServerBackend.readStream(response.body().source(), callback, metrics);
+        } finally {
+            lastUsedTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 等待进行中的生成结束后停止常驻进程释放内存，下次请求时重新启动；等待超时抛出异常
+     */
+    public synchronized void stop() throws Exception {
+        awaitIdle(() -> false);
+        stopProcess();
+        loadedModelPath = null;
+        loadedArgs = null;
+    }
+
+    /**
+     * 没有进行中的生成时停止常驻进程，返回是否已停止
+     */
+    public synchronized boolean stopIfIdle() {
+        if (activeCalls > 0 || starting) {
+            return false;
+        }
+        stopProcess();
+        loadedModelPath = null;
+        loadedArgs = null;
+        return true;
+    }
+
+    /**
+     * 等待进行中的启动和所有占用的生成结束，reusable 成立时可以直接共用进程，不必等待生成；调用时需持有锁
+     */
+    private void awaitIdle(BooleanSupplier reusable) throws Exception {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (starting || (activeCalls > 0 && !reusable.getAsBoolean())) {
+            if (starting) {
+                // 启动方成功、失败或超时后都会清除标记并通知
+                wait();
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new Exception("常驻进程正在为其他请求生成，等待超时");
+            }
+            Log.i(TAG, "等待 " + activeCalls + " 个进行中的生成结束");
+            wait(remaining);
+        }
+    }
+
+    /**
+     * 关闭常驻进程
+     */
+    public synchronized void shutdown() {
+        stopProcess();
+        maintenanceExecutor.shutdownNow();
+    }
+
+    private Response execute(JsonObject params, InferenceRun run) throws Exception {
+        Process restarted = null;
+        int serverPort;
+        synchronized (this) {
+            while (starting) {
+                wait();
+            }
+            if (serverProcess == null || !serverProcess.isAlive()) {
+                restarted = restartLocked("请求时进程不存在");
+            }
+            serverPort = port;
+        }
+        if (restarted != null) {
+            awaitReady(restarted, serverPort);
+        }
+        String baseUrl = "http://" + HOST + ":" + serverPort;
+        lastUsedTime = System.currentTimeMillis();
+
+        Request request = new Request.Builder()
+                .url(baseUrl + "/completion")
+                .post(RequestBody.create(params.toString(), JSON))
+                .build();
+        Call call = httpClient.newCall(request);
+        run.attach(call);
+        Response response = call.execute();
+        if (!response.isSuccessful()) {
+            int code = response.code();
+            response.close();
+            throw new Exception("llama.cpp 服务返回错误: HTTP " + code);
+        }
+        return response;
+    }
+
+    /**
+     * 启动进程并标记为启动中，调用时需持有锁；调用方随后在锁外调用 awaitReady
+     */
+    private Process startProcess(String modelPath, List<String> serverArgs) throws Exception {
+        port = findFreePort();
+
+        List<String> command = new ArrayList<>();
+        command.add(serverBinary);
+        command.add("-m");
+        command.add(modelPath);
+        command.add("--host");
+        command.add(HOST);
+        command.add("--port");
+        command.add(String.valueOf(port));
+        command.addAll(serverArgs);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+
+        Log.i(TAG, "启动常驻进程: " + modelPath + " 端口 " + port);
+        stopping = false;
+        serverProcess = processBuilder.start();
+        loadedModelPath = modelPath;
+        loadedArgs = new ArrayList<>(serverArgs);
+        healthFailures = 0;
+        starting = true;
+        drainOutput(serverProcess);
+        return serverProcess;
+    }
+
+    /**
+     * 不持有锁等待新启动的进程通过健康检查；失败或超时时停止这个进程，结束后通知等待启动的调用方
+     */
+    private void awaitReady(Process process, int serverPort) throws Exception {
+        boolean healthy = false;
+        boolean current;
+        try {
+            long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+            while (!checkHealth(serverPort)) {
+                if (!process.isAlive()) {
+                    synchronized (this) {
+                        if (serverProcess != process) {
+                            // 等待期间被 shutdown 停止
+                            throw new Exception("llama.cpp 服务已停止");
+                        }
+                    }
+                    throw new Exception("llama.cpp 服务启动失败，退出码: " + exitValue(process));
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new Exception("llama.cpp 服务启动超时");
+                }
+                Thread.sleep(250);
+            }
+            healthy = true;
+        } finally {
+            synchronized (this) {
+                starting = false;
+                current = serverProcess == process;
+                if (current && healthy) {
+                    lastUsedTime = System.currentTimeMillis();
+                    scheduleMaintenance();
+                    Log.i(TAG, "常驻进程就绪");
+                } else if (current) {
+                    stopProcess();
+                    loadedModelPath = null;
+                    loadedArgs = null;
+                }
+                notifyAll();
+            }
+        }
+        if (!current) {
+            throw new Exception("llama.cpp 服务已停止");
+        }
+    }
+
+    /**
+     * 以上次的模型和参数重新启动进程，调用时需持有锁；调用方随后在锁外调用 awaitReady
+     */
+    private Process restartLocked(String reason) throws Exception {
+        if (loadedModelPath == null || loadedArgs == null) {
+            throw new Exception("llama.cpp 服务未启动");
+        }
+        if (restartCount >= MAX_RESTARTS) {
+            throw new Exception("llama.cpp 服务多次重启失败: " + reason);
+        }
+        restartCount++;
+        Log.w(TAG, "重启常驻进程 (" + restartCount + "/" + MAX_RESTARTS + "): " + reason);
+
+        String modelPath = loadedModelPath;
+        List<String> args = loadedArgs;
+        stopProcess();
+        return startProcess(modelPath, args);
+    }
+
+    private void stopProcess() {
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(false);
+            maintenanceTask = null;
+        }
+        if (serverProcess != null) {
+            stopping = true;
+            serverProcess.destroy();
+            try {
+                if (!serverProcess.waitFor(3, TimeUnit.SECONDS)) {
+                    serverProcess.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                serverProcess.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            serverProcess = null;
+        }
+    }
+
+    private void scheduleMaintenance() {
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel(false);
+        }
+        maintenanceTask = maintenanceExecutor.scheduleWithFixedDelay(this::maintain,
+                HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 定期维护：空闲关闭、健康检查、崩溃重启；重启后在锁外等待就绪
+     */
+    private void maintain() {
+        Process restarted = null;
+        int serverPort;
+        synchronized (this) {
+            if (serverProcess == null || starting) {
+                return;
+            }
+
+            long idle = System.currentTimeMillis() - lastUsedTime;
+            if (activeCalls == 0 && idleTimeoutMs > 0 && idle > idleTimeoutMs) {
+                Log.i(TAG, "空闲 " + idle / 1000 + " 秒，关闭常驻进程");
+                stopProcess();
+                loadedModelPath = null;
+                loadedArgs = null;
+                return;
+            }
+
+            try {
+                if (!serverProcess.isAlive()) {
+                    if (!stopping) {
+                        restarted = restartLocked("进程意外退出，退出码 " + exitValue(serverProcess));
+                    }
+                } else if (activeCalls == 0) {
+                    // 生成过程中服务端可能无法及时响应，只在空闲时探测
+                    if (checkHealth(port)) {
+                        healthFailures = 0;
+                        restartCount = 0;
+                    } else if (++healthFailures >= MAX_HEALTH_FAILURES) {
+                        restarted = restartLocked("健康检查连续失败");
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "维护常驻进程失败", e);
+                stopProcess();
+                return;
+            }
+            serverPort = port;
+        }
+
+        if (restarted != null) {
+            try {
+                awaitReady(restarted, serverPort);
+            } catch (Exception e) {
+                Log.e(TAG, "重启常驻进程失败", e);
+            }
+        }
+    }
+
+    private boolean checkHealth(int serverPort) {
+        Request request = new Request.Builder()
+                .url("http://" + HOST + ":" + serverPort + "/health")
+                .get()
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            return response.isSuccessful();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 持续读取服务端日志，避免管道写满导致进程阻塞
+     */
+    private void drainOutput(Process process) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Log.d(TAG, line);
+                }
+            } catch (Exception ignored) {
+                // 进程结束
+            }
+        }, "llama-worker-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int exitValue(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return -1;
+        }
+    }
+
+    private static int findFreePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.android.aiassistant.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.android.aiassistant.utils.AIModelManager;
+import com.google.gson.Gson;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 大文件分块摘要（map-reduce）
+ * 按令牌预算把文件切成若干块，只记录每块的字节范围，推理时再按需读取；
+ * 各块摘要分批作为后台批量请求交给调度器并行生成，再把摘要逐层合并，直到只剩一份。
+ * 每完成一块都把结果追加到结果日志（每项一行），中断后再次执行同一文件时跳过已完成的部分
+ */
+public class MapReduceSummarizer {
+
+    private static final String TAG = "MapReduceSummarizer";
+
+    // 提示中指令和模板标记的预留令牌数
+    private static final int PROMPT_OVERHEAD_TOKENS = 128;
+    private static final int MIN_CHUNK_TOKENS = 256;
+    // 分块按每令牌 2.5 个字符保守估算：日志里的数字、路径和符号切分得比普通文本碎，按 4 个字符估算会超出上下文
+    private static final double CHARS_PER_TOKEN = 2.5;
+    // 每批提交的块数为并行数的倍数，限制同时读入内存的文本量
+    private static final int WAVE_FACTOR = 2;
+
+    private final AIInferenceService inferenceService;
+    private final AIModelManager modelManager;
+    private final File checkpointDirectory;
+    private final Gson gson = new Gson();
+
+    public MapReduceSummarizer(Context context, AIInferenceService inferenceService, AIModelManager modelManager) {
+        this.inferenceService = inferenceService;
+        this.modelManager = modelManager;
+        this.checkpointDirectory = new File(context.getExternalFilesDir(null), "summaries");
+    }
+
+    /**
+     * 在后台线程摘要文件，parallel 为同时推理的块数。
+     * 这个线程只负责分块和等待，推理都以后台优先级提交给调度器
+     */
+    public SummaryTask summarize(String modelPath, File file, int parallel, SummaryListener listener) {
+        SummaryTask task = new SummaryTask(modelPath, file, Math.max(1, parallel), listener);
+        new Thread(task::run, "map-reduce-summarizer").start();
+        return task;
+    }
+
+    /**
+     * 一次摘要任务
+     */
+    public class SummaryTask {
+        private final String modelPath;
+        private final File file;
+        private final int parallel;
+        private final SummaryListener listener;
+        private volatile boolean cancelled;
+        private InferenceScheduler.InferenceRequest currentRequest;
+
+        private ConversationSession.PromptFormat format;
+        private Checkpoint checkpoint;
+        private File checkpointFile;
+        private File resultsFile;
+        private int chunkTokens;
+
+        SummaryTask(String modelPath, File file, int parallel, SummaryListener listener) {
+            this.modelPath = modelPath;
+            this.file = file;
+            this.parallel = parallel;
+            this.listener = listener;
+        }
+
+        /**
+         * 取消摘要，已完成的块保留在检查点中
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (currentRequest != null) {
+                currentRequest.cancel();
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void run() {
+            try {
+                if (!file.isFile()) {
+                    throw new Exception("文件不存在: " + file.getPath());
+                }
+                format = ConversationSession.PromptFormat.detect(modelManager.getCatalog().get(new File(modelPath)));
+                chunkTokens = Math.max(MIN_CHUNK_TOKENS, inferenceService.getContextLength()
+                        - inferenceService.getMaxTokens() - PROMPT_OVERHEAD_TOKENS);
+                loadCheckpoint();
+
+                if (checkpoint.summary == null) {
+                    List<String> partials = map();
+                    checkpoint.summary = reduce(partials);
+                    saveCheckpoint();
+                } else {
+                    Log.i(TAG, "使用已完成的摘要: " + file.getName());
+                }
+                listener.onComplete(checkpoint.summary);
+            } catch (Exception e) {
+                if (cancelled) {
+                    listener.onError("摘要已取消，已完成的部分会在下次继续");
+                } else {
+                    Log.e(TAG, "摘要失败", e);
+                    listener.onError(e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * 逐块生成摘要
+         */
+        private List<String> map() throws Exception {
+            int total = checkpoint.chunks.size();
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < total; i++) {
+                indices.add(i);
+            }
+            return runStage("分块", "m", indices, index -> {
+                long[] range = checkpoint.chunks.get(index);
+                return format.user("下面是文件 " + file.getName() + " 的第 " + (index + 1) + "/" + total
+                        + " 部分。请用简洁的要点概括其中的关键信息（如错误、事件、数据和结论），不超过 200 字。\n\n"
+                        + readRange(range[0], range[1])) + format.assistantPrefix();
+            });
+        }
+
+        /**
+         * 按令牌预算把摘要分组合并，逐层进行直到只剩一份
+         */
+        private String reduce(List<String> partials) throws Exception {
+            int level = 0;
+            while (partials.size() > 1) {
+                List<List<String>> groups = group(partials);
+                if (groups.size() == partials.size()) {
+                    // 每组只放得下一份，无法继续合并，直接拼接
+                    return String.join("\n", partials);
+                }
+                List<Integer> indices = new ArrayList<>();
+                for (int i = 0; i < groups.size(); i++) {
+                    indices.add(i);
+                }
+                level++;
+                partials = runStage("合并第 " + level + " 层", "r" + level, indices, index ->
+                        format.user("下面是同一文件各部分的摘要，请合并为一份完整、不重复的摘要，保留关键信息。\n\n"
+                                + String.join("\n\n", groups.get(index))) + format.assistantPrefix());
+            }
+            return partials.isEmpty() ? "" : partials.get(0);
+        }
+
+        private List<List<String>> group(List<String> partials) {
+            List<List<String>> groups = new ArrayList<>();
+            List<String> current = new ArrayList<>();
+            int tokens = 0;
+            for (String partial : partials) {
+                int partialTokens = ConversationSession.estimateTokens(partial, CHARS_PER_TOKEN);
+                if (!current.isEmpty() && tokens + partialTokens > chunkTokens) {
+                    groups.add(current);
+                    current = new ArrayList<>();
+                    tokens = 0;
+                }
+                current.add(partial);
+                tokens += partialTokens;
+            }
+            if (!current.isEmpty()) {
+                groups.add(current);
+            }
+            return groups;
+        }
+
+        /**
+         * 执行一个阶段：跳过检查点中已有的结果，其余按批并行推理，每完成一项立即保存
+         */
+        private List<String> runStage(String stage, String keyPrefix, List<Integer> indices,
+                                      PromptBuilder promptBuilder) throws Exception {
+            int total = indices.size();
+            List<Integer> pending = new ArrayList<>();
+            for (int index : indices) {
+                if (!checkpoint.results.containsKey(keyPrefix + ":" + index)) {
+                    pending.add(index);
+                }
+            }
+            int[] done = {total - pending.size()};
+            listener.onProgress(stage, done[0], total);
+
+            int waveSize = parallel * WAVE_FACTOR;
+            for (int start = 0; start < pending.size(); start += waveSize) {
+                List<Integer> wave = pending.subList(start, Math.min(pending.size(), start + waveSize));
+                List<String> prompts = new ArrayList<>();
+                for (int index : wave) {
+                    prompts.add(promptBuilder.build(index));
+                }
+
+                AIInferenceService.BatchResult result = runWave(stage, keyPrefix, wave, prompts, done, total);
+                if (result.failed > 0) {
+                    throw new Exception(stage + "有 " + result.failed + " 项失败: " + firstError(result));
+                }
+            }
+
+            List<String> outputs = new ArrayList<>();
+            for (int index : indices) {
+                outputs.add(checkpoint.results.get(keyPrefix + ":" + index));
+            }
+            return outputs;
+        }
+
+        /**
+         * 把一批提示作为后台批量请求提交给调度器，等待整批结束；取消摘要时同时取消这个请求
+         */
+        private AIInferenceService.BatchResult runWave(String stage, String keyPrefix, List<Integer> wave,
+                                                       List<String> prompts, int[] done, int total) throws Exception {
+            AIInferenceService.BatchResult[] result = new AIInferenceService.BatchResult[1];
+            String[] error = new String[1];
+            CountDownLatch finished = new CountDownLatch(1);
+            AIInferenceService.BatchCallback callback = new AIInferenceService.BatchCallback() {
+                @Override
+                public void onItemComplete(int item, String text) {
+                    synchronized (SummaryTask.this) {
+                        String key = keyPrefix + ":" + wave.get(item);
+                        checkpoint.results.put(key, text);
+                        appendResult(key, text);
+                        done[0]++;
+                    }
+                    listener.onProgress(stage, done[0], total);
+                }
+
+                @Override
+                public void onItemError(int item, String message) {
+                    Log.w(TAG, stage + " 第 " + (wave.get(item) + 1) + " 项失败: " + message);
+                }
+
+                @Override
+                public void onComplete(AIInferenceService.BatchResult batchResult) {
+                    result[0] = batchResult;
+                    finished.countDown();
+                }
+
+                @Override
+                public void onError(String message) {
+                    error[0] = message;
+                    finished.countDown();
+                }
+            };
+
+            InferenceScheduler.InferenceRequest request;
+            synchronized (this) {
+                if (cancelled) {
+                    throw new Exception("摘要已取消");
+                }
+                // 日志原文可能含有 "用户:" 这样的行，只按模板标记停止
+                request = inferenceService.getScheduler().submitBatch(modelPath, prompts, parallel,
+                        AIInferenceService.TEMPLATE_STOP_SEQUENCES, InferenceScheduler.Priority.BACKGROUND, callback);
+                currentRequest = request;
+            }
+            try {
+                finished.await();
+            } finally {
+                synchronized (this) {
+                    if (currentRequest == request) {
+                        currentRequest = null;
+                    }
+                }
+            }
+            if (result[0] == null) {
+                throw new Exception(error[0]);
+            }
+            return result[0];
+        }
+
+        private String readRange(long start, long end) throws Exception {
+            byte[] bytes = new byte[(int) (end - start)];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(start);
+                raf.readFully(bytes);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 读取检查点和结果日志；文件、大小、修改时间或分块预算变化时重新分块
+         */
+        private void loadCheckpoint() throws Exception {
+            checkpointDirectory.mkdirs();
+            String key = key();
+            checkpointFile = new File(checkpointDirectory, key + ".json");
+            resultsFile = new File(checkpointDirectory, key + ".results");
+            if (checkpointFile.exists()) {
+                try (Reader reader = new FileReader(checkpointFile)) {
+                    checkpoint = gson.fromJson(reader, Checkpoint.class);
+                } catch (Exception e) {
+                    Log.w(TAG, "读取检查点失败: " + e.getMessage());
+                }
+            }
+            if (checkpoint != null && checkpoint.chunks != null) {
+                checkpoint.results = new HashMap<>();
+                loadResults();
+                Log.i(TAG, "从检查点继续: 已完成 " + checkpoint.results.size() + " 项");
+                return;
+            }
+
+            checkpoint = new Checkpoint();
+            checkpoint.path = file.getAbsolutePath();
+            checkpoint.chunks = scanChunks(file, chunkTokens);
+            if (checkpoint.chunks.isEmpty()) {
+                throw new Exception("文件为空: " + file.getPath());
+            }
+            resultsFile.delete();
+            saveCheckpoint();
+            Log.i(TAG, file.getName() + " 分为 " + checkpoint.chunks.size() + " 块");
+        }
+
+        /**
+         * 读取结果日志；中断时写了一半的最后一行无法解析，丢弃后重写日志，以免后续追加接在残行后面
+         */
+        private void loadResults() {
+            if (!resultsFile.exists()) {
+                return;
+            }
+            boolean damaged = false;
+            try (BufferedReader reader = new BufferedReader(new FileReader(resultsFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ResultEntry entry = null;
+                    try {
+                        entry = gson.fromJson(line, ResultEntry.class);
+                    } catch (Exception ignored) {
+                        // 写了一半的行
+                    }
+                    if (entry == null || entry.key == null || entry.text == null) {
+                        damaged = true;
+                        continue;
+                    }
+                    checkpoint.results.put(entry.key, entry.text);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "读取结果日志失败: " + e.getMessage());
+                damaged = true;
+            }
+            if (damaged) {
+                rewriteResults();
+            }
+        }
+
+        private void rewriteResults() {
+            File tmp = new File(resultsFile.getPath() + ".tmp");
+            try (Writer writer = new FileWriter(tmp)) {
+                for (Map.Entry<String, String> result : checkpoint.results.entrySet()) {
+                    writer.write(gson.toJson(new ResultEntry(result.getKey(), result.getValue())));
+                    writer.write('\n');
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "重写结果日志失败: " + e.getMessage());
+                return;
+            }
+            if (!tmp.renameTo(resultsFile)) {
+                Log.w(TAG, "重写结果日志失败: 无法替换 " + resultsFile.getName());
+            }
+        }
+
+        /**
+         * 把一项结果追加为结果日志的一行，只写这一项，不随已完成的项数增长
+         */
+        private void appendResult(String key, String text) {
+            try (Writer writer = new FileWriter(resultsFile, true)) {
+                writer.write(gson.toJson(new ResultEntry(key, text)));
+                writer.write('\n');
+            } catch (Exception e) {
+                Log.w(TAG, "保存结果失败: " + e.getMessage());
+            }
+        }
+
+        /**
+         * 先写临时文件再替换，避免中断时检查点损坏；只在分块和得到最终摘要时写入
+         */
+        private void saveCheckpoint() {
+            File tmp = new File(checkpointFile.getPath() + ".tmp");
+            try (Writer writer = new FileWriter(tmp)) {
+                gson.toJson(checkpoint, writer);
+            } catch (Exception e) {
+                Log.w(TAG, "保存检查点失败: " + e.getMessage());
+                return;
+            }
+            if (!tmp.renameTo(checkpointFile)) {
+                Log.w(TAG, "保存检查点失败: 无法替换 " + checkpointFile.getName());
+            }
+        }
+
+        private String key() throws Exception {
+            String identity = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified()
+                    + "|" + chunkTokens + "|" + CHARS_PER_TOKEN;
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+
+    /**
+     * 流式扫描文件，按行累积到令牌预算为止，只返回每块的字节范围 [start, end)；
+     * 超长的行按字节上限截断（不拆开 UTF-8 字符），保证任何一段都不超过预算
+     */
+    static List<long[]> scanChunks(File file, int chunkTokens) throws Exception {
+        // 中日韩字符每字 3 字节、约 1 令牌，其他文本按 CHARS_PER_TOKEN 字节 1 令牌，取较小的上限
+        int maxSegmentBytes = (int) (chunkTokens * Math.min(3, CHARS_PER_TOKEN));
+        ChunkBuilder builder = new ChunkBuilder(chunkTokens);
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+            long position = 0;
+            int b;
+            while ((b = input.read()) >= 0) {
+                boolean lead = (b & 0xC0) != 0x80;
+                if (segment.size() >= maxSegmentBytes && lead) {
+                    builder.add(segment, position);
+                }
+                segment.write(b);
+                position++;
+                if (b == '\n') {
+                    builder.add(segment, position);
+                }
+            }
+            builder.add(segment, position);
+            return builder.finish(position);
+        }
+    }
+
+    /**
+     * 把连续的段累积成块
+     */
+    private static class ChunkBuilder {
+        private final int chunkTokens;
+        private final List<long[]> chunks = new ArrayList<>();
+        private long chunkStart;
+        private int chunkTokenCount;
+
+        ChunkBuilder(int chunkTokens) {
+            this.chunkTokens = chunkTokens;
+        }
+
+        /**
+         * 加入以 segmentEnd 结束的一段并清空 segment；当前块放不下时先在这一段之前结束当前块
+         */
+        void add(ByteArrayOutputStream segment, long segmentEnd) {
+            if (segment.size() == 0) {
+                return;
+            }
+            int tokens = ConversationSession.estimateTokens(new String(segment.toByteArray(), StandardCharsets.UTF_8),
+                    CHARS_PER_TOKEN);
+            long segmentStart = segmentEnd - segment.size();
+            segment.reset();
+            if (chunkTokenCount > 0 && chunkTokenCount + tokens > chunkTokens) {
+                chunks.add(new long[]{chunkStart, segmentStart});
+                chunkStart = segmentStart;
+                chunkTokenCount = 0;
+            }
+            chunkTokenCount += tokens;
+        }
+
+        List<long[]> finish(long end) {
+            if (end > chunkStart) {
+                chunks.add(new long[]{chunkStart, end});
+            }
+            return chunks;
+        }
+    }
+
+    private static String firstError(AIInferenceService.BatchResult result) {
+        for (String error : result.errors) {
+            if (error != null) {
+                return error;
+            }
+        }
+        return "";
+    }
+
+    private interface PromptBuilder {
+        String build(int index) throws Exception;
+    }
+
+    /**
+     * 检查点：分块范围和最终摘要；已完成的结果单独记在结果日志中，
+     * 键为 阶段:序号（m 为分块摘要，rN 为第 N 层合并）
+     */
+    static class Checkpoint {
+        String path;
+        List<long[]> chunks;
+        transient Map<String, String> results = new HashMap<>();
+        String summary;
+    }
+
+    /**
+     * 结果日志中的一行
+     */
+    static class ResultEntry {
+        String key;
+        String text;
+
+        ResultEntry(String key, String text) {
+            this.key = key;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 摘要进度回调，可能在多个后台线程调用
+     */
+    public interface SummaryListener {
+        void onProgress(String stage, int completed, int total);
+        void onComplete(String summary);
+        void onError(String error);
+    }
+}
@@ -0,0 +1,178 @@
+package com.android.aiassistant.service;
+
+import com.android.aiassistant.utils.AIModelManager;
+import com.android.aiassistant.utils.FileUtils;
+import com.android.aiassistant.utils.MemoryUtils;
+
+/**
+ * 模型内存准入检查
+ * 启动 llama.cpp 前估算 权重 + KV 缓存 + 计算缓冲 的占用并与 MemAvailable 比较，有 GGUF 元数据时按实际结构计算：
+ * 放得下就按原参数运行；放不下先尝试缩小 ctx/batch 或改用 mmap；仍放不下则拒绝，
+ * 避免运行数秒后被低内存查杀
+ */
+public class MemoryAdmission {
+
+    // 留给系统和本应用的内存
+    private static final long RESERVE_BYTES = 384L * 1024 * 1024;
+    // llama.cpp 进程自身的固定开销
+    private static final long PROCESS_OVERHEAD_BYTES = 96L * 1024 * 1024;
+
+    // 7B 模型（无 GQA，f16 KV）每个上下文令牌约 512KB，按参数量线性估算，偏保守
+    private static final double REFERENCE_PARAMS = 7e9;
+    private static final long REFERENCE_KV_BYTES_PER_TOKEN = 512L * 1024;
+    // Q4_K_M 约每参数 0.5625 字节
+    private static final double BYTES_PER_PARAM = 0.5625;
+
+    private static final int MIN_CONTEXT_LENGTH = 512;
+    private static final int MIN_BATCH_SIZE = 128;
+
+    /**
+     * 检查模型能否以指定参数运行
+     */
+    public Decision evaluate(AIModelManager.ModelInfo model, LaunchOptions requested) {
+        long available = MemoryUtils.getAvailableMemory() - RESERVE_BYTES;
+        return evaluate(model, requested, available, MemoryUtils.getTotalMemory());
+    }
+
+    /**
+     * 按给定的可用内存和设备总内存检查，total 未知时为 0，不做总内存检查
+     */
+    Decision evaluate(AIModelManager.ModelInfo model, LaunchOptions requested, long available, long total) {
+        Decision decision = new Decision();
+        decision.availableBytes = available;
+
+        if (total > 0 && model.size > total) {
+            return reject(decision, requested, model, "模型文件 " + model.formattedSize
+                    + " 大于设备内存 " + FileUtils.formatFileSize(total));
+        }
+
+        decision.requiredBytes = residentBytes(model, requested);
+        if (decision.requiredBytes <= available) {
+            decision.verdict = Verdict.ADMIT;
+            decision.options = requested;
+            return decision;
+        }
+
+        // 降级：改用 mmap 并取消 mlock，使权重页可以被回收
+        LaunchOptions degraded = requested.copy();
+        degraded.useMmap = true;
+        degraded.useMlock = false;
+
+        // 再依次缩小上下文和批大小
+        while (residentBytes(model, degraded) > available) {
+            if (degraded.contextLength > MIN_CONTEXT_LENGTH) {
+                degraded.contextLength = Math.max(MIN_CONTEXT_LENGTH, degraded.contextLength / 2);
+            } else if (degraded.batchSize > MIN_BATCH_SIZE) {
+                degraded.batchSize = Math.max(MIN_BATCH_SIZE, degraded.batchSize / 2);
+            } else {
+                break;
+            }
+        }
+
+        long resident = residentBytes(model, degraded);
+        if (resident <= available) {
+            decision.verdict = Verdict.DEGRADE;
+            decision.options = degraded;
+            decision.requiredBytes = resident;
+            decision.reason = "可用内存 " + FileUtils.formatFileSize(Math.max(0, available))
+                    + " 不足，已降级为 " + degraded;
+            return decision;
+        }
+
+        // 权重通过 mmap 按需分页，只要匿名内存放得下仍可运行，但会变慢
+        long anonymous = anonymousBytes(model, degraded);
+        if (anonymous <= available && model.size <= available * 2) {
+            decision.verdict = Verdict.DEGRADE;
+            decision.options = degraded;
+            decision.requiredBytes = resident;
+            decision.reason = "可用内存不足以常驻整个模型，部分权重将从存储分页读取，速度会变慢；参数 " + degraded;
+            return decision;
+        }
+
+        decision.requiredBytes = resident;
+        return reject(decision, degraded, model, "需要约 " + FileUtils.formatFileSize(resident)
+                + "，可用 " + FileUtils.formatFileSize(Math.max(0, available)));
+    }
+
+    /**
+     * 完全常驻时的内存占用
+     */
+    public static long residentBytes(AIModelManager.ModelInfo model, LaunchOptions options) {
+        return weightBytes(model) + anonymousBytes(model, options);
+    }
+
+    /**
+     * 权重大小，有元数据时不计文件头
+     */
+    public static long weightBytes(AIModelManager.ModelInfo model) {
+        return model.metadataLoaded && model.tensorBytes > 0 ? model.tensorBytes : model.size;
+    }
+
+    /**
+     * 无法被回收的匿名内存：KV 缓存、计算缓冲和进程开销；不使用 mmap 或使用 mlock 时权重也计入
+     */
+    public static long anonymousBytes(AIModelManager.ModelInfo model, LaunchOptions options) {
+        long bytes = estimateKvCacheBytes(model, options.contextLength)
+                + estimateComputeBytes(model, options.batchSize)
+                + PROCESS_OVERHEAD_BYTES;
+        if (!options.useMmap || options.useMlock) {
+            bytes += weightBytes(model);
+        }
+        return bytes;
+    }
+
+    /**
+     * KV 缓存大小，有元数据时按层数和 KV 头数精确计算
+     */
+    public static long estimateKvCacheBytes(AIModelManager.ModelInfo model, int contextLength) {
+        long bytesPerToken = model.getKvBytesPerToken();
+        if (bytesPerToken > 0) {
+            return bytesPerToken * contextLength;
+        }
+        double params = model.size / BYTES_PER_PARAM;
+        double perToken = REFERENCE_KV_BYTES_PER_TOKEN * params / REFERENCE_PARAMS;
+        return (long) (perToken * contextLength);
+    }
+
+    /**
+     * 计算缓冲大小，随批大小和模型宽度增长
+     */
+    public static long estimateComputeBytes(AIModelManager.ModelInfo model, int batchSize) {
+        if (model.metadataLoaded && model.embeddingLength > 0 && model.vocabSize > 0) {
+            // 每个批内令牌的中间激活加上输出 logits
+            long perToken = model.embeddingLength * 32L + model.vocabSize * 4L;
+            return 32L * 1024 * 1024 + batchSize * perToken;
+        }
+        double params = model.size / BYTES_PER_PARAM;
+        double scale = Math.sqrt(params / REFERENCE_PARAMS);
+        return (long) (64L * 1024 * 1024 + batchSize * 256L * 1024 * scale);
+    }
+
+    private static Decision reject(Decision decision, LaunchOptions options, AIModelManager.ModelInfo model,
+                                   String detail) {
+        decision.verdict = Verdict.REJECT;
+        decision.options = options;
+        decision.reason = "内存不足，无法运行 " + model.name + ": " + detail;
+        return decision;
+    }
+
+    /**
+     * 检查结论
+     */
+    public enum Verdict {
+        ADMIT,
+        DEGRADE,
+        REJECT
+    }
+
+    /**
+     * 检查结果
+     */
+    public static class Decision {
+        public Verdict verdict;
+        public LaunchOptions options;
+        public String reason;
+        public long requiredBytes;
+        public long availableBytes;
+    }
+}
@@ -0,0 +1,266 @@
+package com.android.aiassistant.service;
+
+import android.content.Context;
+import android.util.Log;
+import com.android.aiassistant.utils.MemoryUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 模型预热
+ * 选择模型后顺序读取一遍模型文件，把它提前读进页缓存，
+ * 避免 llama.cpp 映射模型后首个 token 被大量缺页中断拖慢；
+ * 有 root 时可以用 vmtouch 把模型锁定在内存中。vmtouch 不随应用分发，需要自行编译后
+ * adb push 到 /data/local/tmp/vmtouch 并 chmod 755，或放在 root shell 的 PATH 中；
+ * 找不到时不锁定，并在预热结果中说明
+ */
+public class ModelPrewarmer {
+
+    private static final String TAG = "ModelPrewarmer";
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    // 预热后至少给系统和推理留出的内存
+    private static final long MEMORY_RESERVE = 512L * 1024 * 1024;
+    private static final long MEMORY_CHECK_INTERVAL = 64L * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+    // 与 llama.cpp 相同，手动安装的可执行文件放在这里
+    private static final String VMTOUCH_PATH = "/data/local/tmp/vmtouch";
+
+    private final RootShellService rootService;
+    private final File lockPidFile;
+
+    private PrewarmTask currentTask;
+    private boolean lockEnabled;
+    private String lockedPath;
+
+    public ModelPrewarmer(Context context, RootShellService rootService) {
+        this.rootService = rootService;
+        this.lockPidFile = new File(context.getCacheDir(), "vmtouch.pid");
+    }
+
+    /**
+     * 是否在预热后通过 root 锁定模型页，需要设备上有 vmtouch（见类说明）
+     */
+    public synchronized void setLockEnabled(boolean lockEnabled) {
+        this.lockEnabled = lockEnabled;
+        if (!lockEnabled) {
+            releaseLock();
+        }
+    }
+
+    /**
+     * 开始预热，会取消上一次未完成的预热
+     */
+    public synchronized PrewarmTask prewarm(File modelFile, PrewarmListener listener) {
+        cancel();
+        if (lockedPath != null && !lockedPath.equals(modelFile.getAbsolutePath())) {
+            releaseLock();
+        }
+
+        PrewarmTask task = new PrewarmTask(modelFile, listener);
+        currentTask = task;
+        Thread thread = new Thread(task::run, "model-prewarm");
+        // 预热只是优化，不和界面及推理抢 CPU
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * 取消正在进行的预热
+     */
+    public synchronized void cancel() {
+        if (currentTask != null) {
+            currentTask.cancel();
+            currentTask = null;
+        }
+    }
+
+    /**
+     * 取消预热并释放锁定的内存
+     */
+    public synchronized void shutdown() {
+        cancel();
+        releaseLock();
+    }
+
+    private synchronized boolean shouldLock(PrewarmTask task) {
+        return lockEnabled && currentTask == task && !task.cancelled && rootService != null;
+    }
+
+    /**
+     * 用 vmtouch 后台进程锁定整个文件，替换之前的锁定；无法锁定时把原因写入结果
+     */
+    private synchronized void lock(File modelFile, PrewarmResult prewarm) {
+        String vmtouch = findVmtouch();
+        if (vmtouch == null) {
+            Log.w(TAG, "未找到 vmtouch，无法锁定模型");
+            prewarm.notice = "未找到 vmtouch，无法锁定模型，需放到 " + VMTOUCH_PATH;
+            return;
+        }
+
+        releaseLock();
+        // -m 取消 vmtouch 默认的 500MB 文件大小上限
+        String command = "'" + vmtouch + "' -q -d -l -m " + (modelFile.length() / (1024 * 1024) + 1) + "M"
+                + " -P '" + lockPidFile.getAbsolutePath() + "' '" + modelFile.getAbsolutePath() + "'";
+        RootShellService.CommandResult result = rootService.executeCommandWithResult(command);
+        if (!result.success) {
+            Log.w(TAG, "锁定模型失败: " + result.error);
+            prewarm.notice = "锁定模型失败: " + (result.error != null ? result.error.trim() : "退出码 " + result.exitCode);
+            return;
+        }
+        lockedPath = modelFile.getAbsolutePath();
+        prewarm.locked = true;
+        Log.i(TAG, "模型已锁定在内存: " + modelFile.getName());
+    }
+
+    /**
+     * 查找 vmtouch：先找手动安装的位置，再找 root shell 的 PATH
+     */
+    private String findVmtouch() {
+        RootShellService.CommandResult check = rootService.executeCommandWithResult(
+                "[ -x " + VMTOUCH_PATH + " ] && echo " + VMTOUCH_PATH + " || command -v vmtouch");
+        String path = check.success ? check.output.trim() : "";
+        return path.isEmpty() ? null : path;
+    }
+
+    private synchronized void releaseLock() {
+        if (lockedPath == null) {
+            return;
+        }
+        rootService.executeCommandWithResult("kill $(cat '" + lockPidFile.getAbsolutePath() + "') && rm -f '"
+                + lockPidFile.getAbsolutePath() + "'");
+        Log.i(TAG, "已解除模型锁定: " + lockedPath);
+        lockedPath = null;
+    }
+
+    /**
+     * 一次预热任务
+     */
+    public class PrewarmTask {
+        private final File modelFile;
+        private final PrewarmListener listener;
+        private volatile boolean cancelled;
+
+        PrewarmTask(File modelFile, PrewarmListener listener) {
+            this.modelFile = modelFile;
+            this.listener = listener;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void run() {
+            PrewarmResult result = new PrewarmResult();
+            result.totalBytes = modelFile.length();
+            long startTime = System.currentTimeMillis();
+
+            // 可用内存里包含可回收的页缓存，预热读入的页也计入其中，所以只需在开始时确定预算
+            long budget = MemoryUtils.getAvailableMemory() - MEMORY_RESERVE;
+            long target = Math.max(0, Math.min(result.totalBytes, budget));
+            result.truncated = target < result.totalBytes;
+            if (budget < CHUNK_SIZE) {
+                // 开始前内存就已不足，不打开文件，预热会挤掉其他应用
+                Log.w(TAG, "可用内存不足，跳过预热: " + modelFile.getName());
+                result.notice = "可用内存不足，未预热";
+                listener.onComplete(result);
+                return;
+            }
+
+            try (FileInputStream input = new FileInputStream(modelFile);
+                 FileChannel channel = input.getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                long nextCheck = MEMORY_CHECK_INTERVAL;
+                long lastReport = 0;
+
+                while (result.warmedBytes < target && !cancelled) {
+                    // 其他应用在预热期间占用了内存时，在读下一块之前停止
+                    if (result.warmedBytes >= nextCheck) {
+                        nextCheck += MEMORY_CHECK_INTERVAL;
+                        if (MemoryUtils.getAvailableMemory() < MEMORY_RESERVE) {
+                            Log.w(TAG, "可用内存不足，停止预热");
+                            result.truncated = true;
+                            break;
+                        }
+                    }
+
+                    buffer.clear();
+                    buffer.limit((int) Math.min(CHUNK_SIZE, target - result.warmedBytes));
+                    int read = channel.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    result.warmedBytes += read;
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                        lastReport = now;
+                        listener.onProgress(result.warmedBytes, target);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "预热模型失败", e);
+                if (!cancelled) {
+                    listener.onError("预热失败: " + e.getMessage());
+                }
+                return;
+            }
+
+            result.elapsedMs = System.currentTimeMillis() - startTime;
+            if (cancelled) {
+                Log.i(TAG, "预热已取消: " + modelFile.getName());
+                return;
+            }
+            listener.onProgress(result.warmedBytes, target);
+
+            // 只有整个文件都放得下时才锁定，避免锁住的内存挤掉推理需要的内存
+            if (!result.truncated && shouldLock(this)) {
+                lock(modelFile, result);
+            }
+            Log.i(TAG, "预热完成: " + result);
+            listener.onComplete(result);
+        }
+    }
+
+    /**
+     * 预热结果
+     */
+    public static class PrewarmResult {
+        public long totalBytes;
+        public long warmedBytes;
+        public long elapsedMs;
+        // 受内存预算限制只预热了文件开头一部分
+        public boolean truncated;
+        public boolean locked;
+        // 未预热或未能锁定的原因
+        public String notice;
+
+        public double getMegabytesPerSecond() {
+            return elapsedMs > 0 ? warmedBytes / 1024.0 / 1024.0 * 1000.0 / elapsedMs : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d/%d MB，%d ms，%.1f MB/s%s%s%s",
+                    warmedBytes / (1024 * 1024), totalBytes / (1024 * 1024), elapsedMs,
+                    getMegabytesPerSecond(), truncated ? "，受内存限制未完整预热" : "",
+                    locked ? "，已锁定" : "", notice != null ? "，" + notice : "");
+        }
+    }
+
+    /**
+     * 预热回调，在后台线程调用
+     */
+    public interface PrewarmListener {
+        void onProgress(long warmedBytes, long totalBytes);
+        void onComplete(PrewarmResult result);
+        void onError(String error);
+    }
+}
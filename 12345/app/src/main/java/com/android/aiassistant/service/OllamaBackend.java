@@ -0,0 +1,117 @@
+package com.android.aiassistant.service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import okhttp3.Response;
+import okio.BufferedSource;
+
+/**
+ * Ollama 推理后端
+ * 通过 /api/generate 流式生成，响应为每行一个 JSON 对象（NDJSON）
+ */
+public class OllamaBackend extends HttpInferenceBackend {
+
+    public static final String DEFAULT_BASE_URL = "http://127.0.0.1:11434";
+
+    private static final double NANOS_PER_MS = 1_000_000.0;
+
+    // Ollama 中的模型名称，如 qwen2.5:7b；为 null 时使用模型文件名
+    private final String model;
+
+    public OllamaBackend(String baseUrl, String model) {
+        super(baseUrl != null ? baseUrl : DEFAULT_BASE_URL);
+        this.model = model;
+    }
+
+    @Override
+    public String getName() {
+        return "ollama@" + baseUrl + (model != null ? " (" + model + ")" : "");
+    }
+
+    @Override
+    protected String getHealthPath() {
+        return "/api/version";
+    }
+
+    @Override
+    public void generate(GenerationRequest request, AIInferenceService.InferenceCallback callback,
+                         InferenceRun run, InferenceMetrics metrics) throws Exception {
+        try (Response response = post("/api/generate", buildParams(request), run)) {
+            readStream(response.body().source(), callback, metrics);
+        }
+    }
+
+    private JsonObject buildParams(GenerationRequest request) {
+        JsonObject options = new JsonObject();
+        options.addProperty("num_predict", request.maxTokens);
+        options.addProperty("temperature", request.temperature);
+        options.addProperty("top_p", request.topP);
+        if (request.options != null) {
+            options.addProperty("num_ctx", request.options.contextLength);
+            options.addProperty("num_batch", request.options.batchSize);
+            if (request.options.threads > 0) {
+                options.addProperty("num_thread", request.options.threads);
+            }
+        }
+
+        JsonObject params = new JsonObject();
+        params.addProperty("model", model != null ? model : modelName(request.modelPath));
+        params.addProperty("prompt", request.prompt);
+        params.addProperty("stream", true);
+        params.add("options", options);
+        return params;
+    }
+
+    /**
+     * 未指定模型名称时用文件名（去掉 .gguf）
+     */
+    private static String modelName(String modelPath) {
+        String name = new File(modelPath).getName();
+        return name.toLowerCase().endsWith(".gguf") ? name.substring(0, name.length() - 5) : name;
+    }
+
+    /**
+     * 逐行读取 NDJSON 并回调生成的文本，最后一行带有计时
+     */
+    static void readStream(BufferedSource source, AIInferenceService.InferenceCallback callback,
+                           InferenceMetrics metrics) throws Exception {
+        String line;
+        while ((line = source.readUtf8Line()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonObject event = JsonParser.parseString(line).getAsJsonObject();
+            if (event.has("error")) {
+                throw new Exception("Ollama 返回错误: " + event.get("error").getAsString());
+            }
+            if (event.has("response")) {
+                String content = event.get("response").getAsString();
+                if (!content.isEmpty()) {
+                    callback.onToken(content, System.nanoTime());
+                }
+            }
+            if (event.has("done") && event.get("done").getAsBoolean()) {
+                parseTimings(event, metrics);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Ollama 的耗时单位为纳秒
+     */
+    private static void parseTimings(JsonObject event, InferenceMetrics metrics) {
+        if (event.has("load_duration")) {
+            metrics.loadMs = Math.round(event.get("load_duration").getAsLong() / NANOS_PER_MS);
+        }
+        if (event.has("prompt_eval_count") && event.has("prompt_eval_duration")) {
+            metrics.promptTokens = event.get("prompt_eval_count").getAsInt();
+            metrics.promptEvalMs = event.get("prompt_eval_duration").getAsLong() / NANOS_PER_MS;
+        }
+        if (event.has("eval_count") && event.has("eval_duration")) {
+            metrics.evalTokens = event.get("eval_count").getAsInt();
+            metrics.evalMs = event.get("eval_duration").getAsLong() / NANOS_PER_MS;
+        }
+    }
+}
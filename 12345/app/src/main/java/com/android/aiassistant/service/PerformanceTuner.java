@@ -0,0 +1,426 @@
+package com.android.aiassistant.service;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import com.android.aiassistant.utils.AIModelManager;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 推理性能自动调优
+ * 对线程数、批大小、上下文长度和 mmap/mlock 逐项做短时校准，
+ * 按 (模型, 设备) 保存最快的参数组合，推理时自动应用；
+ * 当前可用内存放不下的组合不运行，避免校准本身触发低内存查杀
+ */
+public class PerformanceTuner {
+
+    private static final String TAG = "PerformanceTuner";
+    private static final String PROFILE_FILE = "tuning_profiles.json";
+
+    // 校准用的提示约 64 个令牌，生成 32 个令牌
+    private static final String BENCH_PROMPT = "请用三句话介绍一下大语言模型在手机上本地运行的优点和缺点，"
+            + "并说明量化对推理速度和内存占用的影响。Explain briefly why memory bandwidth limits "
+            + "token generation speed on mobile devices.";
+    private static final int BENCH_TOKENS = 32;
+    private static final long BENCH_TIMEOUT_SECONDS = 300;
+    // 等待校准进程时检查取消和超时的间隔
+    private static final long POLL_INTERVAL_MS = 200;
+    // 进程结束后等待输出读完的最长时间
+    private static final long OUTPUT_DRAIN_TIMEOUT_MS = 1000;
+
+    // 典型请求：256 个提示令牌 + 128 个生成令牌，用于综合评分
+    private static final int TYPICAL_PROMPT_TOKENS = 256;
+    private static final int TYPICAL_GENERATED_TOKENS = 128;
+
+    // 更大的上下文只要不慢于最佳结果 5% 就优先选用
+    private static final double CONTEXT_TOLERANCE = 1.05;
+
+    private final Context context;
+    private final AIInferenceService inferenceService;
+    private final Gson gson = new Gson();
+    private final MemoryAdmission memoryAdmission = new MemoryAdmission();
+    private final Map<List<String>, TuningProfile> measured = new HashMap<>();
+    private volatile boolean cancelled;
+
+    public PerformanceTuner(Context context, AIInferenceService inferenceService) {
+        this.context = context;
+        this.inferenceService = inferenceService;
+    }
+
+    /**
+     * 对指定模型执行校准并保存最佳参数
+     */
+    public synchronized TuningProfile tune(String modelPath, TuningListener listener) throws Exception {
+        File modelFile = new File(modelPath);
+        if (!modelFile.exists()) {
+            throw new Exception("模型文件不存在: " + modelPath);
+        }
+        AIModelManager.ModelInfo model = inferenceService.getModelInfo(modelFile);
+        if (model == null) {
+            throw new Exception("无法读取模型信息: " + modelPath);
+        }
+        cancelled = false;
+        measured.clear();
+
+        // 校准期间释放常驻进程，避免同时占用两份内存
+        inferenceService.releaseWorker();
+
+        TuningProfile best = new TuningProfile();
+        best.threads = getPerformanceCoreCount();
+        best.batchSize = 512;
+        best.contextLength = 2048;
+        best.useMmap = true;
+        best.useMlock = false;
+        measure(model, best, listener);
+
+        // 线程数
+        for (int threads : threadCandidates()) {
+            TuningProfile candidate = best.copy();
+            candidate.threads = threads;
+            best = faster(best, measure(model, candidate, listener));
+        }
+
+        // 批大小
+        for (int batchSize : new int[]{128, 256, 512}) {
+            TuningProfile candidate = best.copy();
+            candidate.batchSize = batchSize;
+            best = faster(best, measure(model, candidate, listener));
+        }
+
+        // mmap / mlock
+        boolean[][] memoryOptions = {{true, false}, {false, false}, {true, true}};
+        for (boolean[] option : memoryOptions) {
+            TuningProfile candidate = best.copy();
+            candidate.useMmap = option[0];
+            candidate.useMlock = option[1];
+            best = faster(best, measure(model, candidate, listener));
+        }
+
+        // 上下文长度：在速度相当的前提下保留更大的上下文
+        TuningProfile fastest = best;
+        for (int contextLength : new int[]{1024, 2048, 4096}) {
+            TuningProfile candidate = fastest.copy();
+            candidate.contextLength = contextLength;
+            TuningProfile result = measure(model, candidate, listener);
+            if (result.isValid() && result.estimatedCostMs() <= fastest.estimatedCostMs() * CONTEXT_TOLERANCE
+                    && (result.contextLength > best.contextLength || !best.isValid())) {
+                best = result;
+            }
+        }
+
+        if (!best.isValid()) {
+            throw new Exception("校准失败，没有可用的参数组合");
+        }
+
+        best.tunedAt = System.currentTimeMillis();
+        saveProfile(modelFile, best);
+        Log.i(TAG, "最佳参数: " + best);
+        return best;
+    }
+
+    /**
+     * 取消正在进行的校准
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 读取已保存的参数，没有时返回 null
+     */
+    public TuningProfile loadProfile(File modelFile) {
+        return loadProfiles().get(profileKey(modelFile));
+    }
+
+    private TuningProfile measure(AIModelManager.ModelInfo model, TuningProfile profile, TuningListener listener)
+            throws Exception {
+        if (cancelled) {
+            throw new Exception("校准已取消");
+        }
+        // 同一组合只测一次
+        TuningProfile previous = measured.get(profile.toArgs());
+        if (previous != null) {
+            return previous;
+        }
+
+        // 需要降级才能运行的组合测出的不是它本身的速度，直接跳过
+        MemoryAdmission.Decision decision = memoryAdmission.evaluate(model, profile.toLaunchOptions());
+        if (decision.verdict != MemoryAdmission.Verdict.ADMIT) {
+            Log.i(TAG, "跳过内存放不下的组合 " + profile.toArgs() + ": " + decision.reason);
+            measured.put(profile.toArgs(), profile);
+            return profile;
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(inferenceService.getLlamaCppPath());
+        command.add("-m");
+        command.add(model.path);
+        command.add("-p");
+        command.add(BENCH_PROMPT);
+        command.add("-n");
+        command.add(String.valueOf(BENCH_TOKENS));
+        command.add("--temp");
+        command.add("0");
+        command.add("--no-display-prompt");
+        command.addAll(profile.toArgs());
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        InferenceMetrics metrics = new InferenceMetrics();
+        LlamaOutputParser parser = new LlamaOutputParser(metrics);
+        // 输出在独立线程读取，本线程按期限等待进程结束，卡住或取消时可以及时终止
+        Thread reader = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    parser.parseDiagnostic(line);
+                }
+            } catch (Exception ignored) {
+                // 进程被终止
+            }
+        }, "tuner-output");
+        reader.setDaemon(true);
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(BENCH_TIMEOUT_SECONDS);
+        boolean exited = false;
+        while (!cancelled && System.currentTimeMillis() < deadline) {
+            if (process.waitFor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                exited = true;
+                break;
+            }
+        }
+        if (!exited) {
+            process.destroyForcibly();
+        }
+        reader.join(OUTPUT_DRAIN_TIMEOUT_MS);
+        if (cancelled) {
+            throw new Exception("校准已取消");
+        }
+
+        if (exited && process.exitValue() == 0) {
+            profile.promptTokensPerSecond = Math.max(0, metrics.promptTokensPerSecond());
+            profile.evalTokensPerSecond = Math.max(0, metrics.evalTokensPerSecond());
+        } else if (!exited) {
+            Log.w(TAG, "校准超时: " + profile.toArgs());
+        }
+
+        measured.put(profile.toArgs(), profile);
+        if (listener != null) {
+            listener.onMeasured(profile);
+        }
+        return profile;
+    }
+
+    private static TuningProfile faster(TuningProfile current, TuningProfile candidate) {
+        if (!candidate.isValid()) {
+            return current;
+        }
+        if (!current.isValid() || candidate.estimatedCostMs() < current.estimatedCostMs()) {
+            return candidate;
+        }
+        return current;
+    }
+
+    /**
+     * 候选线程数：大核数量、大核+中核、核心总数的一半和全部
+     */
+    private static Set<Integer> threadCandidates() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Set<Integer> candidates = new LinkedHashSet<>();
+        candidates.add(getPerformanceCoreCount());
+        candidates.add(Math.max(1, cores - countCoresAtMinFrequency()));
+        candidates.add(Math.max(1, cores / 2));
+        candidates.add(cores);
+        return candidates;
+    }
+
+    /**
+     * 最高频率簇的核心数；big.LITTLE 上线程数超过大核数量往往会把工作分给小核
+     */
+    static int getPerformanceCoreCount() {
+        long[] frequencies = readMaxFrequencies();
+        if (frequencies.length == 0) {
+            return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        long max = 0;
+        for (long frequency : frequencies) {
+            max = Math.max(max, frequency);
+        }
+        int count = 0;
+        for (long frequency : frequencies) {
+            // 同簇核心的最高频率可能略有差异
+            if (frequency >= max * 0.9) {
+                count++;
+            }
+        }
+        return Math.max(1, count);
+    }
+
+    private static int countCoresAtMinFrequency() {
+        long[] frequencies = readMaxFrequencies();
+        if (frequencies.length == 0) {
+            return 0;
+        }
+        long min = Long.MAX_VALUE;
+        for (long frequency : frequencies) {
+            min = Math.min(min, frequency);
+        }
+        int count = 0;
+        for (long frequency : frequencies) {
+            if (frequency == min) {
+                count++;
+            }
+        }
+        return count == frequencies.length ? 0 : count;
+    }
+
+    private static long[] readMaxFrequencies() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long[] frequencies = new long[cores];
+        for (int i = 0; i < cores; i++) {
+            File file = new File("/sys/devices/system/cpu/cpu" + i + "/cpufreq/cpuinfo_max_freq");
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                frequencies[i] = Long.parseLong(reader.readLine().trim());
+            } catch (Exception e) {
+                return new long[0];
+            }
+        }
+        return frequencies;
+    }
+
+    private Map<String, TuningProfile> loadProfiles() {
+        File file = new File(context.getFilesDir(), PROFILE_FILE);
+        if (!file.exists()) {
+            return new HashMap<>();
+        }
+        try (Reader reader = new FileReader(file)) {
+            Map<String, TuningProfile> profiles = gson.fromJson(reader,
+                    new TypeToken<Map<String, TuningProfile>>() {}.getType());
+            return profiles != null ? profiles : new HashMap<>();
+        } catch (Exception e) {
+            Log.w(TAG, "读取调优配置失败: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    private synchronized void saveProfile(File modelFile, TuningProfile profile) throws Exception {
+        Map<String, TuningProfile> profiles = loadProfiles();
+        profiles.put(profileKey(modelFile), profile);
+        File file = new File(context.getFilesDir(), PROFILE_FILE);
+        try (Writer writer = new FileWriter(file)) {
+            gson.toJson(profiles, writer);
+        }
+    }
+
+    /**
+     * 配置键：模型文件名和大小 + 设备型号和核心数
+     */
+    private static String profileKey(File modelFile) {
+        return modelFile.getName() + ":" + modelFile.length() + "@" + Build.MANUFACTURER + "/"
+                + Build.MODEL + "/" + Build.HARDWARE + "/" + Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 调优结果
+     */
+    public static class TuningProfile {
+        public int threads;
+        public int batchSize;
+        public int contextLength;
+        public boolean useMmap;
+        public boolean useMlock;
+        public double promptTokensPerSecond;
+        public double evalTokensPerSecond;
+        public long tunedAt;
+
+        public boolean isValid() {
+            return promptTokensPerSecond > 0 && evalTokensPerSecond > 0;
+        }
+
+        /**
+         * 典型请求的预计耗时
+         */
+        public double estimatedCostMs() {
+            if (!isValid()) {
+                return Double.MAX_VALUE;
+            }
+            return TYPICAL_PROMPT_TOKENS * 1000.0 / promptTokensPerSecond
+                    + TYPICAL_GENERATED_TOKENS * 1000.0 / evalTokensPerSecond;
+        }
+
+        /**
+         * 对应的 llama.cpp 命令行参数
+         */
+        public List<String> toArgs() {
+            List<String> args = new ArrayList<>();
+            args.add("-t");
+            args.add(String.valueOf(threads));
+            args.add("-b");
+            args.add(String.valueOf(batchSize));
+            args.add("--ctx-size");
+            args.add(String.valueOf(contextLength));
+            if (!useMmap) {
+                args.add("--no-mmap");
+            }
+            if (useMlock) {
+                args.add("--mlock");
+            }
+            return args;
+        }
+
+        /**
+         * 对应的启动参数，用于内存准入检查
+         */
+        LaunchOptions toLaunchOptions() {
+            LaunchOptions options = new LaunchOptions();
+            options.threads = threads;
+            options.batchSize = batchSize;
+            options.contextLength = contextLength;
+            options.useMmap = useMmap;
+            options.useMlock = useMlock;
+            return options;
+        }
+
+        TuningProfile copy() {
+            TuningProfile copy = new TuningProfile();
+            copy.threads = threads;
+            copy.batchSize = batchSize;
+            copy.contextLength = contextLength;
+            copy.useMmap = useMmap;
+            copy.useMlock = useMlock;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("t=%d b=%d ctx=%d mmap=%b mlock=%b 提示 %.1f tok/s 生成 %.1f tok/s",
+                    threads, batchSize, contextLength, useMmap, useMlock,
+                    promptTokensPerSecond, evalTokensPerSecond);
+        }
+    }
+
+    /**
+     * 校准进度回调
+     */
+    public interface TuningListener {
+        void onMeasured(TuningProfile profile);
+    }
+}
@@ -0,0 +1,157 @@
+package com.android.aiassistant.service;
+
+import com.android.aiassistant.utils.PromptCacheManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单次进程推理后端
+ * 每次请求启动一个 llama.cpp main 进程，模型随进程加载和释放；
+ * 以 --no-display-prompt 启动，stdout 只有生成内容，stderr 是诊断日志，两者分别读取
+ */
+public class ProcessBackend implements InferenceBackend {
+
+    // 进程结束后等待 stderr 读完的最长时间
+    private static final long DIAGNOSTIC_DRAIN_TIMEOUT_MS = 1000;
+
+    private final String binaryPath;
+    private final PromptCacheManager promptCache;
+
+    public ProcessBackend(String binaryPath, PromptCacheManager promptCache) {
+        this.binaryPath = binaryPath;
+        this.promptCache = promptCache;
+    }
+
+    @Override
+    public String getName() {
+        return "llama.cpp";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return new File(binaryPath).exists();
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public void generate(GenerationRequest request, AIInferenceService.InferenceCallback callback,
+                         InferenceRun run, InferenceMetrics metrics) throws Exception {
+        File cacheFile = acquirePromptCache(request);
+        Process process = new ProcessBuilder(buildCommand(request, cacheFile)).start();
+        run.attach(process);
+
+        LlamaOutputParser parser = new LlamaOutputParser(metrics);
+        DiagnosticDrainer diagnostics = new DiagnosticDrainer(process, parser);
+        diagnostics.start();
+
+        // 按字节到达即回调，不等待整行；日志都在 stderr，提示也不回显，stdout 原样交给调用方
+        TokenStreamReader reader = new TokenStreamReader(process.getInputStream());
+        reader.pump((text, timestampNanos) -> {
+            if (run.isCancelled()) {
+                reader.stop();
+                return;
+            }
+            callback.onToken(text, timestampNanos);
+        });
+
+        // 等待进程结束
+        int exitCode = process.waitFor();
+        diagnostics.join(DIAGNOSTIC_DRAIN_TIMEOUT_MS);
+        if (run.isCancelled()) {
+            throw new Exception("推理已取消");
+        }
+
+        if (exitCode != 0) {
+            promptCache.invalidate(cacheFile);
+            String lastError = diagnostics.getLastLine();
+            throw new Exception("推理失败，退出码: " + exitCode
+                    + (lastError != null ? " (" + lastError + ")" : ""));
+        }
+        promptCache.trim();
+
+        // 单次进程每次都会加载模型
+        metrics.modelLoaded = true;
+    }
+
+    /**
+     * 查找前缀对应的提示缓存文件
+     */
+    private File acquirePromptCache(GenerationRequest request) {
+        if (request.cachePrefix == null) {
+            return null;
+        }
+        return promptCache.acquire(new File(request.modelPath), request.options.contextLength,
+                request.cachePrefix);
+    }
+
+    /**
+     * 构建 llama.cpp 命令
+     */
+    private List<String> buildCommand(GenerationRequest request, File cacheFile) {
+        List<String> command = new ArrayList<>();
+        command.add(binaryPath);
+        command.add("-m");
+        command.add(request.modelPath);
+        command.add("-p");
+        command.add(request.prompt);
+        command.add("-n");
+        command.add(String.valueOf(request.maxTokens));
+        command.add("--temp");
+        command.add(String.valueOf(request.temperature));
+        command.add("--top-p");
+        command.add(String.valueOf(request.topP));
+        // 不回显提示：回显时不输出模板中的特殊标记，无法与原提示逐字比对去除
+        command.add("--no-display-prompt");
+        // llama.cpp 单次命令不支持草稿模型
+        command.addAll(request.options.withoutDraft().toArgs());
+        if (cacheFile != null) {
+            command.add("--prompt-cache");
+            command.add(cacheFile.getAbsolutePath());
+        }
+        return command;
+    }
+
+    /**
+     * 独立线程读取 stderr，与 stdout 互不阻塞；只保留最后一行用于错误提示
+     */
+    private static class DiagnosticDrainer extends Thread {
+        private final Process process;
+        private final LlamaOutputParser parser;
+        private volatile String lastLine;
+
+        DiagnosticDrainer(Process process, LlamaOutputParser parser) {
+            super("llama-stderr");
+            setDaemon(true);
+            this.process = process;
+            this.parser = parser;
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    parser.parseDiagnostic(line);
+                    if (!line.trim().isEmpty()) {
+                        lastLine = line.trim();
+                    }
+                }
+            } catch (Exception ignored) {
+                // 进程被终止
+            }
+        }
+
+        String getLastLine() {
+            return lastLine;
+        }
+    }
+}
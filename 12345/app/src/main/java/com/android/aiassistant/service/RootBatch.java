@@ -0,0 +1,198 @@
+package com.android.aiassistant.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量 root 文件操作
+ * 把一组操作编译成一段脚本，在一个 su 会话中一次执行完；每个操作之后输出带随机令牌和序号的标记，
+ * 标记携带该操作的退出码，据此把输出拆回到各个操作
+ */
+public class RootBatch {
+
+    // stat 输出字段：类型|大小|权限|所有者|组|修改时间
+    private static final String STAT_FORMAT = "%F|%s|%a|%U|%G|%Y";
+
+    private RootBatch() {
+    }
+
+    /**
+     * 操作类型
+     */
+    public enum Type {
+        EXISTS,
+        STAT,
+        MKDIR,
+        CHMOD,
+        CHOWN,
+        RM,
+        CP,
+        MV
+    }
+
+    /**
+     * 一个操作，argument 为 chmod 的权限、chown 的所有者或 cp/mv 的目标路径
+     */
+    public static class Operation {
+        public final Type type;
+        public final String path;
+        public final String argument;
+
+        private Operation(Type type, String path, String argument) {
+            this.type = type;
+            this.path = path;
+            this.argument = argument;
+        }
+
+        public static Operation exists(String path) {
+            return new Operation(Type.EXISTS, path, null);
+        }
+
+        public static Operation stat(String path) {
+            return new Operation(Type.STAT, path, null);
+        }
+
+        public static Operation mkdir(String path) {
+            return new Operation(Type.MKDIR, path, null);
+        }
+
+        public static Operation chmod(String path, String permissions) {
+            return new Operation(Type.CHMOD, path, permissions);
+        }
+
+        public static Operation chown(String path, String owner) {
+            return new Operation(Type.CHOWN, path, owner);
+        }
+
+        public static Operation rm(String path) {
+            return new Operation(Type.RM, path, null);
+        }
+
+        public static Operation cp(String source, String target) {
+            return new Operation(Type.CP, source, target);
+        }
+
+        public static Operation mv(String source, String target) {
+            return new Operation(Type.MV, source, target);
+        }
+
+        String toCommand() {
+            String quoted = quote(path);
+            switch (type) {
+                case EXISTS:
+                    return "[ -e " + quoted + " ]";
+                case STAT:
+                    return "stat -c '" + STAT_FORMAT + "' " + quoted;
+                case MKDIR:
+                    return "mkdir -p " + quoted;
+                case CHMOD:
+                    return "chmod " + quote(argument) + " " + quoted;
+                case CHOWN:
+                    return "chown " + quote(argument) + " " + quoted;
+                case RM:
+                    return "rm -rf " + quoted;
+                case CP:
+                    return "cp -r " + quoted + " " + quote(argument);
+                case MV:
+                    return "mv " + quoted + " " + quote(argument);
+                default:
+                    throw new IllegalArgumentException("未知操作: " + type);
+            }
+        }
+    }
+
+    /**
+     * 单个操作的结果，output 包含该操作的标准输出和标准错误；
+     * STAT 成功时填充文件信息，EXISTS 的结果即 success
+     */
+    public static class Result {
+        public Operation operation;
+        public int exitCode;
+        public boolean success;
+        public String output;
+
+        public String fileType;
+        public long size;
+        public String permissions;
+        public String owner;
+        public String group;
+        public long modifiedTime;
+    }
+
+    /**
+     * 单引号转义，路径中的引号和空格等都按原样传给命令
+     */
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * 生成一次执行所有操作的脚本，token 用于标记每个操作的结束
+     */
+    static String compile(List<Operation> operations, String token) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < operations.size(); i++) {
+            script.append("{ ").append(operations.get(i).toCommand()).append("; } 2>&1\n")
+                    .append("echo ").append(token).append(':').append(i).append(":$?\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * 按标记拆分脚本输出；批次中途失败时没有标记的操作记为失败，error 为失败原因
+     */
+    static List<Result> parse(List<Operation> operations, String token, String output, String error) {
+        List<Result> results = new ArrayList<>(operations.size());
+        int position = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            Result result = new Result();
+            result.operation = operations.get(i);
+            results.add(result);
+
+            String marker = token + ":" + i + ":";
+            int index = output != null ? output.indexOf(marker, position) : -1;
+            if (index < 0) {
+                result.exitCode = -1;
+                result.output = error != null ? error : "";
+                continue;
+            }
+            int lineEnd = output.indexOf('\n', index);
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            try {
+                result.exitCode = Integer.parseInt(output.substring(index + marker.length(), lineEnd).trim());
+            } catch (NumberFormatException e) {
+                // 会话在输出退出码之前断开，标记不完整
+                result.exitCode = -1;
+                result.output = error != null ? error : "";
+                continue;
+            }
+            result.output = output.substring(position, index);
+            result.success = result.exitCode == 0;
+            position = Math.min(lineEnd + 1, output.length());
+
+            if (result.success && result.operation.type == Type.STAT) {
+                parseStat(result);
+            }
+        }
+        return results;
+    }
+
+    private static void parseStat(Result result) {
+        String[] fields = result.output.trim().split("\\|");
+        if (fields.length < 6) {
+            return;
+        }
+        result.fileType = fields[0];
+        result.permissions = fields[2];
+        result.owner = fields[3];
+        result.group = fields[4];
+        try {
+            result.size = Long.parseLong(fields[1]);
+            result.modifiedTime = Long.parseLong(fields[5]) * 1000;
+        } catch (NumberFormatException e) {
+            // 保留已解析的字段
+        }
+    }
+}
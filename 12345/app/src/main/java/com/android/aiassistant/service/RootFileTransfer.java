@@ -0,0 +1,146 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过 root 读写文件的原始字节
+ * 每次传输单独启动一个 su 进程运行 cat，文件内容直接经过进程管道，用固定大小的缓冲区复制，
+ * 不经过文本解码和命令行，内存占用与文件大小无关
+ */
+class RootFileTransfer {
+
+    private static final String TAG = "RootFileTransfer";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    private static final long EXIT_TIMEOUT_MS = 10_000;
+    // 标准错误只保留开头一段用于报错
+    private static final int MAX_ERROR_CHARS = 4096;
+
+    private final String shell;
+
+    RootFileTransfer(String shell) {
+        this.shell = shell;
+    }
+
+    /**
+     * 把 root 文件的内容写入 out，返回读取的字节数
+     *
+     * @param totalBytes 文件大小，仅用于进度，未知时为 -1
+     */
+    long read(String path, OutputStream out, long totalBytes, RootShellService.TransferListener listener)
+            throws Exception {
+        Process process = new ProcessBuilder(shell, "-c", "cat " + RootBatch.quote(path)).start();
+        StringBuilder error = new StringBuilder();
+        Thread errorReader = drain(process.getErrorStream(), error);
+        process.getOutputStream().close();
+        try (InputStream in = process.getInputStream()) {
+            long copied = copy(in, out, totalBytes, listener);
+            checkExit(process, errorReader, error, "读取");
+            return copied;
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * 把 in 的内容写入 root 文件，覆盖原有内容，返回写入的字节数。
+     * 原地写入以保留文件的所有者、权限和 SELinux 上下文
+     *
+     * @param totalBytes 内容长度，仅用于进度，未知时为 -1
+     */
+    long write(String path, InputStream in, long totalBytes, RootShellService.TransferListener listener)
+            throws Exception {
+        Process process = new ProcessBuilder(shell, "-c", "cat > " + RootBatch.quote(path))
+                .redirectErrorStream(true)
+                .start();
+        StringBuilder error = new StringBuilder();
+        Thread errorReader = drain(process.getInputStream(), error);
+        try {
+            long copied;
+            try (OutputStream out = process.getOutputStream()) {
+                copied = copy(in, out, totalBytes, listener);
+            } catch (IOException e) {
+                // cat 打开文件失败时提前退出，管道随之断开，报告 cat 自己的错误
+                checkExit(process, errorReader, error, "写入");
+                throw e;
+            }
+            checkExit(process, errorReader, error, "写入");
+            return copied;
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private long copy(InputStream in, OutputStream out, long totalBytes, RootShellService.TransferListener listener)
+            throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long startTime = System.currentTimeMillis();
+        long lastReport = startTime;
+        long copied = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("传输已取消");
+            }
+            out.write(buffer, 0, read);
+            copied += read;
+
+            long now = System.currentTimeMillis();
+            if (listener != null && now - lastReport >= PROGRESS_INTERVAL_MS) {
+                lastReport = now;
+                listener.onProgress(copied, totalBytes, copied * 1000.0 / Math.max(1, now - startTime));
+            }
+        }
+        out.flush();
+        if (listener != null) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            listener.onProgress(copied, totalBytes, copied * 1000.0 / elapsed);
+        }
+        return copied;
+    }
+
+    private void checkExit(Process process, Thread errorReader, StringBuilder error, String action)
+            throws Exception {
+        if (!process.waitFor(EXIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new Exception(action + "文件超时");
+        }
+        if (process.exitValue() != 0) {
+            errorReader.join(EXIT_TIMEOUT_MS);
+            String message;
+            synchronized (error) {
+                message = error.toString().trim();
+            }
+            throw new Exception(action + "文件失败 (" + process.exitValue() + "): " + message);
+        }
+    }
+
+    /**
+     * 在后台线程读完 su 的错误输出，避免管道写满阻塞传输
+     */
+    private static Thread drain(InputStream stream, StringBuilder error) {
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[1024];
+            int read;
+            try (InputStream in = stream) {
+                while ((read = in.read(buffer)) > 0) {
+                    synchronized (error) {
+                        if (error.length() < MAX_ERROR_CHARS) {
+                            error.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.d(TAG, "错误输出已关闭: " + e.getMessage());
+            }
+        }, "root-transfer-stderr");
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+}
@@ -0,0 +1,400 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 常驻 su 会话
+ * 一个 su 进程连续执行多条命令。每条命令前后写入带随机令牌的开始/结束标记，
+ * 结束标记携带退出码；标准输出和标准错误各由一个线程按行读取，交替消费，读到两个流的结束标记即为该命令的完整输出
+ */
+class RootSession {
+
+    private static final String TAG = "RootSession";
+
+    private static final long START_TIMEOUT_MS = 15_000;
+    private static final long KILL_TIMEOUT_MS = 5_000;
+    // 两个读取线程共用的行队列容量，消费跟不上时读取线程阻塞，由管道把压力传回命令
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final String shell;
+    private final String token;
+    private final BlockingQueue<Line> lines = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    private Process process;
+    private OutputStream stdin;
+    private volatile boolean closed;
+    private long sequence;
+    // shell 自身的进程号；Magisk 等实现中 shell 不是 su 客户端的子进程，超时时按它查找进程树
+    private int shellPid;
+
+    RootSession(String shell) {
+        this.shell = shell;
+        this.token = randomToken();
+    }
+
+    /**
+     * 不会出现在正常输出中的随机标记
+     */
+    static String randomToken() {
+        byte[] random = new byte[8];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder("__AIA_");
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 启动 su 进程并执行一条探测命令，root 授权被拒绝或超时会抛出异常
+     */
+    synchronized void start() throws Exception {
+        process = Runtime.getRuntime().exec(shell);
+        stdin = process.getOutputStream();
+        startReader(process.getInputStream(), false, "root-shell-stdout");
+        startReader(process.getErrorStream(), true, "root-shell-stderr");
+
+        RootShellService.CommandResult probe = execute("echo $$", START_TIMEOUT_MS, null, 64);
+        if (!probe.success) {
+            close();
+            throw new Exception("Root shell 启动失败: " + probe.error);
+        }
+        try {
+            shellPid = Integer.parseInt(probe.output.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "无法获取 shell 进程号，超时时只能结束 su 进程");
+        }
+    }
+
+    boolean isAlive() {
+        return !closed && process != null && process.isAlive();
+    }
+
+    synchronized RootShellService.CommandResult execute(String command, long timeoutMs) {
+        return execute(command, timeoutMs, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 执行一条命令，超时或 shell 退出时结束整个会话（已卡住的 shell 无法再复用），超时还会结束命令的整个进程树
+     *
+     * @param listener       非空时输出逐行交给它，不再保存到结果中
+     * @param maxOutputChars 结果中每个流最多保存的字符数，超出部分丢弃并标记 truncated
+     */
+    synchronized RootShellService.CommandResult execute(String command, long timeoutMs,
+                                                       RootShellService.LineListener listener, int maxOutputChars) {
+        RootShellService.CommandResult result = new RootShellService.CommandResult();
+        result.command = command;
+        if (!isAlive()) {
+            result.exitCode = -1;
+            result.error = "Root shell 已退出";
+            return result;
+        }
+
+        String id = token + "_" + (++sequence);
+        // 命令放在 { } 中在当前 shell 执行，标准输入重定向，避免命令读走后续的命令文本；
+        // 输出不以换行结尾时结束标记会接在最后一行后面，读取时按后缀识别
+        String script = "echo " + id + ":begin; echo " + id + ":begin >&2\n"
+                + "{\n" + command + "\n} </dev/null\n"
+                + "__rc=$?; echo " + id + ":$__rc; echo " + id + " >&2\n";
+
+        long deadline = System.currentTimeMillis() + (timeoutMs > 0 ? timeoutMs : Long.MAX_VALUE / 2);
+        Frame frame = new Frame(id, listener, maxOutputChars);
+        try {
+            stdin.write(script.getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+            readFrame(frame, deadline);
+
+            result.exitCode = frame.exitCode;
+            result.output = frame.output.toString();
+            result.error = frame.error.toString();
+            result.truncated = frame.truncated;
+            result.success = result.exitCode == 0;
+        } catch (Exception e) {
+            if (frame.shellExited && frame.stdoutStarted && !closed) {
+                // 命令自己执行了 exit，shell 的退出码就是命令的退出码，会话随之结束
+                close();
+                result.exitCode = process.exitValue();
+                result.output = frame.output.toString();
+                result.error = frame.error.toString();
+                result.truncated = frame.truncated;
+                result.success = result.exitCode == 0;
+                return result;
+            }
+            Log.w(TAG, "命令失败，关闭会话: " + e.getMessage());
+            if (frame.timedOut) {
+                killProcessTree();
+            }
+            close();
+            result.exitCode = -1;
+            result.output = frame.output.toString();
+            result.error = e.getMessage();
+            result.truncated = frame.truncated;
+            result.timedOut = frame.timedOut;
+        }
+        return result;
+    }
+
+    /**
+     * 交替读取两个流，跳过开始标记之前的残留输出，直到两个流都读到结束标记
+     */
+    private void readFrame(Frame frame, long deadline) throws Exception {
+        while (!frame.stdoutEnded || !frame.stderrEnded) {
+            long remaining = deadline - System.currentTimeMillis();
+            Line line = remaining > 0 ? lines.poll(remaining, TimeUnit.MILLISECONDS) : null;
+            if (line == null) {
+                frame.timedOut = true;
+                throw new Exception("命令执行超时");
+            }
+            if (line.text == null) {
+                // 等两个流都结束，确保 shell 退出前的输出都已读到
+                if (line.error) {
+                    frame.stderrClosed = true;
+                } else {
+                    frame.stdoutClosed = true;
+                }
+                if (frame.stdoutClosed && frame.stderrClosed) {
+                    frame.shellExited = process.waitFor(KILL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    throw new Exception("Root shell 已退出");
+                }
+                continue;
+            }
+            frame.accept(line);
+        }
+    }
+
+    private void startReader(InputStream stream, boolean error, String name) {
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String text;
+                while ((text = in.readLine()) != null) {
+                    if (!offer(new Line(error, text))) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                // 会话关闭时流被关闭
+            }
+            offer(new Line(error, null));
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * 队列满时等待消费，会话关闭后放弃
+     */
+    private boolean offer(Line line) {
+        try {
+            while (!lines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 结束 shell 及其所有子孙进程。结束 su 客户端不会结束 root 端的 shell，
+     * 更不会结束命令启动的子进程，所以另开一个 su 按父进程号查出整棵进程树后统一结束
+     */
+    private void killProcessTree() {
+        if (shellPid <= 0) {
+            return;
+        }
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        for (String row : runOnce("ps -A -o pid,ppid").split("\n")) {
+            String[] fields = row.trim().split("\\s+");
+            if (fields.length < 2) {
+                continue;
+            }
+            try {
+                int pid = Integer.parseInt(fields[0]);
+                int parent = Integer.parseInt(fields[1]);
+                List<Integer> list = children.get(parent);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    children.put(parent, list);
+                }
+                list.add(pid);
+            } catch (NumberFormatException e) {
+                // 表头
+            }
+        }
+
+        StringBuilder pids = new StringBuilder();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(shellPid);
+        while (!queue.isEmpty()) {
+            int pid = queue.poll();
+            pids.append(' ').append(pid);
+            List<Integer> list = children.get(pid);
+            if (list != null) {
+                queue.addAll(list);
+            }
+        }
+        runOnce("kill -9" + pids);
+        Log.i(TAG, "已结束超时命令的进程树:" + pids);
+    }
+
+    /**
+     * 用单独的 su 进程执行一条简单命令，两个流合并读取，不会因管道写满而阻塞
+     */
+    private String runOnce(String command) {
+        StringBuilder output = new StringBuilder();
+        try {
+            Process once = new ProcessBuilder(shell, "-c", command).redirectErrorStream(true).start();
+            Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(once.getInputStream(), StandardCharsets.UTF_8))) {
+                    String text;
+                    while ((text = in.readLine()) != null) {
+                        synchronized (output) {
+                            output.append(text).append('\n');
+                        }
+                    }
+                } catch (Exception e) {
+                    // 进程被强制结束
+                }
+            }, "root-shell-once");
+            reader.setDaemon(true);
+            reader.start();
+            if (!once.waitFor(KILL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                once.destroyForcibly();
+            }
+            reader.join(KILL_TIMEOUT_MS);
+        } catch (Exception e) {
+            Log.w(TAG, "执行失败: " + command + ": " + e.getMessage());
+        }
+        synchronized (output) {
+            return output.toString();
+        }
+    }
+
+    /**
+     * 结束 su 进程
+     */
+    void close() {
+        closed = true;
+        Process current = process;
+        if (current == null) {
+            return;
+        }
+        try {
+            stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            stdin.flush();
+            stdin.close();
+        } catch (Exception e) {
+            // shell 可能已经退出
+        }
+        current.destroy();
+    }
+
+    /**
+     * 读取线程读到的一行，text 为 null 表示流已结束
+     */
+    private static class Line {
+        final boolean error;
+        final String text;
+
+        Line(boolean error, String text) {
+            this.error = error;
+            this.text = text;
+        }
+    }
+
+    /**
+     * 一条命令的输出状态
+     */
+    private static class Frame {
+        final String id;
+        final String begin;
+        final RootShellService.LineListener listener;
+        final int maxOutputChars;
+        final StringBuilder output = new StringBuilder();
+        final StringBuilder error = new StringBuilder();
+
+        boolean stdoutStarted;
+        boolean stderrStarted;
+        boolean stdoutEnded;
+        boolean stderrEnded;
+        boolean stdoutClosed;
+        boolean stderrClosed;
+        boolean shellExited;
+        boolean timedOut;
+        boolean truncated;
+        int exitCode;
+
+        Frame(String id, RootShellService.LineListener listener, int maxOutputChars) {
+            this.id = id;
+            this.begin = id + ":begin";
+            this.listener = listener;
+            this.maxOutputChars = maxOutputChars;
+        }
+
+        void accept(Line line) {
+            String text = line.text;
+            if (!(line.error ? stderrStarted : stdoutStarted)) {
+                if (text.equals(begin)) {
+                    if (line.error) {
+                        stderrStarted = true;
+                    } else {
+                        stdoutStarted = true;
+                    }
+                }
+                return;
+            }
+            if (line.error ? stderrEnded : stdoutEnded) {
+                return;
+            }
+
+            int marker = text.indexOf(id);
+            if (marker < 0) {
+                deliver(line.error, text, true);
+                return;
+            }
+            // 标记之前是命令输出中没有换行的最后一段
+            if (marker > 0) {
+                deliver(line.error, text.substring(0, marker), false);
+            }
+            if (line.error) {
+                stderrEnded = true;
+            } else {
+                stdoutEnded = true;
+                exitCode = Integer.parseInt(text.substring(marker + id.length() + 1).trim());
+            }
+        }
+
+        private void deliver(boolean error, String text, boolean newline) {
+            if (listener != null) {
+                listener.onLine(text, error);
+                return;
+            }
+            StringBuilder target = error ? this.error : output;
+            if (target.length() + text.length() + 1 > maxOutputChars) {
+                truncated = true;
+                return;
+            }
+            target.append(text);
+            if (newline) {
+                target.append('\n');
+            }
+        }
+    }
+}
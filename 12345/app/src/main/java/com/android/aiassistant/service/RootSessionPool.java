@@ -0,0 +1,268 @@
+package com.android.aiassistant.service;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 常驻 su 会话池
+ * 每个会话同一时间只执行一条命令，新命令分派给空闲会话中负载最轻的一个；
+ * 都在忙且未达上限时按需启动新会话，达到上限后排队等待，排队过多直接拒绝。
+ * 后台定期探测空闲会话，移除已退出的并补足会话
+ */
+class RootSessionPool {
+
+    private static final String TAG = "RootSessionPool";
+
+    private static final int MAX_WAITING = 32;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 30_000;
+    private static final long PROBE_TIMEOUT_MS = 5_000;
+
+    private final String shell;
+    private final RootShellService.PoolStats stats;
+    private final List<PooledSession> sessions = new ArrayList<>();
+    private final ScheduledExecutorService maintenanceExecutor;
+
+    private int maxSessions;
+    private int starting;
+    private int waiting;
+    private boolean closed;
+
+    RootSessionPool(String shell, int maxSessions, RootShellService.PoolStats stats) {
+        this.shell = shell;
+        this.maxSessions = Math.max(1, maxSessions);
+        this.stats = stats;
+        this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "root-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 启动第一个会话，root 授权被拒绝时抛出异常
+     */
+    void start() throws Exception {
+        PooledSession first = spawn();
+        synchronized (this) {
+            sessions.add(first);
+        }
+        maintenanceExecutor.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL_MS,
+                HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void setMaxSessions(int maxSessions) {
+        this.maxSessions = Math.max(1, maxSessions);
+        notifyAll();
+    }
+
+    synchronized int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * 在空闲会话上执行命令，timeoutMs 包含排队时间；listener 与 maxOutputChars 见 RootSession#execute
+     */
+    RootShellService.CommandResult execute(String command, long timeoutMs, RootShellService.LineListener listener,
+                                           int maxOutputChars) throws Exception {
+        long submitNanos = System.nanoTime();
+        long deadline = System.currentTimeMillis() + (timeoutMs > 0 ? timeoutMs : Long.MAX_VALUE / 2);
+
+        PooledSession pooled = acquire(deadline);
+        long startNanos = System.nanoTime();
+        try {
+            RootShellService.CommandResult result = pooled.session.execute(command,
+                    Math.max(1, deadline - System.currentTimeMillis()), listener, maxOutputChars);
+            stats.record((startNanos - submitNanos) / 1e6, (System.nanoTime() - startNanos) / 1e6,
+                    result.exitCode >= 0);
+            return result;
+        } finally {
+            release(pooled);
+        }
+    }
+
+    private PooledSession acquire(long deadline) throws Exception {
+        synchronized (this) {
+            if (closed) {
+                throw new Exception("Root shell 已关闭");
+            }
+            if (waiting >= MAX_WAITING) {
+                stats.recordRejected();
+                throw new Exception("Root 命令排队过多 (" + MAX_WAITING + ")");
+            }
+            waiting++;
+            try {
+                while (true) {
+                    removeDead();
+                    PooledSession idle = leastBusy();
+                    if (idle != null) {
+                        idle.busy = true;
+                        return idle;
+                    }
+                    if (sessions.size() + starting < maxSessions) {
+                        starting++;
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new Exception("等待 root 会话超时");
+                    }
+                    wait(remaining);
+                    if (closed) {
+                        throw new Exception("Root shell 已关闭");
+                    }
+                }
+            } finally {
+                waiting--;
+            }
+        }
+
+        // 所有会话都在忙，在锁外启动一个新会话给当前命令使用
+        PooledSession spawned;
+        try {
+            spawned = spawn();
+        } catch (Exception e) {
+            synchronized (this) {
+                starting--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            starting--;
+            notifyAll();
+            if (closed) {
+                spawned.session.close();
+                throw new Exception("Root shell 已关闭");
+            }
+            spawned.busy = true;
+            sessions.add(spawned);
+        }
+        return spawned;
+    }
+
+    private synchronized void release(PooledSession pooled) {
+        pooled.busy = false;
+        pooled.executed++;
+        notifyAll();
+    }
+
+    /**
+     * 空闲会话中执行过的命令最少的一个，使各会话的负载均匀
+     */
+    private PooledSession leastBusy() {
+        PooledSession best = null;
+        for (PooledSession pooled : sessions) {
+            if (!pooled.busy && (best == null || pooled.executed < best.executed)) {
+                best = pooled;
+            }
+        }
+        return best;
+    }
+
+    private void removeDead() {
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            PooledSession pooled = sessions.get(i);
+            if (!pooled.busy && !pooled.session.isAlive()) {
+                sessions.remove(i);
+                stats.recordDeadSession();
+                Log.w(TAG, "root 会话已退出，剩余 " + sessions.size());
+            }
+        }
+    }
+
+    private PooledSession spawn() throws Exception {
+        RootSession session = new RootSession(shell);
+        session.start();
+        stats.recordStarted();
+        return new PooledSession(session);
+    }
+
+    /**
+     * 探测空闲会话，卡住或已退出的会话在探测失败时被关闭；会话全部退出时重新启动一个
+     */
+    private void checkHealth() {
+        List<PooledSession> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (PooledSession pooled : sessions) {
+                if (!pooled.busy) {
+                    pooled.busy = true;
+                    idle.add(pooled);
+                }
+            }
+        }
+
+        for (PooledSession pooled : idle) {
+            pooled.session.execute("true", PROBE_TIMEOUT_MS);
+            synchronized (this) {
+                pooled.busy = false;
+                notifyAll();
+            }
+        }
+
+        boolean empty;
+        synchronized (this) {
+            removeDead();
+            empty = !closed && sessions.isEmpty() && starting == 0;
+            if (empty) {
+                starting++;
+            }
+        }
+        if (!empty) {
+            return;
+        }
+
+        PooledSession respawned = null;
+        try {
+            respawned = spawn();
+            Log.i(TAG, "已重新启动 root 会话");
+        } catch (Exception e) {
+            Log.w(TAG, "重新启动 root 会话失败: " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                starting--;
+                if (respawned != null) {
+                    if (closed) {
+                        respawned.session.close();
+                    } else {
+                        sessions.add(respawned);
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 关闭所有会话，排队中的命令立即失败
+     */
+    void shutdown() {
+        List<PooledSession> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(sessions);
+            sessions.clear();
+            notifyAll();
+        }
+        maintenanceExecutor.shutdownNow();
+        for (PooledSession pooled : all) {
+            pooled.session.close();
+        }
+    }
+
+    private static class PooledSession {
+        final RootSession session;
+        boolean busy;
+        long executed;
+
+        PooledSession(RootSession session) {
+            this.session = session;
+        }
+    }
+}
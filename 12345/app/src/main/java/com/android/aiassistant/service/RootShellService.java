@@ -1,21 +1,47 @@
 package com.android.aiassistant.service;
 
 import android.content.Context;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
+import android.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Root Shell 服务
- * 提供执行 root 命令的能力
+ * 提供执行 root 命令的能力；命令由一组常驻 su 会话并发执行，省去每条命令启动 su 进程的开销。
+ * 同一服务的命令可能落在不同会话上，命令不应依赖之前命令留下的 shell 状态（如 cd）
  */
 public class RootShellService {
 
+    private static final String TAG = "RootShellService";
+
+    private static final String SHELL = "su";
+    private static final long DEFAULT_TIMEOUT_MS = 30_000;
+    private static final int DEFAULT_POOL_SIZE = 3;
+    private static final int STATS_WINDOW = 200;
+    // 结果中每个流最多保存的字符数，更大的输出应使用逐行回调
+    private static final int MAX_OUTPUT_CHARS = 4 * 1024 * 1024;
+
     private Context context;
-    private Process shellProcess;
-    private DataOutputStream outputStream;
-    private BufferedReader inputStream;
-    private BufferedReader errorStream;
+    private final PoolStats poolStats = new PoolStats();
+    private final RootFileTransfer transfer = new RootFileTransfer(SHELL);
+    private RootSessionPool pool;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "root-async");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public RootShellService(Context context) {
         this.context = context;
@@ -25,86 +51,157 @@ public class RootShellService {
      * 初始化 root shell
      */
     public void initialize() {
+        RootSessionPool newPool = new RootSessionPool(SHELL, getPoolSize(), poolStats);
         try {
-            shellProcess = Runtime.getRuntime().exec("su");
-            outputStream = new DataOutputStream(shellProcess.getOutputStream());
-            inputStream = new BufferedReader(new InputStreamReader(shellProcess.getInputStream()));
-            errorStream = new BufferedReader(new InputStreamReader(shellProcess.getErrorStream()));
+            newPool.start();
         } catch (Exception e) {
-            e.printStackTrace();
+            newPool.shutdown();
+            Log.w(TAG, "启动 root shell 失败: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = newPool;
         }
     }
 
     /**
-     * 执行 root 命令
+     * 设置最多同时存在的 su 会话数
      */
-    public String executeCommand(String command) throws Exception {
-        if (outputStream == null) {
-            throw new Exception("Root shell 未初始化");
+    public synchronized void setPoolSize(int poolSize) {
+        this.poolSize = Math.max(1, poolSize);
+        if (pool != null) {
+            pool.setMaxSessions(this.poolSize);
         }
+    }
 
-        StringBuilder result = new StringBuilder();
+    public synchronized int getPoolSize() {
+        return poolSize;
+    }
 
-        try {
-            // 发送命令
-            outputStream.writeBytes(command + "\n");
-            outputStream.flush();
-
-            // 读取输出
-            String line;
-            while ((line = inputStream.readLine()) != null) {
-                result.append(line).append("\n");
-            }
+    /**
+     * 每条命令的排队和执行耗时，用于确定会话池大小
+     */
+    public PoolStats getPoolStats() {
+        return poolStats;
+    }
 
-            // 读取错误
-            while ((line = errorStream.readLine()) != null) {
-                result.append("[ERROR] ").append(line).append("\n");
-            }
+    private synchronized RootSessionPool getPool() {
+        return pool;
+    }
 
-        } catch (Exception e) {
-            throw new Exception("执行命令失败: " + e.getMessage());
+    /**
+     * 执行 root 命令
+     */
+    public String executeCommand(String command) throws Exception {
+        RootSessionPool current = getPool();
+        if (current == null) {
+            throw new Exception("Root shell 未初始化");
+        }
+        CommandResult result = current.execute(command, DEFAULT_TIMEOUT_MS, null, MAX_OUTPUT_CHARS);
+        if (result.exitCode < 0) {
+            throw new Exception("执行命令失败: " + result.error);
         }
 
-        return result.toString();
+        StringBuilder output = new StringBuilder(result.output);
+        if (!result.output.isEmpty() && !result.output.endsWith("\n")) {
+            output.append("\n");
+        }
+        if (!result.error.isEmpty()) {
+            for (String line : result.error.split("\n")) {
+                output.append("[ERROR] ").append(line).append("\n");
+            }
+        }
+        return output.toString();
     }
 
     /**
      * 执行命令并获取返回值
      */
     public CommandResult executeCommandWithResult(String command) {
-        CommandResult result = new CommandResult();
-        result.command = command;
+        return executeCommandWithResult(command, DEFAULT_TIMEOUT_MS);
+    }
 
-        try {
-            Process process = Runtime.getRuntime().exec(new String[]{"su", "-c", command});
+    /**
+     * 执行命令并获取返回值，超时后结束该命令所在的会话；timeoutMs 包含等待空闲会话的时间
+     */
+    public CommandResult executeCommandWithResult(String command, long timeoutMs) {
+        return run(command, timeoutMs, null);
+    }
 
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()));
-            BufferedReader errorReader = new BufferedReader(
-                    new InputStreamReader(process.getErrorStream()));
+    /**
+     * 在后台线程执行命令
+     */
+    public CompletableFuture<CommandResult> executeAsync(String command) {
+        return executeAsync(command, DEFAULT_TIMEOUT_MS, null);
+    }
 
-            StringBuilder output = new StringBuilder();
-            StringBuilder error = new StringBuilder();
+    public CompletableFuture<CommandResult> executeAsync(String command, long timeoutMs) {
+        return executeAsync(command, timeoutMs, null);
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line).append("\n");
-            }
+    /**
+     * 在后台线程执行命令，listener 非空时输出逐行回调（在执行线程上），结果中不再保存输出，
+     * 适合输出很大的命令；timeoutMs 为 0 表示不限制
+     */
+    public CompletableFuture<CommandResult> executeAsync(String command, long timeoutMs, LineListener listener) {
+        return CompletableFuture.supplyAsync(() -> run(command, timeoutMs, listener), asyncExecutor);
+    }
 
-            while ((line = errorReader.readLine()) != null) {
-                error.append(line).append("\n");
-            }
+    private CommandResult run(String command, long timeoutMs, LineListener listener) {
+        RootSessionPool current = getPool();
+        if (current == null) {
+            // 常驻会话不可用时退回到单独的 su 进程
+            return executeInNewProcess(command, timeoutMs, listener);
+        }
+        try {
+            return current.execute(command, timeoutMs, listener, MAX_OUTPUT_CHARS);
+        } catch (Exception e) {
+            return failedResult(command, e.getMessage());
+        }
+    }
 
-            result.exitCode = process.waitFor();
-            result.output = output.toString();
-            result.error = error.toString();
-            result.success = result.exitCode == 0;
+    /**
+     * 在一次执行中完成一组文件操作，返回与 operations 一一对应的结果
+     */
+    public List<RootBatch.Result> executeBatch(List<RootBatch.Operation> operations) {
+        return executeBatch(operations, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * 在一次执行中完成一组文件操作，timeoutMs 为整批的超时时间
+     */
+    public List<RootBatch.Result> executeBatch(List<RootBatch.Operation> operations, long timeoutMs) {
+        if (operations.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String token = RootSession.randomToken();
+        CommandResult result = executeCommandWithResult(RootBatch.compile(operations, token), timeoutMs);
+        return RootBatch.parse(operations, token, result.output, result.error);
+    }
 
+    /**
+     * 用一个临时会话执行一条命令，输出处理和超时结束进程树与常驻会话相同
+     */
+    private CommandResult executeInNewProcess(String command, long timeoutMs, LineListener listener) {
+        RootSession once = new RootSession(SHELL);
+        try {
+            once.start();
+            return once.execute(command, timeoutMs, listener, MAX_OUTPUT_CHARS);
         } catch (Exception e) {
-            result.success = false;
-            result.error = e.getMessage();
+            return failedResult(command, e.getMessage());
+        } finally {
+            once.close();
         }
+    }
 
+    private static CommandResult failedResult(String command, String error) {
+        CommandResult result = new CommandResult();
+        result.command = command;
+        result.exitCode = -1;
+        result.error = error;
         return result;
     }
 
@@ -157,22 +254,81 @@ public class RootShellService {
     }
 
     /**
-     * 读取文件内容
+     * 读取文件内容，文件按 UTF-8 解码，二进制或较大的文件使用 readFile(String, OutputStream, ...)
      */
     public String readFile(String path) {
-        CommandResult result = executeCommandWithResult("cat '" + path + "'");
-        if (result.success) {
-            return result.output;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            transfer.read(path, content, -1, null);
+        } catch (Exception e) {
+            Log.w(TAG, e.getMessage());
+            return null;
         }
-        return null;
+        return new String(content.toByteArray(), StandardCharsets.UTF_8);
     }
 
     /**
-     * 写入文件内容
+     * 写入文件内容，内容按原样写入，不经过 shell 引号处理
      */
     public boolean writeFile(String path, String content) {
-        CommandResult result = executeCommandWithResult("echo '" + content + "' > '" + path + "'");
-        return result.success;
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        try {
+            transfer.write(path, new ByteArrayInputStream(bytes), bytes.length, null);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 以原始字节流式读取 root 文件，内存占用与文件大小无关，返回读取的字节数；
+     * 在当前线程执行，中断线程可以取消传输
+     */
+    public long readFile(String path, OutputStream out, TransferListener listener) throws Exception {
+        return transfer.read(path, out, fileSize(path), listener);
+    }
+
+    /**
+     * 以原始字节流式写入 root 文件，覆盖原有内容并保留其所有者和权限，返回写入的字节数
+     *
+     * @param length 内容长度，仅用于进度，未知时为 -1
+     */
+    public long writeFile(String path, InputStream in, long length, TransferListener listener) throws Exception {
+        return transfer.write(path, in, length, listener);
+    }
+
+    /**
+     * 把 root 文件复制到本地文件
+     */
+    public long copyFromRoot(String path, File target, TransferListener listener) throws Exception {
+        try (OutputStream out = new FileOutputStream(target)) {
+            return readFile(path, out, listener);
+        }
+    }
+
+    /**
+     * 把本地文件复制为 root 文件
+     */
+    public long copyToRoot(File source, String path, TransferListener listener) throws Exception {
+        try (InputStream in = new FileInputStream(source)) {
+            return writeFile(path, in, source.length(), listener);
+        }
+    }
+
+    /**
+     * 文件大小，无法获取时返回 -1
+     */
+    private long fileSize(String path) {
+        CommandResult result = executeCommandWithResult("stat -c %s " + RootBatch.quote(path));
+        if (!result.success) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(result.output.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
@@ -280,27 +436,27 @@ public class RootShellService {
     /**
      * 清理资源
      */
-    public void cleanup() {
-        try {
-            if (outputStream != null) {
-                outputStream.writeBytes("exit\n");
-                outputStream.flush();
-                outputStream.close();
-            }
-            if (inputStream != null) {
-                inputStream.close();
-            }
-            if (errorStream != null) {
-                errorStream.close();
-            }
-            if (shellProcess != null) {
-                shellProcess.destroy();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public synchronized void cleanup() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
         }
     }
 
+    /**
+     * 文件传输进度，在传输线程上回调
+     */
+    public interface TransferListener {
+        void onProgress(long transferredBytes, long totalBytes, double bytesPerSecond);
+    }
+
+    /**
+     * 逐行接收命令输出
+     */
+    public interface LineListener {
+        void onLine(String line, boolean error);
+    }
+
     /**
      * 命令执行结果
      */
@@ -310,5 +466,58 @@ public class RootShellService {
         public String error;
         public int exitCode;
         public boolean success;
+        // 输出超过上限，超出部分已丢弃
+        public boolean truncated;
+        // 超时，命令的进程树已被结束
+        public boolean timedOut;
+    }
+
+    /**
+     * 会话池统计
+     */
+    public static class PoolStats {
+        private final InferenceStats.RollingHistogram queueWaitMs = new InferenceStats.RollingHistogram(STATS_WINDOW);
+        private final InferenceStats.RollingHistogram executeMs = new InferenceStats.RollingHistogram(STATS_WINDOW);
+
+        private long commands;
+        private long failures;
+        private long rejected;
+        private int sessionsStarted;
+        private int deadSessions;
+
+        synchronized void record(double waitMs, double elapsedMs, boolean completed) {
+            commands++;
+            if (!completed) {
+                failures++;
+            }
+            queueWaitMs.add(waitMs);
+            executeMs.add(elapsedMs);
+        }
+
+        synchronized void recordRejected() {
+            rejected++;
+        }
+
+        synchronized void recordStarted() {
+            sessionsStarted++;
+        }
+
+        synchronized void recordDeadSession() {
+            deadSessions++;
+        }
+
+        public synchronized long getCommands() {
+            return commands;
+        }
+
+        public synchronized String format() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("命令 %d 条，超时或中断 %d，排队拒绝 %d；启动会话 %d 个，退出 %d 个\n",
+                    commands, failures, rejected, sessionsStarted, deadSessions));
+            result.append(String.format("排队 p50/p95: %.1f / %.1f ms，执行 p50/p95: %.1f / %.1f ms\n",
+                    queueWaitMs.percentile(50), queueWaitMs.percentile(95),
+                    executeMs.percentile(50), executeMs.percentile(95)));
+            return result.toString();
+        }
     }
 }
@@ -0,0 +1,166 @@
+package com.android.aiassistant.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * 停止序列匹配器
+ * 用 Aho-Corasick 自动机同时匹配多个停止序列，逐字符推进，与令牌如何切分无关；
+ * 自动机只构建一次，每次推理用 newScanner 取得独立的匹配状态
+ */
+public class StopSequenceMatcher {
+
+    private final List<String> sequences;
+    private final List<Node> nodes = new ArrayList<>();
+
+    public StopSequenceMatcher(List<String> sequences) {
+        this.sequences = new ArrayList<>();
+        nodes.add(new Node(0));
+        for (String sequence : sequences) {
+            if (sequence != null && !sequence.isEmpty()) {
+                this.sequences.add(sequence);
+                insert(sequence);
+            }
+        }
+        buildFailureLinks();
+    }
+
+    public List<String> getSequences() {
+        return sequences;
+    }
+
+    public boolean isEmpty() {
+        return sequences.isEmpty();
+    }
+
+    /**
+     * 开始匹配一次新的输出
+     */
+    public Scanner newScanner() {
+        return new Scanner();
+    }
+
+    private void insert(String sequence) {
+        int state = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            char c = sequence.charAt(i);
+            Integer next = nodes.get(state).children.get(c);
+            if (next == null) {
+                next = nodes.size();
+                nodes.add(new Node(nodes.get(state).depth + 1));
+                nodes.get(state).children.put(c, next);
+            }
+            state = next;
+        }
+        Node end = nodes.get(state);
+        end.matchLength = Math.max(end.matchLength, sequence.length());
+    }
+
+    /**
+     * 按广度优先计算失配链接，并把后缀上的匹配长度合并到每个节点
+     */
+    private void buildFailureLinks() {
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : nodes.get(0).children.values()) {
+            nodes.get(child).failure = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            Node node = nodes.get(state);
+            for (Map.Entry<Character, Integer> entry : node.children.entrySet()) {
+                int child = entry.getValue();
+                nodes.get(child).failure = transition(node.failure, entry.getKey());
+                Node childNode = nodes.get(child);
+                childNode.matchLength = Math.max(childNode.matchLength, nodes.get(childNode.failure).matchLength);
+                queue.add(child);
+            }
+        }
+    }
+
+    private int transition(int state, char c) {
+        while (true) {
+            Integer next = nodes.get(state).children.get(c);
+            if (next != null) {
+                return next;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = nodes.get(state).failure;
+        }
+    }
+
+    private static class Node {
+        final Map<Character, Integer> children = new HashMap<>();
+        final int depth;
+        int failure;
+        // 在此处结束的最长停止序列长度，0 表示没有
+        int matchLength;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * 一次输出的匹配状态
+     * 可能是停止序列开头的尾部文本先暂存，确认不是停止序列后再放行，停止序列本身不会输出
+     */
+    public class Scanner {
+        private final StringBuilder held = new StringBuilder();
+        private int state;
+        private String matched;
+
+        /**
+         * 输入新生成的文本，返回可以安全输出的部分；命中停止序列后返回命中之前的文本，之后的输入全部丢弃
+         */
+        public String feed(String text) {
+            if (matched != null) {
+                return "";
+            }
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                state = transition(state, c);
+                held.append(c);
+                Node node = nodes.get(state);
+                if (node.matchLength > 0) {
+                    int end = held.length() - node.matchLength;
+                    matched = held.substring(end);
+                    String safe = held.substring(0, end);
+                    held.setLength(0);
+                    return safe;
+                }
+            }
+            // 只需保留可能成为停止序列开头的最长后缀
+            int keep = nodes.get(state).depth;
+            String safe = held.substring(0, held.length() - keep);
+            held.delete(0, held.length() - keep);
+            return safe;
+        }
+
+        /**
+         * 输出结束时放行暂存的文本
+         */
+        public String flush() {
+            String rest = held.toString();
+            held.setLength(0);
+            return rest;
+        }
+
+        public boolean isStopped() {
+            return matched != null;
+        }
+
+        /**
+         * 命中的停止序列，未命中时返回 null
+         */
+        public String getMatched() {
+            return matched;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.android.aiassistant.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 字节级流式读取器
+ * 按到达的字节增量解码 llama.cpp 输出，不等待整行；
+ * 被拆分在两次读取之间的多字节 UTF-8 字符会保留到下次读取后再解码
+ */
+public class TokenStreamReader {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final InputStream inputStream;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer byteBuffer;
+    private final CharBuffer charBuffer;
+    private volatile boolean stopped;
+
+    public TokenStreamReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.charBuffer = CharBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * 持续读取直到流结束或调用 stop()，每次解码出文本即回调
+     */
+    public void pump(Listener listener) throws IOException {
+        byte[] array = byteBuffer.array();
+        while (!stopped) {
+            int read = inputStream.read(array, byteBuffer.position(), byteBuffer.remaining());
+            if (read == -1) {
+                break;
+            }
+            byteBuffer.position(byteBuffer.position() + read);
+            decode(listener, false);
+        }
+
+        decode(listener, true);
+        decoder.flush(charBuffer);
+        emit(listener);
+    }
+
+    /**
+     * 停止读取，已解码的文本不会丢失
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private void decode(Listener listener, boolean endOfInput) {
+        byteBuffer.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(byteBuffer, charBuffer, endOfInput);
+            emit(listener);
+        } while (result.isOverflow());
+        // 未完成的多字节序列留在缓冲区开头
+        byteBuffer.compact();
+    }
+
+    private void emit(Listener listener) {
+        charBuffer.flip();
+        if (charBuffer.hasRemaining()) {
+            listener.onText(charBuffer.toString(), System.nanoTime());
+        }
+        charBuffer.clear();
+    }
+
+    /**
+     * 文本片段回调，timestampNanos 为 System.nanoTime() 时间戳
+     */
+    public interface Listener {
+        void onText(String text, long timestampNanos);
+    }
+}
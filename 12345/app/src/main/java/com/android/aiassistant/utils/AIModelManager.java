@@ -2,7 +2,6 @@ package com.android.aiassistant.utils;
 
 import android.content.Context;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -10,6 +9,14 @@ import java.util.List;
  */
 public class AIModelManager {
 
+    private static final String CATALOG_FILE = "model_catalog.json";
+
+    // 草稿模型参数量最多为目标模型的 1/4，否则起草本身的开销抵消收益
+    private static final int DRAFT_MAX_PARAMETER_RATIO = 4;
+
+    // 同一个索引文件在进程内只有一个实例
+    private static ModelCatalog sharedCatalog;
+
     private Context context;
     private File modelsDirectory;
 
@@ -29,21 +36,29 @@ public class AIModelManager {
     }
 
     /**
-     * 获取所有模型
+     * 获取提示缓存目录，与模型目录同级
      */
-    public List<ModelInfo> getAvailableModels() {
-        List<ModelInfo> models = new ArrayList<>();
-        File[] files = modelsDirectory.listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.getName().endsWith(".gguf")) {
-                    models.add(new ModelInfo(file));
-                }
+    public File getPromptCacheDirectory() {
+        return new File(modelsDirectory.getParentFile(), "prompt_cache");
+    }
+
+    /**
+     * 获取模型索引
+     */
+    public ModelCatalog getCatalog() {
+        synchronized (AIModelManager.class) {
+            if (sharedCatalog == null) {
+                sharedCatalog = new ModelCatalog(modelsDirectory, new File(context.getFilesDir(), CATALOG_FILE));
             }
+            return sharedCatalog;
         }
+    }
 
-        return models;
+    /**
+     * 获取所有模型，只重新解析新增或变化的文件
+     */
+    public List<ModelInfo> getAvailableModels() {
+        return getCatalog().refresh();
     }
 
     /**
@@ -59,8 +74,9 @@ public class AIModelManager {
      */
     public boolean deleteModel(String modelName) {
         File modelFile = new File(modelsDirectory, modelName);
-        if (modelFile.exists()) {
-            return modelFile.delete();
+        if (modelFile.exists() && modelFile.delete()) {
+            getCatalog().remove(modelFile);
+            return true;
         }
         return false;
     }
@@ -69,15 +85,42 @@ public class AIModelManager {
      * 获取模型信息
      */
     public ModelInfo getModelInfo(String modelName) {
-        File modelFile = new File(modelsDirectory, modelName);
-        if (modelFile.exists()) {
-            return new ModelInfo(modelFile);
+        return getCatalog().get(new File(modelsDirectory, modelName));
+    }
+
+    /**
+     * 为目标模型查找可用于投机解码的草稿模型：架构和词表相同、参数量明显更小，
+     * 有多个时选最小的；没有合适的模型时返回 null
+     */
+    public ModelInfo findDraftModel(ModelInfo target) {
+        boolean targetKnown = target != null && target.metadataLoaded && target.architecture != null
+                && target.parameterCount > 0 && target.vocabSize > 0;
+        if (!targetKnown) {
+            return null;
         }
-        return null;
+        ModelInfo best = null;
+        for (ModelInfo candidate : getCatalog().getModels()) {
+            if (!candidate.metadataLoaded || candidate.path.equals(target.path)) {
+                continue;
+            }
+            boolean sameFamily = target.architecture.equals(candidate.architecture);
+            // 草稿令牌直接交给目标模型验证，词表必须一致
+            boolean sameVocab = candidate.vocabSize == target.vocabSize;
+            boolean smaller = candidate.parameterCount > 0
+                    && candidate.parameterCount * DRAFT_MAX_PARAMETER_RATIO <= target.parameterCount;
+            if (!sameFamily || !sameVocab || !smaller || !new File(candidate.path).exists()) {
+                continue;
+            }
+            if (best == null || candidate.parameterCount < best.parameterCount) {
+                best = candidate;
+            }
+        }
+        return best;
     }
 
     /**
      * 模型信息类
+     * 优先读取 GGUF 文件头中的元数据，读取失败时按文件名推测类型
      */
     public static class ModelInfo {
         public String name;
@@ -85,13 +128,85 @@ public class AIModelManager {
         public long size;
         public String formattedSize;
         public String type;
+        public long lastModified;
+
+        // GGUF 元数据，metadataLoaded 为 false 时下列字段无效
+        public boolean metadataLoaded;
+        public String architecture;
+        public String quantType;
+        public long parameterCount;
+        public long tensorBytes;
+        public int contextLengthTrain;
+        public int vocabSize;
+        public int blockCount;
+        public int embeddingLength;
+        public int headCount;
+        public int headCountKv;
+        public int keyLength;
+        public int valueLength;
+        public String chatTemplate;
 
         public ModelInfo(File file) {
             this.name = file.getName();
             this.path = file.getAbsolutePath();
             this.size = file.length();
+            this.lastModified = file.lastModified();
             this.formattedSize = FileUtils.formatFileSize(size);
             this.type = extractModelType(name);
+            if (name.toLowerCase().endsWith(".gguf")) {
+                loadMetadata(file);
+            }
+        }
+
+        private void loadMetadata(File file) {
+            try {
+                GgufReader.Header header = GgufReader.read(file);
+                architecture = header.getString("general.architecture");
+                long fileType = header.getLong("general.file_type", -1);
+                quantType = fileType >= 0 ? GgufReader.fileTypeName((int) fileType) : null;
+                parameterCount = header.parameterCount;
+                tensorBytes = header.tensorBytes;
+                contextLengthTrain = (int) header.getArchLong("context_length", 0);
+                blockCount = (int) header.getArchLong("block_count", 0);
+                embeddingLength = (int) header.getArchLong("embedding_length", 0);
+                headCount = (int) header.getArchLong("attention.head_count", 0);
+                headCountKv = (int) header.getArchLong("attention.head_count_kv", headCount);
+                int headDim = headCount > 0 ? embeddingLength / headCount : 0;
+                keyLength = (int) header.getArchLong("attention.key_length", headDim);
+                valueLength = (int) header.getArchLong("attention.value_length", headDim);
+                Long tokens = header.arrayLengths.get("tokenizer.ggml.tokens");
+                vocabSize = tokens != null ? tokens.intValue() : (int) header.getArchLong("vocab_size", 0);
+                chatTemplate = header.getString("tokenizer.chat_template");
+                metadataLoaded = true;
+
+                String family = extractModelType(architecture + " " + header.getString("general.name"));
+                type = !"Unknown".equals(family) ? family : architecture;
+            } catch (Exception e) {
+                // 不是有效的 GGUF 文件，保留按文件名推测的类型
+                metadataLoaded = false;
+            }
+        }
+
+        /**
+         * 每个上下文令牌的 f16 KV 缓存字节数，元数据不足时返回 -1
+         */
+        public long getKvBytesPerToken() {
+            if (!metadataLoaded || blockCount <= 0 || headCountKv <= 0 || keyLength <= 0) {
+                return -1;
+            }
+            return (long) blockCount * headCountKv * (keyLength + valueLength) * 2;
+        }
+
+        /**
+         * 参数量的简短描述，如 7.6B
+         */
+        public String getParameterLabel() {
+            if (parameterCount <= 0) {
+                return null;
+            }
+            return parameterCount >= 1_000_000_000L
+                    ? String.format("%.1fB", parameterCount / 1e9)
+                    : String.format("%dM", parameterCount / 1_000_000);
         }
 
         private String extractModelType(String filename) {
@@ -111,4 +226,4 @@ public class AIModelManager {
             }
         }
     }
-}
\ No newline at end of file
+}
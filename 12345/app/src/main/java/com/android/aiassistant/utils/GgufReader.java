@@ -0,0 +1,250 @@
+package com.android.aiassistant.utils;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * GGUF 文件头解析器
+ * 只映射文件开头的头部区域（键值元数据和张量信息），不读取张量数据；
+ * 映射窗口不够时按倍数扩大重新解析
+ */
+public class GgufReader {
+
+    private static final int MAGIC = 0x46554747; // "GGUF"
+    private static final int INITIAL_WINDOW = 4 * 1024 * 1024;
+    private static final int MAX_WINDOW = 256 * 1024 * 1024;
+    private static final int DEFAULT_ALIGNMENT = 32;
+
+    // 键值类型
+    private static final int TYPE_UINT8 = 0;
+    private static final int TYPE_INT8 = 1;
+    private static final int TYPE_UINT16 = 2;
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_INT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_BOOL = 7;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+    private static final int TYPE_UINT64 = 10;
+    private static final int TYPE_INT64 = 11;
+    private static final int TYPE_FLOAT64 = 12;
+
+    // general.file_type 对应的量化名称（llama_ftype）
+    private static final Map<Integer, String> FILE_TYPES = new HashMap<>();
+
+    static {
+        String[] names = {
+                "F32", "F16", "Q4_0", "Q4_1", null, null, null, "Q8_0", "Q5_0", "Q5_1",
+                "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K",
+                "IQ2_XXS", "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S", "IQ3_M",
+                "IQ2_S", "IQ2_M", "IQ4_XS", "IQ1_M", "BF16", null, null, null, "TQ1_0", "TQ2_0"
+        };
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                FILE_TYPES.put(i, names[i]);
+            }
+        }
+    }
+
+    /**
+     * 解析 GGUF 文件头
+     */
+    public static Header read(File file) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long fileSize = channel.size();
+            long window = Math.min(fileSize, INITIAL_WINDOW);
+            while (true) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, window);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    return parse(buffer, fileSize);
+                } catch (BufferUnderflowException e) {
+                    if (window >= fileSize || window >= MAX_WINDOW) {
+                        throw new Exception("GGUF 文件头不完整: " + file.getName());
+                    }
+                    window = Math.min(Math.min(fileSize, MAX_WINDOW), window * 4);
+                }
+            }
+        }
+    }
+
+    /**
+     * llama_ftype 对应的量化名称
+     */
+    public static String fileTypeName(int fileType) {
+        String name = FILE_TYPES.get(fileType);
+        return name != null ? name : "type" + fileType;
+    }
+
+    private static Header parse(MappedByteBuffer buffer, long fileSize) throws Exception {
+        if (buffer.getInt() != MAGIC) {
+            throw new Exception("不是 GGUF 文件");
+        }
+        Header header = new Header();
+        header.version = buffer.getInt();
+        if (header.version < 2) {
+            throw new Exception("不支持的 GGUF 版本: " + header.version);
+        }
+        header.tensorCount = buffer.getLong();
+        long kvCount = buffer.getLong();
+
+        for (long i = 0; i < kvCount; i++) {
+            String key = readString(buffer);
+            int type = buffer.getInt();
+            if (type == TYPE_ARRAY) {
+                int elementType = buffer.getInt();
+                long count = buffer.getLong();
+                header.arrayLengths.put(key, count);
+                skipArray(buffer, elementType, count);
+            } else {
+                header.metadata.put(key, readValue(buffer, type));
+            }
+        }
+
+        // 张量信息：累计元素数作为参数量
+        for (long i = 0; i < header.tensorCount; i++) {
+            readString(buffer);
+            int dims = buffer.getInt();
+            long elements = 1;
+            for (int d = 0; d < dims; d++) {
+                elements *= buffer.getLong();
+            }
+            buffer.getInt(); // 张量类型
+            buffer.getLong(); // 数据偏移
+            header.parameterCount += elements;
+        }
+
+        long alignment = header.getLong("general.alignment", DEFAULT_ALIGNMENT);
+        long position = buffer.position();
+        header.dataOffset = (position + alignment - 1) / alignment * alignment;
+        header.tensorBytes = Math.max(0, fileSize - header.dataOffset);
+        return header;
+    }
+
+    private static Object readValue(MappedByteBuffer buffer, int type) throws Exception {
+        switch (type) {
+            case TYPE_UINT8:
+                return (long) (buffer.get() & 0xFF);
+            case TYPE_INT8:
+                return (long) buffer.get();
+            case TYPE_UINT16:
+                return (long) (buffer.getShort() & 0xFFFF);
+            case TYPE_INT16:
+                return (long) buffer.getShort();
+            case TYPE_UINT32:
+                return buffer.getInt() & 0xFFFFFFFFL;
+            case TYPE_INT32:
+                return (long) buffer.getInt();
+            case TYPE_FLOAT32:
+                return (double) buffer.getFloat();
+            case TYPE_BOOL:
+                return buffer.get() != 0;
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_UINT64:
+            case TYPE_INT64:
+                return buffer.getLong();
+            case TYPE_FLOAT64:
+                return buffer.getDouble();
+            default:
+                throw new Exception("未知的 GGUF 值类型: " + type);
+        }
+    }
+
+    private static void skipArray(MappedByteBuffer buffer, int elementType, long count) throws Exception {
+        if (elementType == TYPE_STRING) {
+            for (long i = 0; i < count; i++) {
+                skip(buffer, buffer.getLong());
+            }
+        } else if (elementType == TYPE_ARRAY) {
+            for (long i = 0; i < count; i++) {
+                int nestedType = buffer.getInt();
+                skipArray(buffer, nestedType, buffer.getLong());
+            }
+        } else {
+            skip(buffer, count * sizeOf(elementType));
+        }
+    }
+
+    private static int sizeOf(int type) throws Exception {
+        switch (type) {
+            case TYPE_UINT8:
+            case TYPE_INT8:
+            case TYPE_BOOL:
+                return 1;
+            case TYPE_UINT16:
+            case TYPE_INT16:
+                return 2;
+            case TYPE_UINT32:
+            case TYPE_INT32:
+            case TYPE_FLOAT32:
+                return 4;
+            case TYPE_UINT64:
+            case TYPE_INT64:
+            case TYPE_FLOAT64:
+                return 8;
+            default:
+                throw new Exception("未知的 GGUF 值类型: " + type);
+        }
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        long length = buffer.getLong();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skip(MappedByteBuffer buffer, long bytes) {
+        if (bytes < 0 || bytes > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + (int) bytes);
+    }
+
+    /**
+     * 解析结果：标量元数据按原值保存，数组只保存长度
+     */
+    public static class Header {
+        public int version;
+        public long tensorCount;
+        public long parameterCount;
+        public long dataOffset;
+        public long tensorBytes;
+        public final Map<String, Object> metadata = new HashMap<>();
+        public final Map<String, Long> arrayLengths = new HashMap<>();
+
+        public String getString(String key) {
+            Object value = metadata.get(key);
+            return value instanceof String ? (String) value : null;
+        }
+
+        public long getLong(String key, long defaultValue) {
+            Object value = metadata.get(key);
+            return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+        }
+
+        /**
+         * 按架构前缀读取，如 llama.context_length
+         */
+        public long getArchLong(String suffix, long defaultValue) {
+            String architecture = getString("general.architecture");
+            if (architecture == null) {
+                return defaultValue;
+            }
+            return getLong(architecture + "." + suffix, defaultValue);
+        }
+    }
+}
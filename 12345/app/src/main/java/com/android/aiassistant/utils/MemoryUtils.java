@@ -0,0 +1,51 @@
+package com.android.aiassistant.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * 内存信息工具类
+ */
+public class MemoryUtils {
+
+    /**
+     * 获取可用内存（字节），读取 /proc/meminfo 的 MemAvailable，旧内核退化为 MemFree + Cached
+     */
+    public static long getAvailableMemory() {
+        long available = readMemInfo("MemAvailable");
+        if (available >= 0) {
+            return available;
+        }
+        long free = readMemInfo("MemFree");
+        long cached = readMemInfo("Cached");
+        if (free < 0) {
+            return Runtime.getRuntime().maxMemory();
+        }
+        return free + Math.max(0, cached);
+    }
+
+    /**
+     * 获取物理内存总量（字节）
+     */
+    public static long getTotalMemory() {
+        return readMemInfo("MemTotal");
+    }
+
+    /**
+     * 读取 /proc/meminfo 中的一项，单位转换为字节，读取失败返回 -1
+     */
+    public static long readMemInfo(String key) {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(key + ":")) {
+                    String[] parts = line.substring(key.length() + 1).trim().split("\\s+");
+                    return Long.parseLong(parts[0]) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            // 无法读取
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,221 @@
+package com.android.aiassistant.utils;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 模型目录索引
+ * 以 (路径, 大小, 修改时间) 为键持久化 ModelInfo，重新扫描时只解析新增或变化的文件；
+ * 启动时直接使用上次保存的索引，不需要扫描目录
+ */
+public class ModelCatalog {
+
+    private static final String TAG = "ModelCatalog";
+
+    private final File modelsDirectory;
+    private final File indexFile;
+    private final Gson gson = new Gson();
+    private final List<CatalogListener> listeners = new CopyOnWriteArrayList<>();
+
+    // 按路径索引，保持名称顺序
+    private Map<String, AIModelManager.ModelInfo> entries;
+
+    public ModelCatalog(File modelsDirectory, File indexFile) {
+        this.modelsDirectory = modelsDirectory;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * 上次索引中模型目录下的模型，不扫描目录，列表中的文件可能已被删除
+     */
+    public synchronized List<AIModelManager.ModelInfo> getModels() {
+        ensureLoaded();
+        List<AIModelManager.ModelInfo> models = new ArrayList<>();
+        for (AIModelManager.ModelInfo info : entries.values()) {
+            if (isInDirectory(new File(info.path))) {
+                models.add(info);
+            }
+        }
+        return models;
+    }
+
+    /**
+     * 增量扫描模型目录：未变化的文件沿用索引，新增或变化的文件重新解析，有变化时保存并通知
+     */
+    public List<AIModelManager.ModelInfo> refresh() {
+        List<AIModelManager.ModelInfo> added = new ArrayList<>();
+        List<AIModelManager.ModelInfo> removed = new ArrayList<>();
+        List<AIModelManager.ModelInfo> models;
+
+        synchronized (this) {
+            ensureLoaded();
+            File[] files = modelsDirectory.listFiles((dir, name) -> name.endsWith(".gguf"));
+            List<File> sorted = new ArrayList<>();
+            if (files != null) {
+                Collections.addAll(sorted, files);
+                Collections.sort(sorted, (a, b) -> a.getName().compareTo(b.getName()));
+            }
+
+            Map<String, AIModelManager.ModelInfo> scanned = new LinkedHashMap<>();
+            for (File file : sorted) {
+                AIModelManager.ModelInfo info = entries.get(file.getAbsolutePath());
+                if (info == null || !isCurrent(info, file)) {
+                    if (info != null) {
+                        removed.add(info);
+                    }
+                    info = new AIModelManager.ModelInfo(file);
+                    added.add(info);
+                }
+                scanned.put(info.path, info);
+            }
+            models = new ArrayList<>(scanned.values());
+            for (AIModelManager.ModelInfo info : entries.values()) {
+                if (scanned.containsKey(info.path)) {
+                    continue;
+                }
+                if (isInDirectory(new File(info.path))) {
+                    removed.add(info);
+                } else {
+                    // 目录外单独加载过的模型不参与扫描，保留记录
+                    scanned.put(info.path, info);
+                }
+            }
+            entries = scanned;
+            if (!added.isEmpty() || !removed.isEmpty()) {
+                save();
+            }
+        }
+
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            for (CatalogListener listener : listeners) {
+                listener.onCatalogChanged(added, removed);
+            }
+        }
+        return models;
+    }
+
+    /**
+     * 获取单个模型的信息，索引中的记录已过期时只重新解析这一个文件；文件不存在时返回 null
+     */
+    public AIModelManager.ModelInfo get(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        AIModelManager.ModelInfo info;
+        synchronized (this) {
+            ensureLoaded();
+            info = entries.get(file.getAbsolutePath());
+            if (info != null && isCurrent(info, file)) {
+                return info;
+            }
+        }
+
+        // 解析放在锁外，避免阻塞其他查询
+        AIModelManager.ModelInfo fresh = new AIModelManager.ModelInfo(file);
+        synchronized (this) {
+            entries.put(fresh.path, fresh);
+            save();
+        }
+        if (isInDirectory(file)) {
+            List<AIModelManager.ModelInfo> removed = new ArrayList<>();
+            if (info != null) {
+                removed.add(info);
+            }
+            for (CatalogListener listener : listeners) {
+                listener.onCatalogChanged(Collections.singletonList(fresh), removed);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * 从索引中移除模型（文件删除后调用）
+     */
+    public void remove(File file) {
+        AIModelManager.ModelInfo info;
+        synchronized (this) {
+            ensureLoaded();
+            info = entries.remove(file.getAbsolutePath());
+            if (info != null) {
+                save();
+            }
+        }
+        if (info != null) {
+            for (CatalogListener listener : listeners) {
+                listener.onCatalogChanged(Collections.emptyList(), Collections.singletonList(info));
+            }
+        }
+    }
+
+    public void addListener(CatalogListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CatalogListener listener) {
+        listeners.remove(listener);
+    }
+
+    private boolean isInDirectory(File file) {
+        return modelsDirectory.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile());
+    }
+
+    private static boolean isCurrent(AIModelManager.ModelInfo info, File file) {
+        return info.size == file.length() && info.lastModified == file.lastModified();
+    }
+
+    private void ensureLoaded() {
+        if (entries != null) {
+            return;
+        }
+        entries = new LinkedHashMap<>();
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (Reader reader = new FileReader(indexFile)) {
+            List<AIModelManager.ModelInfo> saved = gson.fromJson(reader,
+                    new TypeToken<List<AIModelManager.ModelInfo>>() {}.getType());
+            if (saved != null) {
+                for (AIModelManager.ModelInfo info : saved) {
+                    entries.put(info.path, info);
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "读取模型索引失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 先写临时文件再替换，避免写到一半时进程被杀导致索引损坏
+     */
+    private void save() {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (Writer writer = new FileWriter(tmp)) {
+            gson.toJson(new ArrayList<>(entries.values()), writer);
+        } catch (Exception e) {
+            Log.w(TAG, "保存模型索引失败: " + e.getMessage());
+            return;
+        }
+        if (!tmp.renameTo(indexFile)) {
+            Log.w(TAG, "保存模型索引失败: 无法替换 " + indexFile.getName());
+        }
+    }
+
+    /**
+     * 索引变化回调，可能在任意线程调用
+     */
+    public interface CatalogListener {
+        void onCatalogChanged(List<AIModelManager.ModelInfo> added, List<AIModelManager.ModelInfo> removed);
+    }
+}
@@ -0,0 +1,679 @@
+package com.android.aiassistant.utils;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 模型下载器
+ * 按 HTTP Range 分段并行下载到模型目录，目标文件预先分配；
+ * 各分段进度记录在日志文件中，进程被杀后可以从断点继续；续传请求带 If-Range，
+ * 服务器上的文件已变化时丢弃断点从头下载，不会把新旧内容拼在一起；
+ * SHA-256 由独立线程沿已连续下载的前沿读回计算，与下载同时进行
+ */
+public class ModelDownloader {
+
+    private static final String TAG = "ModelDownloader";
+
+    private static final int DEFAULT_SEGMENTS = 4;
+    private static final long MIN_SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY_MS = 2000;
+    // 日志保存和进度回调的间隔
+    private static final long JOURNAL_INTERVAL_MS = 1000;
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    private final File modelsDirectory;
+    private final ModelCatalog catalog;
+    private final OkHttpClient httpClient;
+    private final Gson gson = new Gson();
+    private int segmentCount = DEFAULT_SEGMENTS;
+
+    public ModelDownloader(AIModelManager modelManager) {
+        this(modelManager.getModelsDirectory(), modelManager.getCatalog());
+    }
+
+    ModelDownloader(File modelsDirectory, ModelCatalog catalog) {
+        this.modelsDirectory = modelsDirectory;
+        this.catalog = catalog;
+        this.httpClient = new OkHttpClient.Builder()
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /**
+     * 设置并行分段数
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.segmentCount = Math.max(1, segmentCount);
+    }
+
+    /**
+     * 在后台下载模型，expectedSha256 为 null 时只计算不校验
+     */
+    public DownloadTask download(String url, String fileName, String expectedSha256, DownloadListener listener) {
+        DownloadTask task = new DownloadTask(url, fileName, expectedSha256, listener);
+        Thread thread = new Thread(() -> {
+            try {
+                File file = task.run();
+                listener.onComplete(file, task.sha256);
+            } catch (Exception e) {
+                listener.onError(task.cancelled ? "下载已取消" : e.getMessage());
+            } finally {
+                task.finished();
+            }
+        }, "model-download");
+        thread.start();
+        return task;
+    }
+
+    /**
+     * 未完成的下载是否存在断点记录
+     */
+    public boolean hasPartialDownload(String fileName) {
+        return journalFile(fileName).exists() && partFile(fileName).exists();
+    }
+
+    private File partFile(String fileName) {
+        return new File(modelsDirectory, fileName + ".part");
+    }
+
+    private File journalFile(String fileName) {
+        return new File(modelsDirectory, fileName + ".download.json");
+    }
+
+    /**
+     * 一次下载任务
+     */
+    public class DownloadTask {
+        private final String url;
+        private final String fileName;
+        private final String expectedSha256;
+        private final DownloadListener listener;
+        private final List<Call> calls = new ArrayList<>();
+        private final Object doneLock = new Object();
+        private volatile boolean cancelled;
+        // 服务器上的文件与断点记录不一致，已下载的部分不能再用
+        private volatile boolean remoteChanged;
+        private boolean done;
+
+        private Journal journal;
+        private FileChannel channel;
+        private HashFrontier frontier;
+        private String sha256;
+
+        DownloadTask(String url, String fileName, String expectedSha256, DownloadListener listener) {
+            this.url = url;
+            this.fileName = fileName;
+            this.expectedSha256 = expectedSha256 != null ? expectedSha256.toLowerCase() : null;
+            this.listener = listener;
+        }
+
+        /**
+         * 取消下载，已下载的部分保留，下次可以继续
+         */
+        public void cancel() {
+            cancelled = true;
+            abortCalls();
+        }
+
+        private void abortCalls() {
+            synchronized (calls) {
+                for (Call call : calls) {
+                    call.cancel();
+                }
+            }
+        }
+
+        /**
+         * 等待下载结束
+         */
+        public void await() throws InterruptedException {
+            synchronized (doneLock) {
+                while (!done) {
+                    doneLock.wait();
+                }
+            }
+        }
+
+        private void finished() {
+            synchronized (doneLock) {
+                done = true;
+                doneLock.notifyAll();
+            }
+        }
+
+        File run() throws Exception {
+            try {
+                return transfer();
+            } catch (Exception e) {
+                if (!remoteChanged || cancelled) {
+                    throw e;
+                }
+                Log.w(TAG, "服务器上的文件已变化，丢弃断点重新下载: " + fileName);
+                partFile(fileName).delete();
+                journalFile(fileName).delete();
+                remoteChanged = false;
+                return transfer();
+            }
+        }
+
+        private File transfer() throws Exception {
+            File target = new File(modelsDirectory, fileName);
+            File part = partFile(fileName);
+            File journalFile = journalFile(fileName);
+
+            journal = loadJournal(journalFile, part);
+            if (journal == null) {
+                journal = createJournal();
+                // 预先分配空间，避免下载到一半才发现存储不足，也减少文件碎片
+                try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                    raf.setLength(0);
+                    if (journal.totalBytes > 0) {
+                        raf.setLength(journal.totalBytes);
+                    }
+                }
+                saveJournal(journalFile, journal.snapshot());
+            } else {
+                Log.i(TAG, "从断点继续下载: " + fileName + " 已完成 " + journal.downloadedBytes() + " 字节");
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                channel = raf.getChannel();
+                // 断点续传时计算线程会先补算已连续下载的部分
+                frontier = new HashFrontier(journal, channel);
+                frontier.start();
+                downloadSegments(journalFile);
+
+                if (cancelled) {
+                    throw new Exception("下载已取消");
+                }
+                channel.force(true);
+                frontier.finish();
+                if (journal.totalBytes > 0 && frontier.position != journal.totalBytes) {
+                    throw new Exception("下载不完整: " + frontier.position + "/" + journal.totalBytes);
+                }
+                sha256 = frontier.hex();
+            } finally {
+                // 失败或取消时计算线程还在运行，必须在文件关闭前停下
+                if (frontier != null) {
+                    frontier.abort();
+                    frontier = null;
+                }
+                channel = null;
+            }
+
+            if (expectedSha256 != null && !expectedSha256.equals(sha256)) {
+                part.delete();
+                journalFile.delete();
+                throw new Exception("SHA-256 校验失败: 期望 " + expectedSha256 + "，实际 " + sha256);
+            }
+
+            if (target.exists() && !target.delete()) {
+                throw new Exception("无法替换已有文件: " + target.getName());
+            }
+            if (!part.renameTo(target)) {
+                throw new Exception("无法重命名下载文件: " + part.getName());
+            }
+            journalFile.delete();
+            catalog.get(target);
+            return target;
+        }
+
+        private void downloadSegments(File journalFile) throws Exception {
+            List<Segment> pending = new ArrayList<>();
+            for (Segment segment : journal.segments) {
+                if (!segment.isComplete()) {
+                    pending.add(segment);
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(pending.size());
+            List<Future<?>> futures = new ArrayList<>();
+            for (Segment segment : pending) {
+                futures.add(executor.submit(() -> {
+                    downloadSegment(segment);
+                    return null;
+                }));
+            }
+            executor.shutdown();
+
+            // 定期保存断点并报告进度，直到所有分段结束
+            long startMs = System.currentTimeMillis();
+            long startBytes = journal.downloadedBytes();
+            long lastJournalMs = 0;
+            try {
+                while (!executor.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastJournalMs >= JOURNAL_INTERVAL_MS) {
+                        persist(journalFile);
+                        lastJournalMs = now;
+                    }
+                    reportProgress(startMs, startBytes);
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+                persist(journalFile);
+            }
+            reportProgress(startMs, startBytes);
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    if (!cancelled) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 下载一个分段，网络错误时从当前位置重试
+         */
+        private void downloadSegment(Segment segment) throws Exception {
+            int attempts = 0;
+            while (!segment.isComplete() && !cancelled && !remoteChanged) {
+                try {
+                    fetchRange(segment);
+                    attempts = 0;
+                } catch (Exception e) {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (remoteChanged) {
+                        // 文件已变化，重试没有意义，由 run 丢弃断点重新下载
+                        throw e;
+                    }
+                    if (!journal.rangeSupported) {
+                        // 服务器不支持分段时无法从中间继续
+                        throw new Exception("下载失败: " + e.getMessage());
+                    }
+                    if (++attempts > MAX_RETRIES) {
+                        throw new Exception("下载失败: " + e.getMessage());
+                    }
+                    Log.w(TAG, "分段 " + segment.start + " 下载中断，第 " + attempts + " 次重试: " + e.getMessage());
+                    Thread.sleep(RETRY_DELAY_MS * attempts);
+                }
+            }
+        }
+
+        private void fetchRange(Segment segment) throws Exception {
+            long from = segment.start + segment.downloaded;
+            Request.Builder builder = new Request.Builder().url(url);
+            if (journal.rangeSupported) {
+                builder.header("Range", "bytes=" + from + "-" + (segment.end >= 0 ? segment.end : ""));
+                // 文件未变时服务器返回 206，变了则返回完整的 200；弱 ETag 不能用于 If-Range
+                if (isStrongEtag(journal.etag)) {
+                    builder.header("If-Range", journal.etag);
+                }
+            }
+            Call call = httpClient.newCall(builder.build());
+            synchronized (calls) {
+                calls.add(call);
+            }
+            try (Response response = call.execute()) {
+                if (journal.rangeSupported && response.code() == 200) {
+                    throw remoteChanged("服务器返回了完整文件");
+                }
+                if (journal.rangeSupported && response.code() != 206) {
+                    throw new Exception("服务器未返回分段内容: HTTP " + response.code());
+                }
+                String etag = response.header("ETag");
+                if (journal.etag != null && etag != null && !journal.etag.equals(etag)) {
+                    throw remoteChanged("ETag 从 " + journal.etag + " 变为 " + etag);
+                }
+                if (!response.isSuccessful()) {
+                    throw new Exception("HTTP " + response.code());
+                }
+
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                InputStream input = response.body().byteStream();
+                int read;
+                while (!cancelled && (read = readLimited(input, bytes, segment)) > 0) {
+                    long position = segment.start + segment.downloaded;
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, position + buffer.position());
+                    }
+                    synchronized (segment) {
+                        segment.downloaded += read;
+                    }
+                    frontier.wake();
+                }
+                if (!cancelled && segment.end < 0) {
+                    // 长度未知的单段下载以连接结束为准
+                    segment.end = segment.start + segment.downloaded - 1;
+                    journal.totalBytes = segment.downloaded;
+                }
+            } finally {
+                synchronized (calls) {
+                    calls.remove(call);
+                }
+            }
+        }
+
+        /**
+         * 标记服务器文件已变化并断开其他分段的连接
+         */
+        private Exception remoteChanged(String reason) {
+            remoteChanged = true;
+            abortCalls();
+            return new Exception("服务器上的文件已变化: " + reason);
+        }
+
+        private int readLimited(InputStream input, byte[] bytes, Segment segment) throws Exception {
+            int limit = bytes.length;
+            if (segment.end >= 0) {
+                limit = (int) Math.min(limit, segment.remaining());
+                if (limit == 0) {
+                    return 0;
+                }
+            }
+            return input.read(bytes, 0, limit);
+        }
+
+        private void reportProgress(long startMs, long startBytes) {
+            long downloaded = journal.downloadedBytes();
+            long elapsed = System.currentTimeMillis() - startMs;
+            double bytesPerSecond = elapsed > 0 ? (downloaded - startBytes) * 1000.0 / elapsed : 0;
+            listener.onProgress(downloaded, journal.totalBytes, bytesPerSecond);
+        }
+
+        /**
+         * 先记录进度快照，再把已写入的数据刷到存储，最后保存日志，日志记录的进度不会超过实际落盘的数据
+         */
+        private void persist(File journalFile) {
+            try {
+                Journal snapshot = journal.snapshot();
+                if (channel != null) {
+                    channel.force(false);
+                }
+                saveJournal(journalFile, snapshot);
+            } catch (Exception e) {
+                Log.w(TAG, "保存下载进度失败: " + e.getMessage());
+            }
+        }
+
+        private Journal createJournal() throws Exception {
+            Request request = new Request.Builder().url(url).head().build();
+            Journal created = new Journal();
+            created.url = url;
+            try (Response response = httpClient.newCall(request).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new Exception("无法获取文件信息: HTTP " + response.code());
+                }
+                String length = response.header("Content-Length");
+                created.totalBytes = length != null ? Long.parseLong(length) : -1;
+                created.rangeSupported = created.totalBytes > 0
+                        && "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+                created.etag = response.header("ETag");
+            }
+
+            int count = created.rangeSupported
+                    ? (int) Math.max(1, Math.min(segmentCount, created.totalBytes / MIN_SEGMENT_BYTES))
+                    : 1;
+            long segmentSize = created.totalBytes > 0 ? created.totalBytes / count : -1;
+            for (int i = 0; i < count; i++) {
+                Segment segment = new Segment();
+                segment.start = i * Math.max(0, segmentSize);
+                segment.end = created.totalBytes > 0
+                        ? (i == count - 1 ? created.totalBytes - 1 : segment.start + segmentSize - 1)
+                        : -1;
+                created.segments.add(segment);
+            }
+            return created;
+        }
+
+        private Journal loadJournal(File journalFile, File part) {
+            if (!journalFile.exists() || !part.exists()) {
+                return null;
+            }
+            try (Reader reader = new FileReader(journalFile)) {
+                Journal saved = gson.fromJson(reader, Journal.class);
+                // 不支持分段的下载无法续传；地址或文件大小变化时重新下载
+                if (saved == null || !url.equals(saved.url) || !saved.rangeSupported
+                        || part.length() != saved.totalBytes) {
+                    return null;
+                }
+                return saved;
+            } catch (Exception e) {
+                Log.w(TAG, "读取下载进度失败: " + e.getMessage());
+                return null;
+            }
+        }
+
+        private synchronized void saveJournal(File journalFile, Journal snapshot) throws Exception {
+            File tmp = new File(journalFile.getPath() + ".tmp");
+            try (Writer writer = new FileWriter(tmp)) {
+                gson.toJson(snapshot, writer);
+            }
+            if (!tmp.renameTo(journalFile)) {
+                throw new Exception("无法保存下载进度");
+            }
+        }
+    }
+
+    /**
+     * 在独立线程上沿连续前沿计算摘要：从文件读回已经连续写入的数据（通常仍在页缓存中），
+     * 下载线程只发通知，不会因为计算摘要而阻塞；
+     * 各分段相距很远，按到达顺序在内存中重排需要缓冲大量数据或让后面的分段停下等待，
+     * 读回的代价远小于这两者，下载完成时摘要基本已经算完，不需要再完整读一遍文件
+     */
+    private static class HashFrontier extends Thread {
+        // 没有收到通知时重新检查前沿的间隔
+        private static final long IDLE_WAIT_MS = 200;
+
+        private final Journal journal;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE * 16);
+        private final Object signal = new Object();
+        private boolean pending;
+        private volatile boolean finishing;
+        private volatile boolean stopped;
+        private volatile Exception failure;
+        volatile long position;
+
+        HashFrontier(Journal journal, FileChannel channel) throws Exception {
+            super("download-sha256");
+            setDaemon(true);
+            this.journal = journal;
+            this.channel = channel;
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    // 先读标记再计算，结束前写入的数据一定会被算到
+                    boolean last = finishing;
+                    if (hashAvailable()) {
+                        continue;
+                    }
+                    if (last) {
+                        return;
+                    }
+                    synchronized (signal) {
+                        if (!pending && !finishing && !stopped) {
+                            signal.wait(IDLE_WAIT_MS);
+                        }
+                        pending = false;
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * 有新数据写入，唤醒计算线程
+         */
+        void wake() {
+            synchronized (signal) {
+                pending = true;
+                signal.notify();
+            }
+        }
+
+        /**
+         * 所有分段结束后调用，等待前沿追上已写入的数据
+         */
+        void finish() throws Exception {
+            finishing = true;
+            wake();
+            join();
+            if (failure != null) {
+                throw new Exception("计算 SHA-256 失败: " + failure.getMessage());
+            }
+        }
+
+        /**
+         * 下载失败或取消时停止计算；不中断线程，中断会关闭正在读取的文件通道
+         */
+        void abort() throws InterruptedException {
+            stopped = true;
+            wake();
+            join();
+        }
+
+        /**
+         * 读回前沿之后已经落盘的一块数据，没有可读数据时返回 false
+         */
+        private boolean hashAvailable() throws Exception {
+            long available = contiguousEnd();
+            if (available <= position) {
+                return false;
+            }
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(readBuffer.capacity(), available - position));
+            int read = channel.read(readBuffer, position);
+            if (read <= 0) {
+                return false;
+            }
+            digest.update(readBuffer.array(), 0, read);
+            position += read;
+            return true;
+        }
+
+        private long contiguousEnd() {
+            for (Segment segment : journal.segments) {
+                synchronized (segment) {
+                    long end = segment.start + segment.downloaded;
+                    if (segment.start <= position && position < end) {
+                        return end;
+                    }
+                }
+            }
+            return position;
+        }
+
+        String hex() {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+
+    private static boolean isStrongEtag(String etag) {
+        return etag != null && !etag.startsWith("W/");
+    }
+
+    /**
+     * 断点记录
+     */
+    static class Journal {
+        String url;
+        String etag;
+        long totalBytes;
+        boolean rangeSupported;
+        List<Segment> segments = new ArrayList<>();
+
+        Journal snapshot() {
+            Journal copy = new Journal();
+            copy.url = url;
+            copy.etag = etag;
+            copy.totalBytes = totalBytes;
+            copy.rangeSupported = rangeSupported;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Segment saved = new Segment();
+                    saved.start = segment.start;
+                    saved.end = segment.end;
+                    saved.downloaded = segment.downloaded;
+                    copy.segments.add(saved);
+                }
+            }
+            return copy;
+        }
+
+        long downloadedBytes() {
+            long total = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    total += segment.downloaded;
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * 下载分段，end 为包含的结束位置，长度未知时为 -1
+     */
+    static class Segment {
+        long start;
+        long end;
+        long downloaded;
+
+        synchronized boolean isComplete() {
+            return end >= 0 && start + downloaded > end;
+        }
+
+        synchronized long remaining() {
+            return end - (start + downloaded) + 1;
+        }
+    }
+
+    /**
+     * 下载回调，可能在后台线程调用
+     */
+    public interface DownloadListener {
+        void onProgress(long downloadedBytes, long totalBytes, double bytesPerSecond);
+        void onComplete(File file, String sha256);
+        void onError(String error);
+    }
+}
@@ -0,0 +1,166 @@
+package com.android.aiassistant.utils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * llama.cpp 提示缓存管理器
+ * 按模型文件和缓存标识的哈希管理 --prompt-cache 文件。标识可以是提示前缀，也可以是对话会话这类
+ * 不随每轮变化的标识：llama.cpp 加载文件后复用其中与新提示的最长公共前缀，跳过已求值部分，
+ * 并用新提示覆盖文件。目录总大小超限时按最近使用淘汰
+ */
+public class PromptCacheManager {
+
+    private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final String SUFFIX = ".bin";
+
+    private final File cacheDirectory;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PromptCacheManager(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        if (!cacheDirectory.exists()) {
+            cacheDirectory.mkdirs();
+        }
+    }
+
+    /**
+     * 设置缓存目录大小上限
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * 取提示中最后一行之前的部分作为可复用前缀；单行提示没有可复用前缀，返回 null
+     */
+    public static String defaultPrefix(String prompt) {
+        int end = prompt.lastIndexOf('\n');
+        if (end <= 0) {
+            return null;
+        }
+        return prompt.substring(0, end + 1);
+    }
+
+    /**
+     * 查找指定模型和缓存标识对应的缓存文件，同时记录命中或未命中
+     */
+    public synchronized File acquire(File modelFile, int contextLength, String prefix) {
+        File cacheFile = new File(cacheDirectory, key(modelFile, contextLength, prefix) + SUFFIX);
+        if (cacheFile.exists() && cacheFile.length() > 0) {
+            hits.incrementAndGet();
+            cacheFile.setLastModified(System.currentTimeMillis());
+        } else {
+            misses.incrementAndGet();
+        }
+        return cacheFile;
+    }
+
+    /**
+     * 推理失败时丢弃可能已损坏的缓存文件
+     */
+    public synchronized void invalidate(File cacheFile) {
+        if (cacheFile != null && cacheFile.exists()) {
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * 按最近使用时间淘汰，直到目录大小不超过上限
+     */
+    public synchronized void trim() {
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 清空所有缓存文件
+     */
+    public synchronized void clear() {
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * 获取缓存目录当前大小
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 缓存键：模型文件标识 + 上下文长度 + 缓存标识，上下文长度不同的缓存文件无法被 llama.cpp 加载
+     */
+    private static String key(File modelFile, int contextLength, String prefix) {
+        String identity = modelFile.getAbsolutePath() + "|" + modelFile.length() + "|"
+                + modelFile.lastModified() + "|" + contextLength + "|";
+        return sha1(identity + prefix);
+    }
+
+    private static String sha1(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(text.hashCode());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.android.aiassistant.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 推理结果缓存
+ * 内存 LRU + 磁盘 gzip 两级缓存，相同的确定性请求直接返回结果；
+ * 同一键的并发请求合并为一次推理
+ */
+public class ResponseCache {
+
+    private static final int DEFAULT_MEMORY_ENTRIES = 64;
+    private static final long DEFAULT_DISK_BYTES = 32L * 1024 * 1024;
+    private static final String SUFFIX = ".gz";
+
+    private final File cacheDirectory;
+    private final Map<String, String> memory;
+    private final Map<String, FutureTask<String>> inFlight = new ConcurrentHashMap<>();
+    private long maxDiskBytes = DEFAULT_DISK_BYTES;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public ResponseCache(File cacheDirectory) {
+        this(cacheDirectory, DEFAULT_MEMORY_ENTRIES);
+    }
+
+    public ResponseCache(File cacheDirectory, int maxMemoryEntries) {
+        this.cacheDirectory = cacheDirectory;
+        if (!cacheDirectory.exists()) {
+            cacheDirectory.mkdirs();
+        }
+        this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+    }
+
+    /**
+     * 设置磁盘缓存大小上限
+     */
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+        trimDisk();
+    }
+
+    /**
+     * 由模型文件、提示、全部采样参数和停止序列计算缓存键；停止序列与顺序无关
+     */
+    public static String key(File modelFile, String prompt, int contextLength, int batchSize,
+                             float temperature, float topP, int maxTokens, List<String> stopSequences) {
+        List<String> stops = new ArrayList<>(stopSequences);
+        Collections.sort(stops);
+        StringBuilder identity = new StringBuilder();
+        identity.append(modelFile.getAbsolutePath()).append('|').append(modelFile.lastModified()).append('|')
+                .append(contextLength).append('|').append(batchSize).append('|').append(temperature).append('|')
+                .append(topP).append('|').append(maxTokens).append('|');
+        for (String stop : stops) {
+            // 长度前缀，避免不同的序列拼接后相同
+            identity.append(stop.length()).append(':').append(stop);
+        }
+        identity.append('|').append(prompt);
+        return sha256(identity.toString());
+    }
+
+    /**
+     * 查询缓存，未命中返回 null
+     */
+    public String get(String key) {
+        synchronized (memory) {
+            String value = memory.get(key);
+            if (value != null) {
+                memoryHits.incrementAndGet();
+                return value;
+            }
+        }
+
+        String value = readDisk(key);
+        if (value != null) {
+            diskHits.incrementAndGet();
+            synchronized (memory) {
+                memory.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 写入两级缓存
+     */
+    public void put(String key, String value) {
+        synchronized (memory) {
+            memory.put(key, value);
+        }
+        writeDisk(key, value);
+    }
+
+    /**
+     * 命中则直接返回；未命中时只有第一个请求执行 loader，其余并发请求等待同一结果
+     */
+    public String getOrCompute(String key, Callable<String> loader) throws Exception {
+        String cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        FutureTask<String> task = new FutureTask<>(loader);
+        FutureTask<String> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+
+        misses.incrementAndGet();
+        try {
+            task.run();
+            String value = await(task);
+            put(key, value);
+            return value;
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    /**
+     * 清空两级缓存
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private static String await(FutureTask<String> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    private String readDisk(String key) {
+        File file = new File(cacheDirectory, key + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, String value) {
+        File file = new File(cacheDirectory, key + SUFFIX);
+        File temp = new File(cacheDirectory, key + ".tmp");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(temp))) {
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            temp.delete();
+            return;
+        }
+        if (temp.renameTo(file)) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * 按最近使用时间淘汰磁盘缓存
+     */
+    private synchronized void trimDisk() {
+        File[] files = cacheDirectory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= maxDiskBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(text.hashCode());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 对话窗口：提示拼接、按问答对滑动、缓存标识和压缩结果的应用
+ */
+public class ConversationSessionTest {
+
+    private static final int BUDGET = 400;
+
+    @Test
+    public void buildsPromptFromHistory() {
+        ConversationSession session = session("你是助手");
+        session.commit("你好", "你好！", null);
+
+        ConversationSession.Prompt prompt = session.prepare("今天星期几？");
+
+        assertEquals("用户: 你好\n助手: 你好！\n用户: 今天星期几？\n助手: ", prompt.text.substring(prompt.text.indexOf("用户")));
+        assertTrue(prompt.text.startsWith("你是助手\n"));
+        assertEquals(2, prompt.windowTurns);
+        assertEquals(0, prompt.droppedTurns);
+        assertEquals(ConversationSession.estimateTokens(prompt.text), prompt.estimatedTokens);
+    }
+
+    @Test
+    public void cacheIdentityStaysTheSameAcrossTurns() {
+        ConversationSession session = session("你是助手");
+        String first = session.prepare("第一条").cachePrefix;
+        session.commit("第一条", "回复", null);
+        for (int i = 0; i < 20; i++) {
+            session.commit(message(i), message(i), null);
+        }
+
+        assertNotNull(first);
+        assertEquals(first, session.prepare("又一条").cachePrefix);
+        assertFalse(first.equals(session("另一个系统提示").prepare("第一条").cachePrefix));
+    }
+
+    @Test
+    public void slidesWholeTurnPairsToLowWatermark() {
+        ConversationSession session = session("你是助手");
+        for (int i = 0; i < 20; i++) {
+            session.commit(message(i), message(i), null);
+        }
+
+        ConversationSession.Prompt prompt = session.prepare("新的问题");
+
+        assertTrue(prompt.estimatedTokens <= BUDGET);
+        assertTrue(prompt.droppedTurns > 0);
+        assertEquals(0, prompt.droppedTurns % 2);
+        assertEquals(40 - prompt.droppedTurns, prompt.windowTurns);
+        assertTrue(prompt.text.startsWith("你是助手\n"));
+        assertTrue(prompt.text.endsWith("用户: 新的问题\n助手: "));
+        // 窗口从用户消息开始
+        assertTrue(prompt.text.contains("你是助手\n用户: " + message(prompt.droppedTurns / 2)));
+        assertEquals(prompt.droppedTurns, session.getDroppedTurnCount());
+    }
+
+    @Test
+    public void windowDoesNotMoveEveryTurnAfterSliding() {
+        ConversationSession session = session(null);
+        for (int i = 0; i < 20; i++) {
+            session.commit(message(i), message(i), null);
+        }
+        ConversationSession.Prompt slid = session.prepare("问题");
+        session.commit("问题", "回答", null);
+
+        // 滑到低水位后还有余量，下一轮沿用同一窗口，前缀可以被复用
+        ConversationSession.Prompt next = session.prepare("下一个问题");
+
+        assertEquals(slid.droppedTurns, next.droppedTurns);
+        String sharedPrefix = slid.text.substring(0, slid.text.length() - "用户: 问题\n助手: ".length());
+        assertTrue(next.text.startsWith(sharedPrefix));
+    }
+
+    @Test
+    public void resetClearsHistoryAndWindow() {
+        ConversationSession session = session("你是助手");
+        for (int i = 0; i < 20; i++) {
+            session.commit(message(i), message(i), null);
+        }
+        session.prepare("问题");
+
+        session.reset();
+        ConversationSession.Prompt prompt = session.prepare("问题");
+
+        assertEquals(0, prompt.droppedTurns);
+        assertEquals(0, prompt.windowTurns);
+        assertEquals("你是助手\n用户: 问题\n助手: ", prompt.text);
+        assertTrue(session.getTurns().isEmpty());
+    }
+
+    @Test
+    public void compactionReplacesOlderTurnsWithDigest() {
+        ConversationSession session = session("你是助手");
+        for (int i = 0; i < 5; i++) {
+            session.commit(message(i), message(i), null);
+        }
+
+        ConversationSession.CompactionJob job = session.beginCompaction();
+        assertNotNull(job);
+        assertTrue(session.applyCompaction(job, "用户在问天气"));
+        ConversationSession.Prompt prompt = session.prepare("继续");
+
+        assertEquals("用户在问天气", session.getDigest());
+        assertEquals(6, prompt.compactedTurns);
+        assertEquals(4, prompt.windowTurns);
+        assertTrue(prompt.text.startsWith("你是助手\n\n之前对话的摘要：\n用户在问天气\n"));
+        assertFalse(prompt.text.contains(message(0)));
+        assertTrue(prompt.text.contains(message(4)));
+    }
+
+    @Test
+    public void compactionStartedBeforeResetIsDiscarded() {
+        ConversationSession session = session(null);
+        for (int i = 0; i < 5; i++) {
+            session.commit(message(i), message(i), null);
+        }
+        ConversationSession.CompactionJob job = session.beginCompaction();
+
+        session.reset();
+
+        assertFalse(session.applyCompaction(job, "过期的摘要"));
+        assertNull(session.getDigest());
+    }
+
+    /**
+     * 每条约 30 个令牌的消息
+     */
+    private static String message(int index) {
+        StringBuilder text = new StringBuilder("第" + index + "条");
+        while (text.length() < 30) {
+            text.append('字');
+        }
+        return text.toString();
+    }
+
+    private static ConversationSession session(String systemPrompt) {
+        return new ConversationSession(null, systemPrompt) {
+            @Override
+            int getBudget() {
+                return BUDGET;
+            }
+        };
+    }
+}
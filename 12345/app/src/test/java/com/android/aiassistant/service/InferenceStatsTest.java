@@ -0,0 +1,112 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 滚动百分位和推理统计汇总
+ */
+public class InferenceStatsTest {
+
+    @Test
+    public void percentilesUseNearestRank() {
+        InferenceStats.RollingHistogram histogram = new InferenceStats.RollingHistogram(200);
+        // 乱序加入 1..100
+        for (int i = 0; i < 100; i++) {
+            histogram.add((i * 37) % 100 + 1);
+        }
+
+        assertEquals(100, histogram.count());
+        assertEquals(50, histogram.percentile(50), 0);
+        assertEquals(90, histogram.percentile(90), 0);
+        assertEquals(99, histogram.percentile(99), 0);
+        assertEquals(100, histogram.percentile(100), 0);
+        assertEquals(1, histogram.percentile(0), 0);
+    }
+
+    @Test
+    public void windowDropsOldestSamplesAndIgnoresUnknown() {
+        InferenceStats.RollingHistogram histogram = new InferenceStats.RollingHistogram(3);
+        histogram.add(100);
+        histogram.add(-1);
+        histogram.add(1);
+        histogram.add(2);
+        histogram.add(3);
+
+        // 100 已被挤出窗口，-1 表示未知不计入
+        assertEquals(3, histogram.count());
+        assertEquals(3, histogram.percentile(100), 0);
+        assertEquals(1, histogram.percentile(0), 0);
+
+        histogram.clear();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50), 0);
+    }
+
+    @Test
+    public void recordAggregatesMetrics() {
+        InferenceStats stats = new InferenceStats();
+
+        InferenceMetrics cold = metrics(400, 20, 1000);
+        cold.modelLoaded = true;
+        cold.loadMs = 800;
+        cold.draftTokens = 10;
+        cold.draftAccepted = 6;
+        stats.record(cold);
+
+        InferenceMetrics warm = metrics(100, 40, 1000);
+        // 未重新加载模型时的加载时间不计入
+        warm.loadMs = 5;
+        warm.draftTokens = 30;
+        warm.draftAccepted = 30;
+        warm.tokensSaved = 12;
+        stats.record(warm);
+        stats.recordFailure();
+
+        assertEquals(2, stats.getFirstTokenMs().count());
+        assertEquals(400, stats.getFirstTokenMs().percentile(99), 0);
+        assertEquals(20, stats.getEvalTokensPerSecond().percentile(50), 0);
+        assertEquals(40, stats.getEvalTokensPerSecond().percentile(99), 0);
+        assertEquals(1, stats.getLoadMs().count());
+        assertEquals(800, stats.getLoadMs().percentile(50), 0);
+        // 累计接受率按令牌数加权，不是两次比率的平均
+        assertEquals(36.0 / 40, stats.getDraftAcceptRate(), 1e-9);
+        assertEquals(12, stats.getTotalTokensSaved());
+        assertTrue(stats.format(), stats.format().startsWith("请求: 3，失败: 1"));
+
+        stats.reset();
+        assertEquals(0, stats.getFirstTokenMs().count());
+        assertEquals(-1, stats.getDraftAcceptRate(), 0);
+    }
+
+    @Test
+    public void cacheHitsAreCountedSeparately() {
+        InferenceStats stats = new InferenceStats();
+        stats.record(metrics(300, 20, 1000));
+
+        InferenceMetrics hit = new InferenceMetrics();
+        hit.cacheHit = true;
+        hit.firstTokenMs = 2;
+        hit.totalMs = 2;
+        stats.recordCacheHit(hit);
+
+        // 命中不拉低推理的首令牌延迟分布
+        assertEquals(1, stats.getFirstTokenMs().count());
+        assertEquals(300, stats.getFirstTokenMs().percentile(50), 0);
+        assertEquals(1, stats.getCacheHitCount());
+        assertEquals(2, stats.getCacheHitMs().percentile(50), 0);
+        assertEquals(hit, stats.getLastMetrics());
+        assertTrue(stats.format(), stats.format().startsWith("请求: 2，失败: 0，缓存命中: 1"));
+    }
+
+    private static InferenceMetrics metrics(long firstTokenMs, int evalTokens, double evalMs) {
+        InferenceMetrics metrics = new InferenceMetrics();
+        metrics.firstTokenMs = firstTokenMs;
+        metrics.evalTokens = evalTokens;
+        metrics.evalMs = evalMs;
+        metrics.totalMs = firstTokenMs + (long) evalMs;
+        return metrics;
+    }
+}
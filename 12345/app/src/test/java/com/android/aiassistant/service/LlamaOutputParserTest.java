@@ -0,0 +1,79 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * llama.cpp 计时日志解析
+ */
+public class LlamaOutputParserTest {
+
+    @Test
+    public void parsesPerfContextLines() {
+        InferenceMetrics metrics = parse(
+                "llama_perf_sampler_print:    sampling time =       3.20 ms /    40 runs   "
+                        + "(    0.08 ms per token, 12500.00 tokens per second)",
+                "llama_perf_context_print:        load time =    1234.56 ms",
+                "llama_perf_context_print: prompt eval time =     512.34 ms /    24 tokens "
+                        + "(   21.35 ms per token,    46.84 tokens per second)",
+                "llama_perf_context_print:        eval time =    1500.00 ms /    31 runs   "
+                        + "(   48.39 ms per token,    20.67 tokens per second)",
+                "llama_perf_context_print:       total time =    3300.12 ms /    55 tokens");
+
+        assertEquals(1235, metrics.loadMs);
+        assertTrue(metrics.modelLoaded);
+        assertEquals(24, metrics.promptTokens);
+        assertEquals(512.34, metrics.promptEvalMs, 0.001);
+        assertEquals(31, metrics.evalTokens);
+        assertEquals(1500.0, metrics.evalMs, 0.001);
+        assertEquals(3300, metrics.totalMs);
+    }
+
+    @Test
+    public void parsesLegacyPrintTimingsLines() {
+        InferenceMetrics metrics = parse(
+                "llama_print_timings:        load time =   812.00 ms",
+                "llama_print_timings:      sample time =     5.10 ms /    32 runs   "
+                        + "(    0.16 ms per token,  6274.51 tokens per second)",
+                "llama_print_timings: prompt eval time =   640.00 ms /    16 tokens "
+                        + "(   40.00 ms per token,    25.00 tokens per second)",
+                "llama_print_timings:        eval time =  2000.00 ms /    32 runs   "
+                        + "(   62.50 ms per token,    16.00 tokens per second)",
+                "llama_print_timings:       total time =  2900.50 ms");
+
+        assertEquals(812, metrics.loadMs);
+        assertEquals(16, metrics.promptTokens);
+        assertEquals(640.0, metrics.promptEvalMs, 0.001);
+        // sample time 行不能被当作生成耗时
+        assertEquals(32, metrics.evalTokens);
+        assertEquals(2000.0, metrics.evalMs, 0.001);
+        assertEquals(16.0, metrics.evalTokensPerSecond(), 0.001);
+        assertEquals(2901, metrics.totalMs);
+    }
+
+    @Test
+    public void ignoresOtherDiagnostics() {
+        InferenceMetrics metrics = parse(
+                "llama_model_loader: loaded meta data with 24 key-value pairs",
+                "llama_new_context_with_model: n_ctx      = 2048",
+                "system_info: n_threads = 4 / 8 | AVX = 0 | NEON = 1 |");
+
+        assertEquals(-1, metrics.loadMs);
+        assertFalse(metrics.modelLoaded);
+        assertEquals(-1, metrics.promptTokens);
+        assertEquals(-1, metrics.evalTokens);
+        assertEquals(-1, metrics.totalMs);
+    }
+
+    private static InferenceMetrics parse(String... lines) {
+        InferenceMetrics metrics = new InferenceMetrics();
+        LlamaOutputParser parser = new LlamaOutputParser(metrics);
+        for (String line : lines) {
+            parser.parseDiagnostic(line);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,141 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * llama-server 的 SSE 流解析
+ */
+public class LlamaServerBackendTest {
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void readsEventsSplitAcrossPackets() throws Exception {
+        String body = "data: {\"content\":\"你好\",\"stop\":false}\n\n"
+                + "data: {\"content\":\"，世界\",\"stop\":false}\n\n"
+                + "data: {\"content\":\"\",\"stop\":true,\"timings\":{\"prompt_n\":12,\"prompt_ms\":30.5,"
+                + "\"predicted_n\":2,\"predicted_ms\":40.0}}\n\n";
+        // 每次只发 5 个字节，事件和多字节字符都会被拆开
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setBody(body)
+                .throttleBody(5, 1, TimeUnit.MILLISECONDS));
+
+        InferenceMetrics metrics = new InferenceMetrics();
+        StringBuilder output = new StringBuilder();
+        backend().generate(request(), collect(output), new InferenceRun(), metrics);
+
+        assertEquals("你好，世界", output.toString());
+        assertEquals(12, metrics.promptTokens);
+        assertEquals(30.5, metrics.promptEvalMs, 0.001);
+        assertEquals(2, metrics.evalTokens);
+        assertEquals(40.0, metrics.evalMs, 0.001);
+    }
+
+    @Test
+    public void stopsAtDoneMarker() throws Exception {
+        Buffer source = new Buffer().writeUtf8("data: {\"content\":\"a\"}\n\n"
+                + ": keep-alive\n\n"
+                + "data:{\"content\":\"b\"}\n\n"
+                + "data: [DONE]\n\n"
+                + "data: {\"content\":\"不应读到\"}\n\n");
+
+        StringBuilder output = new StringBuilder();
+        LlamaServerBackend.readStream(source, collect(output), new InferenceMetrics());
+
+        assertEquals("ab", output.toString());
+    }
+
+    @Test
+    public void errorEventFailsGeneration() throws Exception {
+        Buffer source = new Buffer().writeUtf8("data: {\"content\":\"a\"}\n\n"
+                + "error: {\"code\":500,\"message\":\"context full\"}\n\n");
+
+        StringBuilder output = new StringBuilder();
+        try {
+            LlamaServerBackend.readStream(source, collect(output), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("context full"));
+        }
+        assertEquals("a", output.toString());
+    }
+
+    @Test
+    public void errorFieldInDataEventFailsGeneration() throws Exception {
+        Buffer source = new Buffer().writeUtf8("data: {\"error\":{\"message\":\"bad request\"}}\n\n");
+        try {
+            LlamaServerBackend.readStream(source, collect(new StringBuilder()), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad request"));
+        }
+    }
+
+    @Test
+    public void httpErrorIncludesResponseBody() throws Exception {
+        server.enqueue(new MockResponse()
+                .setResponseCode(503)
+                .setBody("{\"error\":{\"message\":\"Loading model\"}}"));
+
+        try {
+            backend().generate(request(), collect(new StringBuilder()), new InferenceRun(), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 503"));
+            assertTrue(e.getMessage(), e.getMessage().contains("Loading model"));
+        }
+    }
+
+    private LlamaServerBackend backend() {
+        return new LlamaServerBackend(server.url("/").toString());
+    }
+
+    static GenerationRequest request() {
+        GenerationRequest request = new GenerationRequest();
+        request.modelPath = "/models/test.gguf";
+        request.prompt = "你好";
+        request.maxTokens = 16;
+        request.temperature = 0.7f;
+        request.topP = 0.9f;
+        return request;
+    }
+
+    static AIInferenceService.InferenceCallback collect(StringBuilder output) {
+        return new AIInferenceService.InferenceCallback() {
+            @Override
+            public void onToken(String token) {
+                output.append(token);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.aiassistant.utils.AIModelManager;
+import java.io.File;
+import org.junit.Test;
+
+/**
+ * 内存准入：放得下、降级参数、权重分页和拒绝
+ */
+public class MemoryAdmissionTest {
+
+    private static final long MB = 1024L * 1024;
+    private static final long DEVICE_MEMORY = 8L * 1024 * MB;
+
+    private final MemoryAdmission admission = new MemoryAdmission();
+
+    @Test
+    public void admitsRequestedOptionsWhenTheyFit() {
+        AIModelManager.ModelInfo model = model();
+        LaunchOptions requested = options(4096, 512);
+        long resident = MemoryAdmission.residentBytes(model, requested);
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, requested, resident, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.ADMIT, decision.verdict);
+        assertSame(requested, decision.options);
+        assertEquals(resident, decision.requiredBytes);
+    }
+
+    @Test
+    public void shrinksContextBeforeBatch() {
+        AIModelManager.ModelInfo model = model();
+        LaunchOptions requested = options(8192, 512);
+        requested.useMmap = false;
+        requested.useMlock = true;
+        // 上下文缩到 2048 正好放得下
+        long available = MemoryAdmission.residentBytes(model, options(2048, 512));
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, requested, available, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.DEGRADE, decision.verdict);
+        assertEquals(2048, decision.options.contextLength);
+        assertEquals(512, decision.options.batchSize);
+        assertTrue(decision.options.useMmap);
+        assertFalse(decision.options.useMlock);
+        assertTrue(decision.requiredBytes <= available);
+        // 请求的参数本身不被修改
+        assertEquals(8192, requested.contextLength);
+        assertFalse(requested.useMmap);
+    }
+
+    @Test
+    public void shrinksBatchAfterMinimumContext() {
+        AIModelManager.ModelInfo model = model();
+        long available = MemoryAdmission.residentBytes(model, options(512, 256));
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, options(4096, 1024), available, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.DEGRADE, decision.verdict);
+        assertEquals(512, decision.options.contextLength);
+        assertEquals(256, decision.options.batchSize);
+    }
+
+    @Test
+    public void pagesWeightsWhenOnlyAnonymousMemoryFits() {
+        AIModelManager.ModelInfo model = model();
+        LaunchOptions minimal = options(512, 128);
+        long available = MemoryAdmission.anonymousBytes(model, minimal) + 400 * MB;
+        assertTrue(available < MemoryAdmission.residentBytes(model, minimal));
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, options(4096, 512), available, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.DEGRADE, decision.verdict);
+        assertEquals(512, decision.options.contextLength);
+        assertEquals(128, decision.options.batchSize);
+        assertTrue(decision.reason, decision.reason.contains("分页"));
+    }
+
+    @Test
+    public void rejectsWhenNothingFits() {
+        AIModelManager.ModelInfo model = model();
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, options(4096, 512), 100 * MB, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.REJECT, decision.verdict);
+        assertTrue(decision.reason, decision.reason.startsWith("内存不足，无法运行 test.gguf"));
+        assertEquals(100 * MB, decision.availableBytes);
+    }
+
+    @Test
+    public void rejectsModelLargerThanDeviceMemory() {
+        AIModelManager.ModelInfo model = model();
+        model.size = DEVICE_MEMORY + 1;
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, options(512, 128), Long.MAX_VALUE, DEVICE_MEMORY);
+
+        assertEquals(MemoryAdmission.Verdict.REJECT, decision.verdict);
+        assertTrue(decision.reason, decision.reason.contains("大于设备内存"));
+    }
+
+    @Test
+    public void unknownDeviceMemorySkipsSizeCheck() {
+        AIModelManager.ModelInfo model = model();
+        model.size = DEVICE_MEMORY + 1;
+
+        MemoryAdmission.Decision decision = admission.evaluate(model, options(512, 128), Long.MAX_VALUE, 0);
+
+        assertEquals(MemoryAdmission.Verdict.ADMIT, decision.verdict);
+    }
+
+    @Test
+    public void kvCacheUsesModelStructure() {
+        AIModelManager.ModelInfo model = model();
+
+        // 28 层 × 4 个 KV 头 × (128 + 128) × 2 字节
+        assertEquals(28L * 4 * 256 * 2 * 4096, MemoryAdmission.estimateKvCacheBytes(model, 4096));
+    }
+
+    @Test
+    public void kvCacheWithoutMetadataScalesWithFileSize() {
+        AIModelManager.ModelInfo model = new AIModelManager.ModelInfo(new File("missing.bin"));
+        // Q4_K_M 的 7B 模型按每令牌 512KB 估算
+        model.size = (long) (7e9 * 0.5625);
+
+        assertEquals(512L * 1024 * 1000, MemoryAdmission.estimateKvCacheBytes(model, 1000), 1024);
+        assertEquals(model.size, MemoryAdmission.weightBytes(model));
+    }
+
+    /**
+     * 类似 Qwen2.5-7B Q4 结构的模型，权重 1GB，便于在测试机上不超过设备内存
+     */
+    private static AIModelManager.ModelInfo model() {
+        AIModelManager.ModelInfo model = new AIModelManager.ModelInfo(new File("test.gguf"));
+        model.size = 1024 * MB + 8 * MB;
+        model.tensorBytes = 1024 * MB;
+        model.metadataLoaded = true;
+        model.blockCount = 28;
+        model.headCount = 28;
+        model.headCountKv = 4;
+        model.keyLength = 128;
+        model.valueLength = 128;
+        model.embeddingLength = 3584;
+        model.vocabSize = 152064;
+        return model;
+    }
+
+    private static LaunchOptions options(int contextLength, int batchSize) {
+        LaunchOptions options = new LaunchOptions();
+        options.contextLength = contextLength;
+        options.batchSize = batchSize;
+        return options;
+    }
+}
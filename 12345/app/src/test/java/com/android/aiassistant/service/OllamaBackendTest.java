@@ -0,0 +1,104 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Ollama 的 NDJSON 流解析
+ */
+public class OllamaBackendTest {
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void readsLinesSplitAcrossPackets() throws Exception {
+        String body = "{\"response\":\"你好\",\"done\":false}\n"
+                + "{\"response\":\"，世界\",\"done\":false}\n"
+                + "{\"response\":\"\",\"done\":true,\"load_duration\":2000000,\"prompt_eval_count\":8,"
+                + "\"prompt_eval_duration\":16000000,\"eval_count\":2,\"eval_duration\":50000000}\n";
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Type", "application/x-ndjson")
+                .setBody(body)
+                .throttleBody(5, 1, TimeUnit.MILLISECONDS));
+
+        InferenceMetrics metrics = new InferenceMetrics();
+        StringBuilder output = new StringBuilder();
+        backend().generate(LlamaServerBackendTest.request(), LlamaServerBackendTest.collect(output),
+                new InferenceRun(), metrics);
+
+        assertEquals("你好，世界", output.toString());
+        assertEquals(2, metrics.loadMs);
+        assertEquals(8, metrics.promptTokens);
+        assertEquals(16.0, metrics.promptEvalMs, 0.001);
+        assertEquals(2, metrics.evalTokens);
+        assertEquals(50.0, metrics.evalMs, 0.001);
+        assertTrue(server.takeRequest().getBody().readUtf8().contains("\"model\":\"test\""));
+    }
+
+    @Test
+    public void skipsBlankLinesAndStopsAtDone() throws Exception {
+        Buffer source = new Buffer().writeUtf8("{\"response\":\"a\",\"done\":false}\n\n"
+                + "{\"response\":\"b\",\"done\":true}\n"
+                + "{\"response\":\"不应读到\",\"done\":false}\n");
+
+        StringBuilder output = new StringBuilder();
+        OllamaBackend.readStream(source, LlamaServerBackendTest.collect(output), new InferenceMetrics());
+
+        assertEquals("ab", output.toString());
+    }
+
+    @Test
+    public void errorLineFailsGeneration() throws Exception {
+        Buffer source = new Buffer().writeUtf8("{\"response\":\"a\",\"done\":false}\n"
+                + "{\"error\":\"out of memory\"}\n");
+
+        StringBuilder output = new StringBuilder();
+        try {
+            OllamaBackend.readStream(source, LlamaServerBackendTest.collect(output), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("out of memory"));
+        }
+        assertEquals("a", output.toString());
+    }
+
+    @Test
+    public void httpErrorIncludesResponseBody() throws Exception {
+        server.enqueue(new MockResponse()
+                .setResponseCode(404)
+                .setBody("{\"error\":\"model 'test' not found\"}"));
+
+        try {
+            backend().generate(LlamaServerBackendTest.request(), LlamaServerBackendTest.collect(new StringBuilder()),
+                    new InferenceRun(), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("HTTP 404"));
+            assertTrue(e.getMessage(), e.getMessage().contains("not found"));
+        }
+    }
+
+    private OllamaBackend backend() {
+        return new OllamaBackend(server.url("/").toString(), null);
+    }
+}
@@ -0,0 +1,81 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.aiassistant.utils.PromptCacheManager;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 单次进程后端：命令行参数与 stdout/stderr 的分离
+ */
+public class ProcessBackendTest {
+
+    // 模拟 llama.cpp：未传 --no-display-prompt 时先回显提示，且和真实程序一样不输出特殊标记
+    private static final String FAKE_LLAMA = "#!/bin/sh\n"
+            + "display=1\n"
+            + "prompt=\n"
+            + "while [ $# -gt 0 ]; do\n"
+            + "  case \"$1\" in\n"
+            + "    --no-display-prompt) display=0 ;;\n"
+            + "    -p) shift; prompt=\"$1\" ;;\n"
+            + "  esac\n"
+            + "  shift\n"
+            + "done\n"
+            + "if [ $display = 1 ]; then printf '%s' \"$prompt\" | sed 's/<|[a-z_]*|>//g'; fi\n"
+            + "echo 'llama_perf_context_print: prompt eval time =     120.00 ms /    24 tokens' >&2\n"
+            + "printf '北京。'\n"
+            + "echo 'llama_perf_context_print:        eval time =      90.00 ms /     3 runs' >&2\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void templatedPromptIsNotEchoed() throws Exception {
+        GenerationRequest request = request();
+        request.prompt = "<|im_start|>system\n你是助手<|im_end|>\n"
+                + "<|im_start|>user\n中国的首都是哪里？<|im_end|>\n"
+                + "<|im_start|>assistant\n";
+
+        InferenceMetrics metrics = new InferenceMetrics();
+        StringBuilder output = new StringBuilder();
+        backend(FAKE_LLAMA).generate(request, LlamaServerBackendTest.collect(output), new InferenceRun(), metrics);
+
+        assertEquals("北京。", output.toString());
+        assertEquals(24, metrics.promptTokens);
+        assertEquals(3, metrics.evalTokens);
+    }
+
+    @Test
+    public void failureReportsLastDiagnosticLine() throws Exception {
+        String script = "#!/bin/sh\n"
+                + "echo 'llama_model_load: error loading model' >&2\n"
+                + "exit 1\n";
+        try {
+            backend(script).generate(request(), LlamaServerBackendTest.collect(new StringBuilder()),
+                    new InferenceRun(), new InferenceMetrics());
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("error loading model"));
+        }
+    }
+
+    private ProcessBackend backend(String script) throws Exception {
+        File binary = folder.newFile("llama-cli");
+        Files.write(binary.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(binary.setExecutable(true));
+        return new ProcessBackend(binary.getAbsolutePath(), new PromptCacheManager(folder.newFolder("cache")));
+    }
+
+    private static GenerationRequest request() {
+        GenerationRequest request = LlamaServerBackendTest.request();
+        request.options = new LaunchOptions();
+        return request;
+    }
+}
@@ -0,0 +1,170 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 批量 root 操作：脚本输出按标记拆回各个操作
+ */
+public class RootBatchTest {
+
+    private static final String TOKEN = "__b7f3__";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitsOutputByMarkers() {
+        List<RootBatch.Operation> operations = Arrays.asList(
+                RootBatch.Operation.exists("/data/a"),
+                RootBatch.Operation.rm("/data/b"),
+                RootBatch.Operation.chmod("/data/c", "644"));
+        String output = TOKEN + ":0:0\n"
+                + "rm: /data/b: Permission denied\n" + TOKEN + ":1:1\n"
+                + TOKEN + ":2:0\n";
+
+        List<RootBatch.Result> results = RootBatch.parse(operations, TOKEN, output, null);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).success);
+        assertEquals("", results.get(0).output);
+        assertFalse(results.get(1).success);
+        assertEquals(1, results.get(1).exitCode);
+        assertEquals("rm: /data/b: Permission denied\n", results.get(1).output);
+        assertTrue(results.get(2).success);
+    }
+
+    @Test
+    public void markerAfterOutputWithoutTrailingNewline() {
+        List<RootBatch.Operation> operations = Arrays.asList(
+                RootBatch.Operation.exists("/a"), RootBatch.Operation.exists("/b"));
+        String output = "partial line" + TOKEN + ":0:0\n" + TOKEN + ":1:1";
+
+        List<RootBatch.Result> results = RootBatch.parse(operations, TOKEN, output, null);
+
+        assertEquals("partial line", results.get(0).output);
+        assertTrue(results.get(0).success);
+        assertEquals(1, results.get(1).exitCode);
+    }
+
+    @Test
+    public void parsesStatFields() {
+        List<RootBatch.Operation> operations = Arrays.asList(RootBatch.Operation.stat("/data/local/tmp/x y"));
+        String output = "regular file|1234|644|root|shell|1700000000\n" + TOKEN + ":0:0\n";
+
+        RootBatch.Result result = RootBatch.parse(operations, TOKEN, output, null).get(0);
+
+        assertEquals("regular file", result.fileType);
+        assertEquals(1234, result.size);
+        assertEquals("644", result.permissions);
+        assertEquals("root", result.owner);
+        assertEquals("shell", result.group);
+        assertEquals(1700000000000L, result.modifiedTime);
+    }
+
+    @Test
+    public void failedStatKeepsFieldsEmpty() {
+        List<RootBatch.Operation> operations = Arrays.asList(RootBatch.Operation.stat("/missing"));
+        String output = "stat: '/missing': No such file or directory\n" + TOKEN + ":0:1\n";
+
+        RootBatch.Result result = RootBatch.parse(operations, TOKEN, output, null).get(0);
+
+        assertFalse(result.success);
+        assertNull(result.fileType);
+        assertTrue(result.output.contains("No such file"));
+    }
+
+    @Test
+    public void operationsAfterSessionDiedAreFailed() {
+        List<RootBatch.Operation> operations = Arrays.asList(
+                RootBatch.Operation.mkdir("/a"), RootBatch.Operation.mkdir("/b"), RootBatch.Operation.mkdir("/c"));
+        String output = TOKEN + ":0:0\n";
+
+        List<RootBatch.Result> results = RootBatch.parse(operations, TOKEN, output, "su 会话已断开");
+
+        assertTrue(results.get(0).success);
+        for (RootBatch.Result result : results.subList(1, 3)) {
+            assertFalse(result.success);
+            assertEquals(-1, result.exitCode);
+            assertEquals("su 会话已断开", result.output);
+        }
+    }
+
+    @Test
+    public void truncatedMarkerIsFailedNotThrown() {
+        List<RootBatch.Operation> operations = Arrays.asList(
+                RootBatch.Operation.exists("/a"), RootBatch.Operation.exists("/b"));
+        // 会话在输出退出码之前断开
+        String output = TOKEN + ":0:0\n" + TOKEN + ":1:";
+
+        List<RootBatch.Result> results = RootBatch.parse(operations, TOKEN, output, "读取中断");
+
+        assertTrue(results.get(0).success);
+        assertFalse(results.get(1).success);
+        assertEquals(-1, results.get(1).exitCode);
+        assertEquals("读取中断", results.get(1).output);
+    }
+
+    @Test
+    public void nullOutputFailsEverything() {
+        List<RootBatch.Operation> operations = Arrays.asList(RootBatch.Operation.exists("/a"));
+
+        RootBatch.Result result = RootBatch.parse(operations, TOKEN, null, "无法启动 su").get(0);
+
+        assertFalse(result.success);
+        assertEquals("无法启动 su", result.output);
+    }
+
+    @Test
+    public void compiledScriptRoundTripsThroughShell() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        File base = folder.newFolder();
+        String odd = new File(base, "it's a \"dir\" $HOME").getPath();
+        String moved = new File(base, "moved; rm -rf x").getPath();
+        List<RootBatch.Operation> operations = Arrays.asList(
+                RootBatch.Operation.mkdir(odd),
+                RootBatch.Operation.exists(odd),
+                RootBatch.Operation.mv(odd, moved),
+                RootBatch.Operation.exists(odd),
+                RootBatch.Operation.rm(moved),
+                RootBatch.Operation.exists(moved));
+
+        String output = runShell(RootBatch.compile(operations, TOKEN));
+        List<RootBatch.Result> results = RootBatch.parse(operations, TOKEN, output, null);
+
+        assertTrue(results.get(0).success);
+        assertTrue(results.get(1).success);
+        assertTrue(results.get(2).success);
+        assertFalse(results.get(3).success);
+        assertTrue(results.get(4).success);
+        assertFalse(results.get(5).success);
+        assertEquals(0, base.list().length);
+    }
+
+    private static String runShell(String script) throws Exception {
+        Process process = new ProcessBuilder("/bin/sh", "-c", script).redirectErrorStream(true).start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        process.waitFor();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
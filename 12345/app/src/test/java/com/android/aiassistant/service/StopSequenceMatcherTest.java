@@ -0,0 +1,124 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+/**
+ * 停止序列匹配：跨令牌切分、重叠的序列、暂存与放行
+ */
+public class StopSequenceMatcherTest {
+
+    @Test
+    public void matchSplitAcrossChunks() {
+        StopSequenceMatcher.Scanner scanner = matcher("<|im_end|>").newScanner();
+
+        StringBuilder output = new StringBuilder();
+        for (String chunk : new String[]{"答案是 42", "<|im", "_e", "nd|>", "多余的内容"}) {
+            output.append(scanner.feed(chunk));
+        }
+
+        assertEquals("答案是 42", output.toString());
+        assertTrue(scanner.isStopped());
+        assertEquals("<|im_end|>", scanner.getMatched());
+        assertEquals("", scanner.flush());
+    }
+
+    @Test
+    public void holdsOnlyPossibleStopPrefix() {
+        StopSequenceMatcher.Scanner scanner = matcher("\n用户:").newScanner();
+
+        // "\n用" 可能是停止序列的开头，先暂存
+        assertEquals("第一行", scanner.feed("第一行\n用"));
+        // 后续不匹配，暂存的部分随之放行
+        assertEquals("\n用法如下", scanner.feed("法如下"));
+        assertFalse(scanner.isStopped());
+    }
+
+    @Test
+    public void flushReleasesHeldTextWithoutMatch() {
+        StopSequenceMatcher.Scanner scanner = matcher("</s>").newScanner();
+
+        assertEquals("结尾", scanner.feed("结尾</"));
+        assertEquals("</", scanner.flush());
+        assertFalse(scanner.isStopped());
+        assertNull(scanner.getMatched());
+    }
+
+    @Test
+    public void overlappingSequencesStopAtEarliestEnd() {
+        // "bc" 在 "abcd" 完整出现之前就已结束
+        StopSequenceMatcher.Scanner scanner = matcher("abcd", "bc").newScanner();
+
+        // "a" 可能是 "abcd" 的开头，先暂存
+        assertEquals("x", scanner.feed("xa"));
+        assertEquals("a", scanner.feed("bcd"));
+        assertEquals("bc", scanner.getMatched());
+    }
+
+    @Test
+    public void sequenceThatIsSuffixOfAnotherMatchesThroughFailureLink() {
+        StopSequenceMatcher.Scanner scanner = matcher("aab", "ab").newScanner();
+
+        // "aaab" 中 "aab" 和 "ab" 同时结束，输出较长的那个之前的文本
+        assertEquals("", scanner.feed("a"));
+        // 只保留可能成为开头的 "aa"，多出的 "a" 放行
+        assertEquals("a", scanner.feed("aa"));
+        assertEquals("", scanner.feed("b"));
+        assertEquals("aab", scanner.getMatched());
+    }
+
+    @Test
+    public void restartsAfterPartialMismatch() {
+        StopSequenceMatcher.Scanner scanner = matcher("ababc").newScanner();
+
+        StringBuilder output = new StringBuilder();
+        for (char c : "abababc".toCharArray()) {
+            output.append(scanner.feed(String.valueOf(c)));
+        }
+
+        assertEquals("ab", output.toString());
+        assertTrue(scanner.isStopped());
+    }
+
+    @Test
+    public void ignoresEmptyAndNullSequences() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Arrays.asList("", null, "END"));
+        assertEquals(Collections.singletonList("END"), matcher.getSequences());
+
+        StopSequenceMatcher.Scanner scanner = matcher.newScanner();
+        assertEquals("text", scanner.feed("textEND"));
+    }
+
+    @Test
+    public void emptyMatcherPassesEverythingThrough() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Collections.emptyList());
+        assertTrue(matcher.isEmpty());
+
+        StopSequenceMatcher.Scanner scanner = matcher.newScanner();
+        assertEquals("任意文本", scanner.feed("任意文本"));
+        assertEquals("", scanner.flush());
+    }
+
+    @Test
+    public void scannersAreIndependent() {
+        StopSequenceMatcher matcher = matcher("STOP");
+        StopSequenceMatcher.Scanner first = matcher.newScanner();
+        StopSequenceMatcher.Scanner second = matcher.newScanner();
+
+        assertEquals("", first.feed("ST"));
+        assertEquals("OP", second.feed("OP"));
+        assertEquals("", first.feed("OP"));
+        assertTrue(first.isStopped());
+        assertFalse(second.isStopped());
+    }
+
+    private static StopSequenceMatcher matcher(String... sequences) {
+        return new StopSequenceMatcher(Arrays.asList(sequences));
+    }
+}
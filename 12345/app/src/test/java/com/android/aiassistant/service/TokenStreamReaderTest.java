@@ -0,0 +1,116 @@
+package com.android.aiassistant.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * 字节级流式读取：多字节 UTF-8 字符被拆在两次读取之间
+ */
+public class TokenStreamReaderTest {
+
+    @Test
+    public void decodesCharactersSplitAcrossReads() throws Exception {
+        String text = "你好, wörld 😀!";
+        List<String> pieces = new ArrayList<>();
+
+        new TokenStreamReader(new TrickleInputStream(text.getBytes(StandardCharsets.UTF_8), 1))
+                .pump((piece, timestampNanos) -> pieces.add(piece));
+
+        assertEquals(text, String.join("", pieces));
+        for (String piece : pieces) {
+            // 不会把半个字符解码成替换字符
+            assertTrue(piece, piece.indexOf('�') < 0);
+        }
+    }
+
+    @Test
+    public void emitsTextAsSoonAsBytesArrive() throws Exception {
+        byte[] bytes = "中文".getBytes(StandardCharsets.UTF_8);
+        List<String> pieces = new ArrayList<>();
+
+        // 每次读 2 字节：第一个字符跨两次读取，第二个字符完整后立即回调
+        new TokenStreamReader(new TrickleInputStream(bytes, 2))
+                .pump((piece, timestampNanos) -> pieces.add(piece));
+
+        assertEquals("中文", String.join("", pieces));
+        assertEquals(2, pieces.size());
+    }
+
+    @Test
+    public void decodesInputLargerThanBuffer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("字").append(i % 10);
+        }
+        StringBuilder output = new StringBuilder();
+
+        new TokenStreamReader(new TrickleInputStream(text.toString().getBytes(StandardCharsets.UTF_8), 4093))
+                .pump((piece, timestampNanos) -> output.append(piece));
+
+        assertEquals(text.toString(), output.toString());
+    }
+
+    @Test
+    public void truncatedSequenceAtEndIsReplaced() throws Exception {
+        byte[] bytes = "ab中".getBytes(StandardCharsets.UTF_8);
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        StringBuilder output = new StringBuilder();
+
+        new TokenStreamReader(new ByteArrayInputStream(truncated))
+                .pump((piece, timestampNanos) -> output.append(piece));
+
+        assertEquals("ab�", output.toString());
+    }
+
+    @Test
+    public void stopEndsPumpAfterCurrentRead() throws Exception {
+        TokenStreamReader[] reader = new TokenStreamReader[1];
+        StringBuilder output = new StringBuilder();
+        reader[0] = new TokenStreamReader(new TrickleInputStream("abcdef".getBytes(StandardCharsets.UTF_8), 2));
+
+        reader[0].pump((piece, timestampNanos) -> {
+            output.append(piece);
+            reader[0].stop();
+        });
+
+        assertEquals("ab", output.toString());
+    }
+
+    /**
+     * 每次最多返回 chunkSize 个字节，模拟管道里零散到达的输出
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] bytes;
+        private final int chunkSize;
+        private int position;
+
+        TrickleInputStream(byte[] bytes, int chunkSize) {
+            this.bytes = bytes;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, chunkSize), bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+    }
+}
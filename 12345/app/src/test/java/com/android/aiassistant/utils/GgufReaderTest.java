@@ -0,0 +1,257 @@
+package com.android.aiassistant.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * GGUF 文件头解析：各种值类型、数组跳过、张量参数量和数据偏移、映射窗口扩大
+ */
+public class GgufReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsMetadataAndTensorInfo() throws Exception {
+        GgufBuilder builder = new GgufBuilder(3);
+        builder.string("general.architecture", "llama");
+        builder.uint32("general.file_type", 15);
+        builder.uint32("llama.context_length", 4096);
+        builder.int8("llama.test.negative", -3);
+        builder.float32("llama.rope.freq_base", 10000f);
+        builder.bool("tokenizer.ggml.add_bos_token", true);
+        builder.stringArray("tokenizer.ggml.tokens", "<s>", "</s>", "你好");
+        builder.nestedArray("llama.test.nested");
+        builder.uint32("llama.block_count", 2);
+        builder.tensor("token_embd.weight", 8, 4);
+        builder.tensor("output_norm.weight", 8);
+        File file = builder.write(100);
+
+        GgufReader.Header header = GgufReader.read(file);
+
+        assertEquals(3, header.version);
+        assertEquals(2, header.tensorCount);
+        assertEquals("llama", header.getString("general.architecture"));
+        assertEquals("Q4_K_M", GgufReader.fileTypeName((int) header.getLong("general.file_type", -1)));
+        assertEquals(4096, header.getArchLong("context_length", 0));
+        assertEquals(2, header.getArchLong("block_count", 0));
+        assertEquals(-3, header.getArchLong("test.negative", 0));
+        assertEquals(10000.0, (Double) header.metadata.get("llama.rope.freq_base"), 0.001);
+        assertEquals(Boolean.TRUE, header.metadata.get("tokenizer.ggml.add_bos_token"));
+        assertEquals(Long.valueOf(3), header.arrayLengths.get("tokenizer.ggml.tokens"));
+        assertEquals(Long.valueOf(2), header.arrayLengths.get("llama.test.nested"));
+        assertEquals(8 * 4 + 8, header.parameterCount);
+        assertEquals(0, header.dataOffset % 32);
+        assertTrue(header.dataOffset >= builder.headerSize());
+        assertEquals(file.length() - header.dataOffset, header.tensorBytes);
+    }
+
+    @Test
+    public void honorsCustomAlignment() throws Exception {
+        GgufBuilder builder = new GgufBuilder(3);
+        builder.uint32("general.alignment", 256);
+        builder.tensor("weight", 16);
+        File file = builder.write(512);
+
+        GgufReader.Header header = GgufReader.read(file);
+
+        assertEquals(256, header.dataOffset);
+    }
+
+    @Test
+    public void growsWindowForLargeHeader() throws Exception {
+        // 词表超过初始映射窗口（4 MB），需要扩大窗口重新解析
+        String[] tokens = new String[80_000];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = String.format("token-%058d", i);
+        }
+        GgufBuilder builder = new GgufBuilder(3);
+        builder.stringArray("tokenizer.ggml.tokens", tokens);
+        builder.string("general.architecture", "qwen2");
+        builder.tensor("weight", 4);
+        File file = builder.write(64);
+
+        GgufReader.Header header = GgufReader.read(file);
+
+        assertTrue(builder.headerSize() > 4 * 1024 * 1024);
+        assertEquals(Long.valueOf(tokens.length), header.arrayLengths.get("tokenizer.ggml.tokens"));
+        assertEquals("qwen2", header.getString("general.architecture"));
+    }
+
+    @Test
+    public void rejectsNonGgufFile() throws Exception {
+        File file = folder.newFile("model.gguf");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a model file at all".getBytes(StandardCharsets.UTF_8));
+        }
+        assertFails(file, "不是 GGUF 文件");
+    }
+
+    @Test
+    public void rejectsOldVersion() throws Exception {
+        GgufBuilder builder = new GgufBuilder(1);
+        assertFails(builder.write(0), "不支持的 GGUF 版本");
+    }
+
+    @Test
+    public void reportsTruncatedHeader() throws Exception {
+        GgufBuilder builder = new GgufBuilder(3);
+        builder.stringArray("tokenizer.ggml.tokens", "a", "b", "c");
+        builder.tensor("weight", 4);
+        File file = builder.writeTruncated(10);
+
+        assertFails(file, "GGUF 文件头不完整");
+    }
+
+    @Test
+    public void missingKeysUseDefaults() throws Exception {
+        GgufBuilder builder = new GgufBuilder(2);
+        GgufReader.Header header = GgufReader.read(builder.write(0));
+
+        assertNull(header.getString("general.architecture"));
+        assertEquals(-1, header.getLong("general.file_type", -1));
+        assertEquals(7, header.getArchLong("context_length", 7));
+        assertEquals("type99", GgufReader.fileTypeName(99));
+    }
+
+    private static void assertFails(File file, String message) {
+        try {
+            GgufReader.read(file);
+            fail("应当抛出异常");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    /**
+     * 按 GGUF 格式拼出文件头，张量数据区用零填充
+     */
+    private class GgufBuilder {
+        private final int version;
+        private final ByteArrayOutputStream kv = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream tensors = new ByteArrayOutputStream();
+        private int kvCount;
+        private int tensorCount;
+
+        GgufBuilder(int version) {
+            this.version = version;
+        }
+
+        void string(String key, String value) {
+            key(key, 8);
+            writeString(kv, value);
+        }
+
+        void uint32(String key, int value) {
+            key(key, 4);
+            kv.write(bytes(4).putInt(value).array(), 0, 4);
+        }
+
+        void int8(String key, int value) {
+            key(key, 1);
+            kv.write(value);
+        }
+
+        void float32(String key, float value) {
+            key(key, 6);
+            kv.write(bytes(4).putFloat(value).array(), 0, 4);
+        }
+
+        void bool(String key, boolean value) {
+            key(key, 7);
+            kv.write(value ? 1 : 0);
+        }
+
+        void stringArray(String key, String... values) {
+            key(key, 9);
+            kv.write(bytes(4).putInt(8).array(), 0, 4);
+            kv.write(bytes(8).putLong(values.length).array(), 0, 8);
+            for (String value : values) {
+                writeString(kv, value);
+            }
+        }
+
+        /**
+         * 两个 uint16 数组组成的数组
+         */
+        void nestedArray(String key) {
+            key(key, 9);
+            kv.write(bytes(4).putInt(9).array(), 0, 4);
+            kv.write(bytes(8).putLong(2).array(), 0, 8);
+            for (int i = 0; i < 2; i++) {
+                kv.write(bytes(4).putInt(2).array(), 0, 4);
+                kv.write(bytes(8).putLong(3).array(), 0, 8);
+                kv.write(new byte[6], 0, 6);
+            }
+        }
+
+        void tensor(String name, long... dims) {
+            tensorCount++;
+            writeString(tensors, name);
+            tensors.write(bytes(4).putInt(dims.length).array(), 0, 4);
+            for (long dim : dims) {
+                tensors.write(bytes(8).putLong(dim).array(), 0, 8);
+            }
+            tensors.write(bytes(4).putInt(0).array(), 0, 4);
+            tensors.write(bytes(8).putLong(0).array(), 0, 8);
+        }
+
+        int headerSize() {
+            return 24 + kv.size() + tensors.size();
+        }
+
+        File write(int dataBytes) throws Exception {
+            return writeTruncated(-dataBytes - 64);
+        }
+
+        /**
+         * 写出文件并去掉末尾 cut 个字节；cut 为负数时在头部之后追加对齐填充和数据
+         */
+        File writeTruncated(int cut) throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteBuffer fixed = bytes(24);
+            fixed.putInt(0x46554747).putInt(version).putLong(tensorCount).putLong(kvCount);
+            out.write(fixed.array(), 0, 24);
+            kv.writeTo(out);
+            tensors.writeTo(out);
+            byte[] header = out.toByteArray();
+
+            int length = header.length - cut;
+            byte[] content = new byte[length];
+            System.arraycopy(header, 0, content, 0, Math.min(header.length, length));
+            File file = folder.newFile();
+            try (FileOutputStream stream = new FileOutputStream(file)) {
+                stream.write(content);
+            }
+            return file;
+        }
+
+        private void key(String key, int type) {
+            kvCount++;
+            writeString(kv, key);
+            kv.write(bytes(4).putInt(type).array(), 0, 4);
+        }
+
+        private void writeString(ByteArrayOutputStream out, String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes(8).putLong(utf8.length).array(), 0, 8);
+            out.write(utf8, 0, utf8.length);
+        }
+
+        private ByteBuffer bytes(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.android.aiassistant.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 分段下载、断点续传（If-Range 和 ETag）和 SHA-256 校验
+ */
+public class ModelDownloaderTest {
+
+    private static final String FILE_NAME = "model.bin";
+    private static final int SIZE = 200 * 1024;
+    // 分段不小于 8MB，三个分段多出的零头落在最后一段
+    private static final int MULTI_SEGMENT_SIZE = 3 * 8 * 1024 * 1024 + 12345;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private RangeDispatcher dispatcher;
+    private File modelsDirectory;
+    private ModelDownloader downloader;
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new RangeDispatcher();
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+        modelsDirectory = folder.newFolder("models");
+        downloader = new ModelDownloader(modelsDirectory,
+                new ModelCatalog(modelsDirectory, new File(folder.getRoot(), "catalog.json")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void resumeSendsIfRangeAndKeepsDownloadedPart() throws Exception {
+        byte[] content = content(1);
+        dispatcher.serve(content, "\"v1\"");
+        writePartial(content, SIZE / 2, "\"v1\"");
+
+        String[] error = new String[1];
+        File file = download(content, error);
+
+        assertNull(error[0]);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        RecordedRequest get = dispatcher.requests.get(0);
+        assertEquals("GET", get.getMethod());
+        assertEquals("bytes=" + SIZE / 2 + "-" + (SIZE - 1), get.getHeader("Range"));
+        assertEquals("\"v1\"", get.getHeader("If-Range"));
+        assertEquals(1, dispatcher.requests.size());
+    }
+
+    @Test
+    public void fullResponseToIfRangeDiscardsJournal() throws Exception {
+        byte[] oldContent = content(1);
+        byte[] newContent = content(2);
+        dispatcher.serve(newContent, "\"v2\"");
+        writePartial(oldContent, SIZE / 2, "\"v1\"");
+
+        String[] error = new String[1];
+        File file = download(newContent, error);
+
+        // 旧的前半部分被丢弃，整个文件按新内容重新下载
+        assertNull(error[0]);
+        assertArrayEquals(newContent, Files.readAllBytes(file.toPath()));
+        assertEquals("\"v1\"", dispatcher.requests.get(0).getHeader("If-Range"));
+        assertEquals("HEAD", dispatcher.requests.get(1).getMethod());
+        assertEquals("bytes=0-" + (SIZE - 1), dispatcher.requests.get(2).getHeader("Range"));
+        assertFalse(new File(modelsDirectory, FILE_NAME + ".download.json").exists());
+    }
+
+    @Test
+    public void changedEtagOnPartialResponseDiscardsJournal() throws Exception {
+        byte[] oldContent = content(1);
+        byte[] newContent = content(2);
+        // 服务器忽略 If-Range，照常返回 206，但 ETag 已经不同
+        dispatcher.serve(newContent, "\"v2\"");
+        dispatcher.ignoreIfRange = true;
+        writePartial(oldContent, SIZE / 2, "\"v1\"");
+
+        String[] error = new String[1];
+        File file = download(newContent, error);
+
+        assertNull(error[0]);
+        assertArrayEquals(newContent, Files.readAllBytes(file.toPath()));
+        assertEquals("HEAD", dispatcher.requests.get(1).getMethod());
+    }
+
+    @Test
+    public void multiSegmentDownloadHashesWholeFile() throws Exception {
+        byte[] content = content(3, MULTI_SEGMENT_SIZE);
+        dispatcher.serve(content, "\"v1\"");
+
+        String[] error = new String[1];
+        String[] sha256 = new String[1];
+        File file = download(sha256(content), error, sha256);
+
+        assertNull(error[0]);
+        assertEquals(sha256(content), sha256[0]);
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        int ranges = 0;
+        for (RecordedRequest request : dispatcher.requests) {
+            if ("GET".equals(request.getMethod())) {
+                ranges++;
+            }
+        }
+        assertEquals(3, ranges);
+    }
+
+    @Test
+    public void checksumMismatchDeletesPartFile() throws Exception {
+        byte[] content = content(1);
+        dispatcher.serve(content, "\"v1\"");
+
+        String[] error = new String[1];
+        File file = download(sha256(content(2)), error, new String[1]);
+
+        assertNull(file);
+        assertNotNull(error[0]);
+        assertTrue(error[0], error[0].contains("SHA-256"));
+        assertFalse(new File(modelsDirectory, FILE_NAME + ".part").exists());
+        assertFalse(new File(modelsDirectory, FILE_NAME + ".download.json").exists());
+        assertFalse(new File(modelsDirectory, FILE_NAME).exists());
+    }
+
+    private File download(byte[] expected, String[] error) throws Exception {
+        return download(sha256(expected), error, new String[1]);
+    }
+
+    private File download(String expectedSha256, String[] error, String[] sha256) throws Exception {
+        File[] result = new File[1];
+        ModelDownloader.DownloadTask task = downloader.download(server.url("/" + FILE_NAME).toString(), FILE_NAME,
+                expectedSha256, new ModelDownloader.DownloadListener() {
+                    @Override
+                    public void onProgress(long downloadedBytes, long totalBytes, double bytesPerSecond) {
+                    }
+
+                    @Override
+                    public void onComplete(File file, String hash) {
+                        result[0] = file;
+                        sha256[0] = hash;
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        error[0] = message;
+                    }
+                });
+        task.await();
+        return result[0];
+    }
+
+    /**
+     * 模拟被中断的下载：.part 文件已写入前 downloaded 字节，日志记录对应进度
+     */
+    private void writePartial(byte[] content, int downloaded, String etag) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(modelsDirectory, FILE_NAME + ".part"), "rw")) {
+            raf.setLength(content.length);
+            raf.write(content, 0, downloaded);
+        }
+
+        ModelDownloader.Journal journal = new ModelDownloader.Journal();
+        journal.url = server.url("/" + FILE_NAME).toString();
+        journal.etag = etag;
+        journal.totalBytes = content.length;
+        journal.rangeSupported = true;
+        ModelDownloader.Segment segment = new ModelDownloader.Segment();
+        segment.start = 0;
+        segment.end = content.length - 1;
+        segment.downloaded = downloaded;
+        journal.segments.add(segment);
+        try (Writer writer = new FileWriter(new File(modelsDirectory, FILE_NAME + ".download.json"))) {
+            new Gson().toJson(journal, writer);
+        }
+    }
+
+    private static byte[] content(int seed) {
+        return content(seed, SIZE);
+    }
+
+    private static byte[] content(int seed, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + seed * 17);
+        }
+        return bytes;
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 按 Range 和 If-Range 返回内容的服务器
+     */
+    private static class RangeDispatcher extends Dispatcher {
+        final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+        volatile boolean ignoreIfRange;
+        private volatile byte[] content;
+        private volatile String etag;
+
+        void serve(byte[] content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            requests.add(request);
+            MockResponse response = new MockResponse()
+                    .setHeader("ETag", etag)
+                    .setHeader("Accept-Ranges", "bytes");
+            if ("HEAD".equals(request.getMethod())) {
+                return response.setHeader("Content-Length", content.length);
+            }
+
+            String range = request.getHeader("Range");
+            String ifRange = request.getHeader("If-Range");
+            if (range == null || (!ignoreIfRange && ifRange != null && !ifRange.equals(etag))) {
+                return response.setResponseCode(200).setBody(new Buffer().write(content));
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(bounds[0]);
+            int end = bounds.length > 1 ? Integer.parseInt(bounds[1]) : content.length - 1;
+            return response.setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+                    .setBody(new Buffer().write(content, start, end - start + 1));
+        }
+    }
+}